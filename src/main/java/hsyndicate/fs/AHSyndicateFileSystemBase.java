@@ -16,6 +16,7 @@
 package hsyndicate.fs;
 
 import com.google.common.primitives.UnsignedLong;
+import hsyndicate.utils.BlockBitmap;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -39,9 +40,9 @@ public abstract class AHSyndicateFileSystemBase implements Closeable {
     
     protected SyndicateFSConfiguration syndicateFsConf;
     protected Configuration hadoopConf;
-    protected SyndicateFSPath workingDir;
+    protected volatile SyndicateFSPath workingDir;
     
-    protected boolean closed = true;
+    protected volatile boolean closed = true;
     
     public synchronized static void addEventHandler(ISyndicateFSEventHandler eventHandler) {
         if(eventHandler == null) {
@@ -90,7 +91,7 @@ public abstract class AHSyndicateFileSystemBase implements Closeable {
         this.closed = false;
     }
     
-    public synchronized boolean isClosed() {
+    public boolean isClosed() {
         return this.closed;
     }
     
@@ -102,15 +103,15 @@ public abstract class AHSyndicateFileSystemBase implements Closeable {
         return this.hadoopConf;
     }
     
-    public synchronized SyndicateFSPath getRootPath() {
+    public SyndicateFSPath getRootPath() {
         return FS_ROOT_PATH;
     }
     
-    public synchronized SyndicateFSPath getWorkingDirectory() {
+    public SyndicateFSPath getWorkingDirectory() {
         return this.workingDir;
     }
     
-    public synchronized void setWorkingDirectory(SyndicateFSPath path) {
+    public void setWorkingDirectory(SyndicateFSPath path) {
         if(this.closed) {
             LOG.error("filesystem is already closed");
             throw new IllegalStateException("filesystem is already closed");
@@ -135,7 +136,7 @@ public abstract class AHSyndicateFileSystemBase implements Closeable {
         this.closed = true;
     }
     
-    public synchronized SyndicateFSPath getAbsolutePath(SyndicateFSPath path) {
+    public SyndicateFSPath getAbsolutePath(SyndicateFSPath path) {
         if(path == null) {
             throw new IllegalArgumentException("Can not get absolute file path from null path");
         }
@@ -185,7 +186,7 @@ public abstract class AHSyndicateFileSystemBase implements Closeable {
     
     public abstract void mkdir(SyndicateFSPath path) throws IOException;
     
-    public synchronized boolean mkdirs(SyndicateFSPath path) throws IOException {
+    public boolean mkdirs(SyndicateFSPath path) throws IOException {
         if(path == null) {
             throw new IllegalArgumentException("Can not create a new directory from null path");
         }
@@ -217,7 +218,9 @@ public abstract class AHSyndicateFileSystemBase implements Closeable {
     
     public abstract String[] readDirectoryEntries(SyndicateFSPath path) throws FileNotFoundException, IOException;
     
-    public synchronized String[] readDirectoryEntries(SyndicateFSPath path, ISyndicateFSFilenameFilter filter) throws FileNotFoundException, IOException {
+    public abstract SyndicateFSFileStatus[] listDirectoryStatus(SyndicateFSPath path) throws FileNotFoundException, IOException;
+    
+    public String[] readDirectoryEntries(SyndicateFSPath path, ISyndicateFSFilenameFilter filter) throws FileNotFoundException, IOException {
         if(path == null) {
             throw new IllegalArgumentException("Can not list files from null path");
         }
@@ -243,7 +246,7 @@ public abstract class AHSyndicateFileSystemBase implements Closeable {
         }
     }
     
-    public synchronized String[] readDirectoryEntries(SyndicateFSPath path, ISyndicateFSPathFilter filter) throws FileNotFoundException, IOException {
+    public String[] readDirectoryEntries(SyndicateFSPath path, ISyndicateFSPathFilter filter) throws FileNotFoundException, IOException {
         if(path == null) {
             throw new IllegalArgumentException("Can not list files from null path");
         }
@@ -270,11 +273,11 @@ public abstract class AHSyndicateFileSystemBase implements Closeable {
         }
     }
     
-    public synchronized SyndicateFSPath[] listAllFiles(SyndicateFSPath path) throws FileNotFoundException, IOException {
+    public SyndicateFSPath[] listAllFiles(SyndicateFSPath path) throws FileNotFoundException, IOException {
         return listAllFiles(path, (ISyndicateFSFilenameFilter)null);
     }
     
-    public synchronized SyndicateFSPath[] listAllFiles(SyndicateFSPath path, ISyndicateFSFilenameFilter filter) throws FileNotFoundException, IOException {
+    public SyndicateFSPath[] listAllFiles(SyndicateFSPath path, ISyndicateFSFilenameFilter filter) throws FileNotFoundException, IOException {
         if(path == null) {
             throw new IllegalArgumentException("Can not list files from null path");
         }
@@ -284,13 +287,18 @@ public abstract class AHSyndicateFileSystemBase implements Closeable {
             throw new FileNotFoundException("path not found");
         }
         
-        List<SyndicateFSPath> result = listAllFilesRecursive(absPath, filter);
+        if(isFile(absPath)) {
+            if(filter == null || filter.accept(absPath.getParent(), absPath.getName())) {
+                return new SyndicateFSPath[] {absPath};
+            }
+            return new SyndicateFSPath[0];
+        }
         
-        SyndicateFSPath[] paths = result.toArray(new SyndicateFSPath[0]);
-        return paths;
+        SyndicateFSTreeWalker walker = new SyndicateFSTreeWalker(this, absPath, filter, getListingParallelism());
+        return collectFiles(walker);
     }
     
-    public synchronized SyndicateFSPath[] listAllFiles(SyndicateFSPath path, ISyndicateFSPathFilter filter) throws FileNotFoundException, IOException {
+    public SyndicateFSPath[] listAllFiles(SyndicateFSPath path, ISyndicateFSPathFilter filter) throws FileNotFoundException, IOException {
         if(path == null) {
             throw new IllegalArgumentException("Can not list files from null path");
         }
@@ -300,142 +308,108 @@ public abstract class AHSyndicateFileSystemBase implements Closeable {
             throw new FileNotFoundException("path not found");
         }
         
-        List<SyndicateFSPath> result = listAllFilesRecursive(absPath, filter);
+        if(isFile(absPath)) {
+            if(filter == null || filter.accept(absPath)) {
+                return new SyndicateFSPath[] {absPath};
+            }
+            return new SyndicateFSPath[0];
+        }
         
-        SyndicateFSPath[] paths = result.toArray(new SyndicateFSPath[0]);
-        return paths;
+        SyndicateFSTreeWalker walker = new SyndicateFSTreeWalker(this, absPath, filter, getListingParallelism());
+        return collectFiles(walker);
     }
     
-    private synchronized List<SyndicateFSPath> listAllFilesRecursive(SyndicateFSPath path, ISyndicateFSFilenameFilter filter) throws IOException {
+    /**
+     * Starts listing all files under the directory in parallel. The caller
+     * must close the walker if it stops before the end.
+     * 
+     * @param path directory
+     * @param filter may be null
+     * @return
+     * @throws FileNotFoundException
+     * @throws IOException 
+     */
+    public SyndicateFSTreeWalker walkFiles(SyndicateFSPath path, ISyndicateFSPathFilter filter) throws FileNotFoundException, IOException {
         if(path == null) {
             throw new IllegalArgumentException("Can not list files from null path");
         }
         
-        List<SyndicateFSPath> result = new ArrayList<SyndicateFSPath>();
-        
-        if(isFile(path)) {
-            if(filter != null) {
-                if(filter.accept(path.getParent(), path.getName())) {
-                    result.add(path);
-                }
-            } else {
-                result.add(path);
-            }
-        } else if(isDirectory(path)) {
-            // entries
-            String[] entries = readDirectoryEntries(path, filter);
-            
-            if(entries != null) {
-                for(String entry : entries) {
-                    SyndicateFSPath newEntryPath = new SyndicateFSPath(path, entry);
-                    
-                    if(filter != null) {
-                        if(filter.accept(path, entry)) {
-                            List<SyndicateFSPath> recResult = listAllFilesRecursive(newEntryPath, filter);
-                            result.addAll(recResult);
-                        }
-                    } else {
-                        List<SyndicateFSPath> recResult = listAllFilesRecursive(newEntryPath, filter);
-                        result.addAll(recResult);
-                    }
-                }
-            }
+        SyndicateFSPath absPath = getAbsolutePath(path);
+        if(!isDirectory(absPath)) {
+            throw new FileNotFoundException("directory not found : " + absPath.toString());
         }
         
-        return result;
+        return new SyndicateFSTreeWalker(this, absPath, filter, getListingParallelism());
     }
     
-    private synchronized List<SyndicateFSPath> listAllFilesRecursive(SyndicateFSPath path, ISyndicateFSPathFilter filter) throws IOException {
-        if(path == null) {
-            throw new IllegalArgumentException("Can not list files from null path");
+    private int getListingParallelism() {
+        int threads = this.syndicateFsConf.getListingThreads();
+        if(threads <= 0) {
+            return 1;
         }
-        
+        return threads;
+    }
+    
+    private SyndicateFSPath[] collectFiles(SyndicateFSTreeWalker walker) throws IOException {
         List<SyndicateFSPath> result = new ArrayList<SyndicateFSPath>();
-        
-        if(isFile(path)) {
-            if(filter != null) {
-                if(filter.accept(path)) {
-                    result.add(path);
-                }
-            } else {
-                result.add(path);
-            }
-        } else if(isDirectory(path)) {
-            // entries
-            String[] entries = readDirectoryEntries(path, filter);
-            
-            if(entries != null) {
-                for(String entry : entries) {
-                    SyndicateFSPath newEntryPath = new SyndicateFSPath(path, entry);
-                    
-                    if(filter != null) {
-                        if(filter.accept(newEntryPath)) {
-                            List<SyndicateFSPath> recResult = listAllFilesRecursive(newEntryPath, filter);
-                            result.addAll(recResult);
-                        }
-                    } else {
-                        List<SyndicateFSPath> recResult = listAllFilesRecursive(newEntryPath, filter);
-                        result.addAll(recResult);
-                    }
-                }
+        try {
+            while(walker.hasNext()) {
+                result.add(walker.next().getPath());
             }
+        } finally {
+            walker.close();
         }
         
-        return result;
+        return result.toArray(new SyndicateFSPath[0]);
     }
     
-    public synchronized boolean deleteAll(SyndicateFSPath path) throws IOException {
+    public boolean deleteAll(SyndicateFSPath path) throws IOException {
+        return deleteAll(path, true);
+    }
+    
+    /**
+     * Deletes the path and everything under it, many entries at a time.
+     * 
+     * @param path
+     * @param failFast stop and throw at the first failure, instead of
+     * deleting as much as possible
+     * @return true if everything was deleted
+     * @throws IOException 
+     */
+    public boolean deleteAll(SyndicateFSPath path, boolean failFast) throws IOException {
         if(path == null) {
             throw new IllegalArgumentException("Can not remove from null path");
         }
         
         SyndicateFSPath absPath = getAbsolutePath(path);
         
-        if(this.exists(absPath)) {
-            return deleteAllRecursive(absPath);
+        if(isFile(absPath)) {
+            return delete(absPath);
+        } else if(isDirectory(absPath)) {
+            int threads = Math.max(1, this.syndicateFsConf.getDeleteThreads());
+            SyndicateFSTreeDeleter deleter = new SyndicateFSTreeDeleter(this, threads, failFast);
+            try {
+                return deleter.delete(absPath);
+            } finally {
+                invalidateTree(absPath);
+            }
         }
         return true;
     }
     
-    private synchronized boolean deleteAllRecursive(SyndicateFSPath path) throws IOException {
-        if(path == null) {
-            throw new IllegalArgumentException("Can not delete files from null path");
-        }
-        
-        if(isFile(path)) {
-            // remove file
-            return delete(path);
-        } else if(isDirectory(path)) {
-            // entries
-            boolean success = true;
-            
-            String[] entries = readDirectoryEntries(path);
-            
-            if(entries != null) {
-                for(String entry : entries) {
-                    SyndicateFSPath newEntryPath = new SyndicateFSPath(path, entry);
-                    boolean result = deleteAllRecursive(newEntryPath);
-                    if(!result) {
-                        success = false;
-                    }
-                }
-            }
-            
-            if(success) {
-                // remove dir
-                return delete(path);
-            } else {
-                return false;
-            }
-        }
-        return false;
+    /**
+     * Drops everything cached about the path and the paths under it.
+     * 
+     * @param path absolute path
+     */
+    protected void invalidateTree(SyndicateFSPath path) {
     }
     
-    public abstract byte[] getLocalCachedBlocks(SyndicateFSPath path) throws FileNotFoundException, IOException;
+    public abstract BlockBitmap getLocalCachedBlocks(SyndicateFSPath path) throws FileNotFoundException, IOException;
     public abstract Map<UnsignedLong, File> listLocalCachedBlocks(SyndicateFSPath path) throws FileNotFoundException, IOException;
     
     @Override
-    public synchronized String toString() {
+    public String toString() {
         return "Syndicate - " + this.syndicateFsConf.getAddress();
     }
 }
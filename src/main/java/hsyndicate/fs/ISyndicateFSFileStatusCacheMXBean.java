@@ -0,0 +1,41 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.fs;
+
+/**
+ * Management view of the file status cache.
+ * 
+ * @author iychoi
+ */
+public interface ISyndicateFSFileStatusCacheMXBean {
+    long getEntryCount();
+    long getMaxEntries();
+    long getListingCount();
+    
+    /*
+     * rough heap usage in bytes of entries and listings
+     */
+    long getEstimatedSize();
+    long getMaxSize();
+    
+    long getHitCount();
+    long getMissCount();
+    long getNegativeHitCount();
+    long getEvictionCount();
+    long getRevalidatedCount();
+    long getReplacedCount();
+    long getListingMissCount();
+}
@@ -0,0 +1,371 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.fs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Block data cache shared by all input streams of a filesystem.
+ *
+ * The cache is bounded by bytes and uses the 2Q replacement policy so that
+ * a single large scan does not flush blocks that are read repeatedly.
+ * New blocks enter a FIFO queue (A1in). Blocks evicted from A1in are
+ * remembered by key only (A1out), and a block that is requested again while
+ * it is remembered is promoted to the LRU queue (Am).
+ *
+ * The cache holds a reference to every block it keeps, and get() hands out
+ * a new reference that the caller must release.
+ *
+ * @author iychoi
+ */
+public class SyndicateFSBlockCache {
+
+    private static final Log LOG = LogFactory.getLog(SyndicateFSBlockCache.class);
+
+    // share of the capacity given to A1in
+    private static final double A1IN_RATIO = 0.25;
+    // share of the capacity remembered by A1out
+    private static final double A1OUT_RATIO = 0.5;
+
+    public static class BlockKey {
+        private String sessionName;
+        private String path;
+        private long version;
+        private long writeNonce;
+        private int blockID;
+
+        public BlockKey(String sessionName, String path, long version, long writeNonce, int blockID) {
+            this.sessionName = sessionName;
+            this.path = path;
+            this.version = version;
+            this.writeNonce = writeNonce;
+            this.blockID = blockID;
+        }
+
+        public String getSessionName() {
+            return this.sessionName;
+        }
+
+        public String getPath() {
+            return this.path;
+        }
+
+        public long getVersion() {
+            return this.version;
+        }
+
+        public long getWriteNonce() {
+            return this.writeNonce;
+        }
+
+        public int getBlockID() {
+            return this.blockID;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof BlockKey)) {
+                return false;
+            }
+
+            BlockKey other = (BlockKey) o;
+            return this.blockID == other.blockID
+                    && this.version == other.version
+                    && this.writeNonce == other.writeNonce
+                    && equalsString(this.sessionName, other.sessionName)
+                    && equalsString(this.path, other.path);
+        }
+
+        private static boolean equalsString(String a, String b) {
+            if(a == null) {
+                return b == null;
+            }
+            return a.equals(b);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 31 * hash + (this.sessionName == null ? 0 : this.sessionName.hashCode());
+            hash = 31 * hash + (this.path == null ? 0 : this.path.hashCode());
+            hash = 31 * hash + (int) (this.version ^ (this.version >>> 32));
+            hash = 31 * hash + (int) (this.writeNonce ^ (this.writeNonce >>> 32));
+            hash = 31 * hash + this.blockID;
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s:%d:%d:%d", this.path, this.version, this.writeNonce, this.blockID);
+        }
+    }
+
+    private long capacity;
+    private long size;
+    private long a1inSize;
+    private long a1outSize;
+    private LinkedHashMap<BlockKey, SyndicateFSReadBlockData> a1in = new LinkedHashMap<BlockKey, SyndicateFSReadBlockData>(16, 0.75f, false);
+    private LinkedHashMap<BlockKey, Long> a1out = new LinkedHashMap<BlockKey, Long>(16, 0.75f, false);
+    private LinkedHashMap<BlockKey, SyndicateFSReadBlockData> am = new LinkedHashMap<BlockKey, SyndicateFSReadBlockData>(16, 0.75f, true);
+
+    private AtomicLong hitCount = new AtomicLong(0);
+    private AtomicLong missCount = new AtomicLong(0);
+    private AtomicLong evictionCount = new AtomicLong(0);
+
+    public SyndicateFSBlockCache(long capacity) {
+        if(capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+
+        this.capacity = capacity;
+        this.size = 0;
+        this.a1inSize = 0;
+        this.a1outSize = 0;
+    }
+
+    public synchronized long getCapacity() {
+        return this.capacity;
+    }
+
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    public synchronized int getBlockCount() {
+        return this.a1in.size() + this.am.size();
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    public synchronized SyndicateFSReadBlockData get(BlockKey key) {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+
+        SyndicateFSReadBlockData data = this.am.get(key);
+        if(data == null) {
+            // A1in is a FIFO - hits do not reorder it
+            data = this.a1in.get(key);
+        }
+
+        if(data != null && data.isFailed()) {
+            // a streamed block that broke off - fetch it again
+            remove(key);
+            data = null;
+        }
+
+        if(data != null) {
+            this.hitCount.incrementAndGet();
+            return data.retain();
+        } else {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    public synchronized boolean contains(BlockKey key) {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+
+        return this.a1in.containsKey(key) || this.am.containsKey(key);
+    }
+
+    public synchronized void put(BlockKey key, SyndicateFSReadBlockData data) {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+
+        if(data == null) {
+            throw new IllegalArgumentException("data is null");
+        }
+
+        long dataSize = data.getBlockLength();
+        if(dataSize > this.capacity) {
+            // does not fit
+            return;
+        }
+
+        if(this.am.containsKey(key)) {
+            this.am.put(key, data.retain()).release();
+            return;
+        }
+
+        if(this.a1in.containsKey(key)) {
+            this.a1in.put(key, data.retain()).release();
+            return;
+        }
+
+        Long ghostSize = this.a1out.remove(key);
+        if(ghostSize != null) {
+            // seen recently - it is hot
+            this.a1outSize -= ghostSize;
+            this.am.put(key, data.retain());
+        } else {
+            this.a1in.put(key, data.retain());
+            this.a1inSize += dataSize;
+        }
+        this.size += dataSize;
+
+        evict();
+    }
+
+    private void remove(BlockKey key) {
+        SyndicateFSReadBlockData data = this.a1in.remove(key);
+        if(data != null) {
+            this.a1inSize -= data.getBlockLength();
+        } else {
+            data = this.am.remove(key);
+        }
+
+        if(data != null) {
+            this.size -= data.getBlockLength();
+            data.release();
+        }
+    }
+
+    private void evict() {
+        long a1inCapacity = (long) (this.capacity * A1IN_RATIO);
+        while(this.size > this.capacity) {
+            if(!this.a1in.isEmpty() && (this.a1inSize > a1inCapacity || this.am.isEmpty())) {
+                Iterator<Map.Entry<BlockKey, SyndicateFSReadBlockData>> iter = this.a1in.entrySet().iterator();
+                Map.Entry<BlockKey, SyndicateFSReadBlockData> eldest = iter.next();
+                iter.remove();
+
+                long dataSize = eldest.getValue().getBlockLength();
+                this.a1inSize -= dataSize;
+                this.size -= dataSize;
+
+                // remember the key
+                this.a1out.put(eldest.getKey(), dataSize);
+                this.a1outSize += dataSize;
+                trimA1out();
+                eldest.getValue().release();
+            } else if(!this.am.isEmpty()) {
+                Iterator<Map.Entry<BlockKey, SyndicateFSReadBlockData>> iter = this.am.entrySet().iterator();
+                Map.Entry<BlockKey, SyndicateFSReadBlockData> eldest = iter.next();
+                iter.remove();
+
+                this.size -= eldest.getValue().getBlockLength();
+                eldest.getValue().release();
+            } else {
+                break;
+            }
+            this.evictionCount.incrementAndGet();
+        }
+    }
+
+    private void trimA1out() {
+        long a1outCapacity = (long) (this.capacity * A1OUT_RATIO);
+        Iterator<Map.Entry<BlockKey, Long>> iter = this.a1out.entrySet().iterator();
+        while(this.a1outSize > a1outCapacity && iter.hasNext()) {
+            Map.Entry<BlockKey, Long> eldest = iter.next();
+            iter.remove();
+            this.a1outSize -= eldest.getValue();
+        }
+    }
+
+    /**
+     * Drops the blocks of the path and of every file under it, so that a
+     * deleted or renamed directory leaves nothing behind.
+     * 
+     * @param sessionName
+     * @param path 
+     */
+    public synchronized void invalidate(String sessionName, String path) {
+        invalidate(this.a1in, sessionName, path, true);
+        invalidate(this.am, sessionName, path, false);
+
+        Iterator<Map.Entry<BlockKey, Long>> iter = this.a1out.entrySet().iterator();
+        while(iter.hasNext()) {
+            Map.Entry<BlockKey, Long> entry = iter.next();
+            BlockKey key = entry.getKey();
+            if(matches(key, sessionName, path)) {
+                iter.remove();
+                this.a1outSize -= entry.getValue();
+            }
+        }
+    }
+
+    private static boolean matches(BlockKey key, String sessionName, String path) {
+        if(!BlockKey.equalsString(key.sessionName, sessionName)) {
+            return false;
+        }
+        if(BlockKey.equalsString(key.path, path)) {
+            return true;
+        }
+        if(key.path == null || path == null) {
+            return false;
+        }
+        
+        String prefix = path.endsWith("/") ? path : path + "/";
+        return key.path.startsWith(prefix);
+    }
+
+    private void invalidate(Map<BlockKey, SyndicateFSReadBlockData> queue, String sessionName, String path, boolean a1in) {
+        Iterator<Map.Entry<BlockKey, SyndicateFSReadBlockData>> iter = queue.entrySet().iterator();
+        while(iter.hasNext()) {
+            Map.Entry<BlockKey, SyndicateFSReadBlockData> entry = iter.next();
+            BlockKey key = entry.getKey();
+            if(matches(key, sessionName, path)) {
+                iter.remove();
+
+                long dataSize = entry.getValue().getBlockLength();
+                this.size -= dataSize;
+                if(a1in) {
+                    this.a1inSize -= dataSize;
+                }
+                entry.getValue().release();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for(SyndicateFSReadBlockData data : this.a1in.values()) {
+            data.release();
+        }
+        for(SyndicateFSReadBlockData data : this.am.values()) {
+            data.release();
+        }
+        this.a1in.clear();
+        this.a1out.clear();
+        this.am.clear();
+        this.size = 0;
+        this.a1inSize = 0;
+        this.a1outSize = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SyndicateFSBlockCache - size(%d/%d), blocks(%d), hit(%d), miss(%d), eviction(%d)",
+                this.size, this.capacity, getBlockCount(), this.hitCount.get(), this.missCount.get(), this.evictionCount.get());
+    }
+}
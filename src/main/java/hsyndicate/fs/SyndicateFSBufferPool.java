@@ -0,0 +1,137 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.fs;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Pool of direct byte buffers used for block data.
+ *
+ * Buffers are leased for a block and returned when the block is no longer
+ * referenced. Returned buffers are kept for reuse up to the retention limit;
+ * buffers beyond the limit are left to the garbage collector.
+ *
+ * @author iychoi
+ */
+public class SyndicateFSBufferPool {
+
+    private static final Log LOG = LogFactory.getLog(SyndicateFSBufferPool.class);
+
+    private long maxRetainedSize;
+    private AtomicLong retainedSize = new AtomicLong(0);
+    private ConcurrentMap<Integer, Queue<ByteBuffer>> freeBuffers = new ConcurrentHashMap<Integer, Queue<ByteBuffer>>();
+
+    private AtomicLong allocateCount = new AtomicLong(0);
+    private AtomicLong reuseCount = new AtomicLong(0);
+
+    public SyndicateFSBufferPool(long maxRetainedSize) {
+        if(maxRetainedSize < 0) {
+            throw new IllegalArgumentException("maxRetainedSize must not be negative");
+        }
+
+        this.maxRetainedSize = maxRetainedSize;
+    }
+
+    private Queue<ByteBuffer> getQueue(int capacity) {
+        Queue<ByteBuffer> queue = this.freeBuffers.get(capacity);
+        if(queue == null) {
+            queue = new ConcurrentLinkedQueue<ByteBuffer>();
+            Queue<ByteBuffer> existing = this.freeBuffers.putIfAbsent(capacity, queue);
+            if(existing != null) {
+                queue = existing;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Leases a cleared buffer of the given capacity.
+     *
+     * @param capacity
+     * @return a direct buffer
+     */
+    public ByteBuffer lease(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        ByteBuffer buffer = getQueue(capacity).poll();
+        if(buffer != null) {
+            this.retainedSize.addAndGet(-capacity);
+            this.reuseCount.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        this.allocateCount.incrementAndGet();
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Returns a leased buffer. The caller must not touch the buffer after this.
+     *
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null) {
+            throw new IllegalArgumentException("buffer is null");
+        }
+
+        int capacity = buffer.capacity();
+        if(this.retainedSize.addAndGet(capacity) > this.maxRetainedSize) {
+            // over the limit
+            this.retainedSize.addAndGet(-capacity);
+            return;
+        }
+
+        buffer.clear();
+        getQueue(capacity).offer(buffer);
+    }
+
+    public long getMaxRetainedSize() {
+        return this.maxRetainedSize;
+    }
+
+    public long getRetainedSize() {
+        return this.retainedSize.get();
+    }
+
+    public long getAllocateCount() {
+        return this.allocateCount.get();
+    }
+
+    public long getReuseCount() {
+        return this.reuseCount.get();
+    }
+
+    public void clear() {
+        this.freeBuffers.clear();
+        this.retainedSize.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SyndicateFSBufferPool - retained(%d/%d), allocated(%d), reused(%d)",
+                this.retainedSize.get(), this.maxRetainedSize, this.allocateCount.get(), this.reuseCount.get());
+    }
+}
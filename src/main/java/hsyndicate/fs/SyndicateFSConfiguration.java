@@ -15,15 +15,41 @@
 */
 package hsyndicate.fs;
 
+import hsyndicate.rest.common.RestfulClientConfiguration;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
 
 public class SyndicateFSConfiguration {
 
+    public static final int DEFAULT_READ_AHEAD_BLOCKS = 4;
+    public static final long DEFAULT_BLOCK_CACHE_SIZE = 64 * 1024 * 1024; // 64MB
+    public static final long DEFAULT_BUFFER_POOL_SIZE = 64 * 1024 * 1024; // 64MB
+    public static final boolean DEFAULT_STREAMING_READ = false;
+    public static final int DEFAULT_WRITE_BEHIND_BLOCKS = 4;
+    public static final long DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 1024; // 1GB
+    public static final long DEFAULT_STATUS_CACHE_ENTRIES = 500000;
+    public static final long DEFAULT_STATUS_CACHE_SIZE = 256 * 1024 * 1024; // 256MB
+    public static final int DEFAULT_LISTING_THREADS = SyndicateFSTreeWalker.DEFAULT_PARALLELISM;
+    public static final int DEFAULT_DELETE_THREADS = SyndicateFSTreeDeleter.DEFAULT_PARALLELISM;
+    public static final boolean DEFAULT_LAZY_OPEN = false;
+    
     private String host = "localhost";
     private int port = 8888;
     private String sessionName;
     private String sessionKey;
+    private int readAheadBlocks = DEFAULT_READ_AHEAD_BLOCKS;
+    private long blockCacheSize = DEFAULT_BLOCK_CACHE_SIZE;
+    private long bufferPoolSize = DEFAULT_BUFFER_POOL_SIZE;
+    private boolean streamingRead = DEFAULT_STREAMING_READ;
+    private int writeBehindBlocks = DEFAULT_WRITE_BEHIND_BLOCKS;
+    private String diskCacheDir;
+    private long diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+    private long statusCacheEntries = DEFAULT_STATUS_CACHE_ENTRIES;
+    private long statusCacheSize = DEFAULT_STATUS_CACHE_SIZE;
+    private int listingThreads = DEFAULT_LISTING_THREADS;
+    private int deleteThreads = DEFAULT_DELETE_THREADS;
+    private boolean lazyOpen = DEFAULT_LAZY_OPEN;
+    private RestfulClientConfiguration transportConf = new RestfulClientConfiguration();
     
     public SyndicateFSConfiguration() {
         
@@ -49,6 +75,140 @@ public class SyndicateFSConfiguration {
         return this.port;
     }
     
+    @JsonProperty("readahead_blocks")
+    public synchronized void setReadAheadBlocks(int readAheadBlocks) {
+        this.readAheadBlocks = readAheadBlocks;
+    }
+    
+    @JsonProperty("readahead_blocks")
+    public synchronized int getReadAheadBlocks() {
+        return this.readAheadBlocks;
+    }
+    
+    @JsonProperty("blockcache_size")
+    public synchronized void setBlockCacheSize(long blockCacheSize) {
+        this.blockCacheSize = blockCacheSize;
+    }
+    
+    @JsonProperty("blockcache_size")
+    public synchronized long getBlockCacheSize() {
+        return this.blockCacheSize;
+    }
+    
+    @JsonProperty("bufferpool_size")
+    public synchronized void setBufferPoolSize(long bufferPoolSize) {
+        this.bufferPoolSize = bufferPoolSize;
+    }
+    
+    @JsonProperty("bufferpool_size")
+    public synchronized long getBufferPoolSize() {
+        return this.bufferPoolSize;
+    }
+    
+    @JsonProperty("read_streaming")
+    public synchronized void setStreamingRead(boolean streamingRead) {
+        this.streamingRead = streamingRead;
+    }
+    
+    @JsonProperty("read_streaming")
+    public synchronized boolean getStreamingRead() {
+        return this.streamingRead;
+    }
+    
+    @JsonProperty("writebehind_blocks")
+    public synchronized void setWriteBehindBlocks(int writeBehindBlocks) {
+        this.writeBehindBlocks = writeBehindBlocks;
+    }
+    
+    @JsonProperty("writebehind_blocks")
+    public synchronized int getWriteBehindBlocks() {
+        return this.writeBehindBlocks;
+    }
+    
+    @JsonProperty("diskcache_dir")
+    public synchronized void setDiskCacheDir(String diskCacheDir) {
+        this.diskCacheDir = diskCacheDir;
+    }
+    
+    @JsonProperty("diskcache_dir")
+    public synchronized String getDiskCacheDir() {
+        return this.diskCacheDir;
+    }
+    
+    @JsonProperty("diskcache_size")
+    public synchronized void setDiskCacheSize(long diskCacheSize) {
+        this.diskCacheSize = diskCacheSize;
+    }
+    
+    @JsonProperty("diskcache_size")
+    public synchronized long getDiskCacheSize() {
+        return this.diskCacheSize;
+    }
+    
+    @JsonProperty("statuscache_entries")
+    public synchronized void setStatusCacheEntries(long statusCacheEntries) {
+        this.statusCacheEntries = statusCacheEntries;
+    }
+    
+    @JsonProperty("statuscache_entries")
+    public synchronized long getStatusCacheEntries() {
+        return this.statusCacheEntries;
+    }
+    
+    @JsonProperty("statuscache_size")
+    public synchronized void setStatusCacheSize(long statusCacheSize) {
+        this.statusCacheSize = statusCacheSize;
+    }
+    
+    @JsonProperty("statuscache_size")
+    public synchronized long getStatusCacheSize() {
+        return this.statusCacheSize;
+    }
+    
+    @JsonProperty("listing_threads")
+    public synchronized void setListingThreads(int listingThreads) {
+        this.listingThreads = listingThreads;
+    }
+    
+    @JsonProperty("listing_threads")
+    public synchronized int getListingThreads() {
+        return this.listingThreads;
+    }
+    
+    @JsonProperty("delete_threads")
+    public synchronized void setDeleteThreads(int deleteThreads) {
+        this.deleteThreads = deleteThreads;
+    }
+    
+    @JsonProperty("delete_threads")
+    public synchronized int getDeleteThreads() {
+        return this.deleteThreads;
+    }
+    
+    @JsonProperty("open_lazy")
+    public synchronized void setLazyOpen(boolean lazyOpen) {
+        this.lazyOpen = lazyOpen;
+    }
+    
+    @JsonProperty("open_lazy")
+    public synchronized boolean getLazyOpen() {
+        return this.lazyOpen;
+    }
+    
+    @JsonProperty("transport")
+    public synchronized void setTransportConf(RestfulClientConfiguration transportConf) {
+        if(transportConf == null) {
+            throw new IllegalArgumentException("transportConf is null");
+        }
+        
+        this.transportConf = transportConf;
+    }
+    
+    @JsonProperty("transport")
+    public synchronized RestfulClientConfiguration getTransportConf() {
+        return this.transportConf;
+    }
+    
     @JsonIgnore
     @Override
     public synchronized String toString() {
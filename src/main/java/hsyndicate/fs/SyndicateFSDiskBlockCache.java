@@ -0,0 +1,630 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Block cache on local disk that survives restarts of the JVM.
+ *
+ * Blocks are stored one per file under the cache directory and are keyed
+ * like the memory cache, by path, block ID, version and write nonce, so a
+ * block of a modified file is never served. Blocks are written behind by a
+ * single thread, and are dropped when too many are waiting to be written.
+ * The cache is bounded by bytes and evicts the least recently used block.
+ *
+ * The index is written to a temporary file and renamed over the old one. On
+ * startup, entries whose file is missing or has a different size are
+ * dropped, files not in the index are deleted, and the checksum of a
+ * recovered block is verified when it is first read.
+ *
+ * A cache directory is used by one JVM at a time. Filesystems in the same
+ * JVM share one instance; another JVM finding the directory locked runs
+ * without the disk cache.
+ *
+ * @author iychoi
+ */
+public class SyndicateFSDiskBlockCache {
+
+    private static final Log LOG = LogFactory.getLog(SyndicateFSDiskBlockCache.class);
+
+    private static final int INDEX_MAGIC = 0x48534443; // HSDC
+    private static final int INDEX_FORMAT = 1;
+    private static final String INDEX_FILENAME = "index";
+    private static final String LOCK_FILENAME = "lock";
+    private static final String BLOCK_DIRNAME = "blocks";
+    private static final String BLOCK_FILENAME_SUFFIX = ".blk";
+    private static final String TMP_FILENAME_SUFFIX = ".tmp";
+    private static final int MAX_PENDING_WRITES = 16;
+    private static final int INDEX_PERSIST_WRITES = 64;
+    private static final long INDEX_PERSIST_INTERVAL = 30000; // 30 sec
+    private static final int CHECKSUM_CHUNK_SIZE = 64 * 1024;
+
+    private static final Map<String, SyndicateFSDiskBlockCache> instances = new HashMap<String, SyndicateFSDiskBlockCache>();
+
+    private static class Entry {
+        private long fileID;
+        private int size;
+        private long checksum;
+        private boolean verified;
+
+        private Entry(long fileID, int size, long checksum, boolean verified) {
+            this.fileID = fileID;
+            this.size = size;
+            this.checksum = checksum;
+            this.verified = verified;
+        }
+    }
+
+    private File cacheDir;
+    private File blockDir;
+    private long capacity;
+    private long size;
+    private long nextFileID;
+    private LinkedHashMap<SyndicateFSBlockCache.BlockKey, Entry> entries = new LinkedHashMap<SyndicateFSBlockCache.BlockKey, Entry>(16, 0.75f, true);
+    private Set<SyndicateFSBlockCache.BlockKey> pendingKeys = new HashSet<SyndicateFSBlockCache.BlockKey>();
+    private int refCount;
+    private int unpersistedChanges;
+    private long lastPersistTime;
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+    private ExecutorService writer;
+    private AtomicInteger pendingWrites = new AtomicInteger(0);
+
+    private AtomicLong hitCount = new AtomicLong(0);
+    private AtomicLong missCount = new AtomicLong(0);
+    private AtomicLong writeCount = new AtomicLong(0);
+    private AtomicLong skipCount = new AtomicLong(0);
+    private AtomicLong evictionCount = new AtomicLong(0);
+    private AtomicLong corruptCount = new AtomicLong(0);
+
+    /**
+     * Returns the cache of the directory, opening it if needed. Returns null
+     * if the directory is used by another JVM or cannot be opened.
+     *
+     * @param cacheDir
+     * @param capacity
+     * @return
+     */
+    public static synchronized SyndicateFSDiskBlockCache acquire(File cacheDir, long capacity) {
+        if(cacheDir == null) {
+            throw new IllegalArgumentException("cacheDir is null");
+        }
+
+        String key = cacheDir.getAbsolutePath();
+        SyndicateFSDiskBlockCache cache = instances.get(key);
+        if(cache == null) {
+            cache = new SyndicateFSDiskBlockCache(cacheDir, capacity);
+            try {
+                if(!cache.open()) {
+                    LOG.info("disk block cache " + key + " is in use by another process, running without it");
+                    return null;
+                }
+            } catch (IOException ex) {
+                LOG.error("failed to open disk block cache " + key, ex);
+                cache.closeLock();
+                return null;
+            }
+            instances.put(key, cache);
+        }
+        cache.refCount++;
+        return cache;
+    }
+
+    /**
+     * Drops a reference taken by acquire. The last one persists the index and
+     * releases the directory.
+     *
+     * @param cache
+     */
+    public static void release(SyndicateFSDiskBlockCache cache) {
+        if(cache == null) {
+            throw new IllegalArgumentException("cache is null");
+        }
+
+        synchronized(SyndicateFSDiskBlockCache.class) {
+            cache.refCount--;
+            if(cache.refCount > 0) {
+                return;
+            }
+            instances.remove(cache.cacheDir.getAbsolutePath());
+        }
+
+        cache.shutdown();
+    }
+
+    private SyndicateFSDiskBlockCache(File cacheDir, long capacity) {
+        if(capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+
+        this.cacheDir = cacheDir.getAbsoluteFile();
+        this.blockDir = new File(this.cacheDir, BLOCK_DIRNAME);
+        this.capacity = capacity;
+        this.size = 0;
+        this.nextFileID = 0;
+        this.refCount = 0;
+    }
+
+    private boolean open() throws IOException {
+        if(!this.blockDir.isDirectory() && !this.blockDir.mkdirs()) {
+            throw new IOException("cannot create a directory " + this.blockDir.getPath());
+        }
+
+        this.lockFile = new RandomAccessFile(new File(this.cacheDir, LOCK_FILENAME), "rw");
+        try {
+            this.lock = this.lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException ex) {
+            this.lock = null;
+        }
+
+        if(this.lock == null) {
+            closeLock();
+            return false;
+        }
+
+        recover();
+
+        this.lastPersistTime = System.currentTimeMillis();
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SyndicateFSDiskBlockCache writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        LOG.info(String.format("disk block cache %s is opened with %d blocks (%d bytes)", this.cacheDir.getPath(), this.entries.size(), this.size));
+        return true;
+    }
+
+    private void closeLock() {
+        try {
+            if(this.lock != null) {
+                this.lock.release();
+                this.lock = null;
+            }
+        } catch (IOException ex) {
+            LOG.error("exception occurred", ex);
+        }
+
+        if(this.lockFile != null) {
+            try {
+                this.lockFile.close();
+            } catch (IOException ex) {
+                LOG.error("exception occurred", ex);
+            }
+            this.lockFile = null;
+        }
+    }
+
+    private File getBlockFile(long fileID) {
+        return new File(this.blockDir, Long.toString(fileID) + BLOCK_FILENAME_SUFFIX);
+    }
+
+    private synchronized void recover() {
+        File indexFile = new File(this.cacheDir, INDEX_FILENAME);
+        if(indexFile.exists()) {
+            try {
+                readIndex(indexFile);
+            } catch (IOException ex) {
+                // start over, files are cleaned below
+                LOG.error("failed to read the index of the disk block cache, dropping all blocks", ex);
+                this.entries.clear();
+                this.size = 0;
+            }
+        }
+
+        // drop entries without a valid file
+        Set<String> known = new HashSet<String>();
+        Iterator<Map.Entry<SyndicateFSBlockCache.BlockKey, Entry>> iter = this.entries.entrySet().iterator();
+        while(iter.hasNext()) {
+            Entry entry = iter.next().getValue();
+            File blockFile = getBlockFile(entry.fileID);
+            if(!blockFile.isFile() || blockFile.length() != entry.size) {
+                iter.remove();
+                this.size -= entry.size;
+                this.corruptCount.incrementAndGet();
+            } else {
+                known.add(blockFile.getName());
+            }
+            this.nextFileID = Math.max(this.nextFileID, entry.fileID + 1);
+        }
+
+        // files of writes that did not make it into the index, and temporary files
+        File[] files = this.blockDir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                if(!known.contains(file.getName())) {
+                    if(!file.delete()) {
+                        LOG.error("failed to delete " + file.getPath());
+                    }
+                }
+            }
+        }
+
+        evict();
+    }
+
+    private void readIndex(File indexFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if(in.readInt() != INDEX_MAGIC) {
+                throw new IOException("not an index file");
+            }
+
+            int format = in.readInt();
+            if(format != INDEX_FORMAT) {
+                throw new IOException("unknown index format " + format);
+            }
+
+            int count = in.readInt();
+            for(int i=0;i<count;i++) {
+                String sessionName = null;
+                if(in.readBoolean()) {
+                    sessionName = in.readUTF();
+                }
+                String path = in.readUTF();
+                long version = in.readLong();
+                long writeNonce = in.readLong();
+                int blockID = in.readInt();
+                long fileID = in.readLong();
+                int blockSize = in.readInt();
+                long checksum = in.readLong();
+
+                SyndicateFSBlockCache.BlockKey key = new SyndicateFSBlockCache.BlockKey(sessionName, path, version, writeNonce, blockID);
+                // recovered blocks are verified on the first read
+                this.entries.put(key, new Entry(fileID, blockSize, checksum, false));
+                this.size += blockSize;
+            }
+        } catch (EOFException ex) {
+            throw new IOException("index file is truncated", ex);
+        } finally {
+            in.close();
+        }
+    }
+
+    private synchronized void persistIndex() {
+        File indexFile = new File(this.cacheDir, INDEX_FILENAME);
+        File tmpFile = new File(this.cacheDir, INDEX_FILENAME + TMP_FILENAME_SUFFIX);
+        try {
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_FORMAT);
+                out.writeInt(this.entries.size());
+                // least recently used first, so the order is kept on reload
+                for(Map.Entry<SyndicateFSBlockCache.BlockKey, Entry> mapEntry : this.entries.entrySet()) {
+                    SyndicateFSBlockCache.BlockKey key = mapEntry.getKey();
+                    Entry entry = mapEntry.getValue();
+                    out.writeBoolean(key.getSessionName() != null);
+                    if(key.getSessionName() != null) {
+                        out.writeUTF(key.getSessionName());
+                    }
+                    out.writeUTF(key.getPath());
+                    out.writeLong(key.getVersion());
+                    out.writeLong(key.getWriteNonce());
+                    out.writeInt(key.getBlockID());
+                    out.writeLong(entry.fileID);
+                    out.writeInt(entry.size);
+                    out.writeLong(entry.checksum);
+                }
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.unpersistedChanges = 0;
+            this.lastPersistTime = System.currentTimeMillis();
+        } catch (IOException ex) {
+            LOG.error("failed to write the index of the disk block cache", ex);
+        }
+    }
+
+    private synchronized void onChanged() {
+        this.unpersistedChanges++;
+        if(this.unpersistedChanges >= INDEX_PERSIST_WRITES
+                || System.currentTimeMillis() - this.lastPersistTime >= INDEX_PERSIST_INTERVAL) {
+            persistIndex();
+        }
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<SyndicateFSBlockCache.BlockKey, Entry>> iter = this.entries.entrySet().iterator();
+        while(this.size > this.capacity && iter.hasNext()) {
+            Entry entry = iter.next().getValue();
+            iter.remove();
+            this.size -= entry.size;
+            deleteBlockFile(entry);
+            this.evictionCount.incrementAndGet();
+        }
+    }
+
+    private void deleteBlockFile(Entry entry) {
+        // mapped readers keep their view of a deleted file
+        File blockFile = getBlockFile(entry.fileID);
+        if(blockFile.exists() && !blockFile.delete()) {
+            LOG.error("failed to delete " + blockFile.getPath());
+        }
+    }
+
+    private synchronized void remove(SyndicateFSBlockCache.BlockKey key, Entry entry) {
+        if(this.entries.get(key) == entry) {
+            this.entries.remove(key);
+            this.size -= entry.size;
+            deleteBlockFile(entry);
+        }
+    }
+
+    private synchronized Entry lookup(SyndicateFSBlockCache.BlockKey key) {
+        return this.entries.get(key);
+    }
+
+    public synchronized boolean contains(SyndicateFSBlockCache.BlockKey key) {
+        return this.entries.containsKey(key);
+    }
+
+    /**
+     * Returns the block mapped from its file, or null on a miss.
+     *
+     * @param key
+     * @param offset offset of the block in the file
+     * @param blockSize
+     * @return
+     */
+    public SyndicateFSReadBlockData get(SyndicateFSBlockCache.BlockKey key, long offset, int blockSize) {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+
+        Entry entry = lookup(key);
+        if(entry == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        MappedByteBuffer buffer;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(getBlockFile(entry.fileID), "r");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, entry.size);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ex) {
+            LOG.error("failed to map a cached block " + key.toString(), ex);
+            remove(key, entry);
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        if(!entry.verified) {
+            if(checksum(buffer) != entry.checksum) {
+                LOG.error("cached block " + key.toString() + " is corrupted");
+                remove(key, entry);
+                this.corruptCount.incrementAndGet();
+                this.missCount.incrementAndGet();
+                return null;
+            }
+            synchronized(this) {
+                entry.verified = true;
+            }
+        }
+
+        this.hitCount.incrementAndGet();
+        return new SyndicateFSReadBlockData(offset, buffer, blockSize);
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[CHECKSUM_CHUNK_SIZE];
+        while(view.hasRemaining()) {
+            int len = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, len);
+            crc.update(chunk, 0, len);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Stores a fully buffered block in the background. The block is skipped if
+     * too many writes are pending.
+     *
+     * @param key
+     * @param blockData
+     */
+    public void putAsync(final SyndicateFSBlockCache.BlockKey key, final SyndicateFSReadBlockData blockData) {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+
+        if(blockData == null) {
+            throw new IllegalArgumentException("blockData is null");
+        }
+
+        if(!blockData.isFullyBufferred() || blockData.isFailed() || blockData.getBufferredSize() > this.capacity) {
+            return;
+        }
+
+        synchronized(this) {
+            if(this.writer == null || this.entries.containsKey(key) || this.pendingKeys.contains(key)) {
+                return;
+            }
+
+            if(this.pendingWrites.get() >= MAX_PENDING_WRITES) {
+                this.skipCount.incrementAndGet();
+                return;
+            }
+
+            this.pendingWrites.incrementAndGet();
+            this.pendingKeys.add(key);
+            blockData.retain();
+        }
+
+        this.writer.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    write(key, blockData);
+                } finally {
+                    blockData.release();
+                    synchronized(SyndicateFSDiskBlockCache.this) {
+                        pendingKeys.remove(key);
+                    }
+                    pendingWrites.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void write(SyndicateFSBlockCache.BlockKey key, SyndicateFSReadBlockData blockData) {
+        long fileID;
+        synchronized(this) {
+            fileID = this.nextFileID++;
+        }
+
+        File blockFile = getBlockFile(fileID);
+        File tmpFile = new File(this.blockDir, blockFile.getName() + TMP_FILENAME_SUFFIX);
+        try {
+            ByteBuffer data = blockData.getDataBuffer();
+            int dataSize = data.remaining();
+            long crc = checksum(data);
+
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                FileChannel channel = fos.getChannel();
+                while(data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } finally {
+                fos.close();
+            }
+
+            Files.move(tmpFile.toPath(), blockFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized(this) {
+                Entry entry = new Entry(fileID, dataSize, crc, true);
+                Entry old = this.entries.put(key, entry);
+                if(old != null) {
+                    this.size -= old.size;
+                    deleteBlockFile(old);
+                }
+                this.size += dataSize;
+                evict();
+            }
+            this.writeCount.incrementAndGet();
+            onChanged();
+        } catch (IOException ex) {
+            LOG.error("failed to write a cached block " + key.toString(), ex);
+            if(tmpFile.exists() && !tmpFile.delete()) {
+                LOG.error("failed to delete " + tmpFile.getPath());
+            }
+        }
+    }
+
+    private void shutdown() {
+        if(this.writer != null) {
+            this.writer.shutdown();
+            try {
+                if(!this.writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                    this.writer.shutdownNow();
+                }
+            } catch (InterruptedException ex) {
+                this.writer.shutdownNow();
+            }
+            this.writer = null;
+        }
+
+        persistIndex();
+        closeLock();
+        LOG.info(toString());
+    }
+
+    public synchronized long getCapacity() {
+        return this.capacity;
+    }
+
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    public synchronized int getBlocks() {
+        return this.entries.size();
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public double getHitRatio() {
+        long hits = this.hitCount.get();
+        long total = hits + this.missCount.get();
+        if(total == 0) {
+            return 0;
+        }
+        return (double) hits / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SyndicateFSDiskBlockCache - %s, size(%d/%d), blocks(%d), hit(%d), miss(%d), hitratio(%.2f), written(%d), skipped(%d), evicted(%d), corrupted(%d)",
+                this.cacheDir.getPath(), this.size, this.capacity, this.entries.size(), this.hitCount.get(), this.missCount.get(), getHitRatio(),
+                this.writeCount.get(), this.skipCount.get(), this.evictionCount.get(), this.corruptCount.get());
+    }
+}
@@ -19,14 +19,20 @@ import com.google.common.primitives.UnsignedLong;
 import com.sun.jersey.api.client.ClientResponse;
 import hsyndicate.rest.client.SyndicateUGHttpClient;
 import hsyndicate.rest.datatypes.FileDescriptor;
+import hsyndicate.rest.datatypes.StatRaw;
 import hsyndicate.utils.BlockUtils;
 import hsyndicate.utils.IOUtils;
 import hsyndicate.utils.IPUtils;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Map;
 import java.util.concurrent.Future;
 import org.apache.commons.logging.Log;
@@ -41,6 +47,9 @@ public class SyndicateFSFileHandle implements Closeable {
     private SyndicateFileSystem filesystem;
     private SyndicateFSFileStatus status;
     private FileDescriptor fileDescriptor;
+    // open request still in flight for a lazily opened handle
+    private Future<ClientResponse> pendingOpen;
+    private IOException openFailure;
     private boolean readonly = false;
     private boolean closed = true;
     private boolean modified = false;
@@ -48,39 +57,45 @@ public class SyndicateFSFileHandle implements Closeable {
     private boolean localFileSystem;
     private int localReadFailCount;
     private Map<UnsignedLong, File> localCachedBlocks;
-    private Thread keepaliveThread;
-
-    class KeepaliveWorker implements Runnable {
-        private SyndicateFSFileHandle handle;
-        private SyndicateFSPath path;
-        private FileDescriptor fd;
-        
-        private static final long NOTIFY_PERIOD = 60 * 1000;
-
-        private KeepaliveWorker(SyndicateFSFileHandle handle) {
-            this.handle = handle;
+    private SyndicateFSKeepaliveService.Entry keepaliveEntry;
+    
+    SyndicateFSFileHandle(SyndicateFileSystem fs, SyndicateFSFileStatus status, FileDescriptor fd, boolean readonly) {
+        if(fd == null) {
+            throw new IllegalArgumentException("fd is null");
         }
-
-        @Override
-        public void run() {
-            // notify that the handle is still in use periodically
-            try {
-                while(true) {
-                    Thread.sleep(NOTIFY_PERIOD);
-                    this.handle.tryExtendTTL();
-                }
-            } catch (InterruptedException ex) {
-                // silient ignore
-            } catch (Exception ex) {
-                LOG.error("exception occurred", ex);
-            }
+        
+        initialize(fs, status, readonly);
+        
+        this.fileDescriptor = fd;
+        this.keepaliveEntry = fs.getKeepaliveService().register(status.getPath().getSessionName(), status.getPath().getPathWithoutSession(), fd);
+        LOG.info("file opened - " + this.status.getPath().toString());
+        loadLocalCachedBlocks();
+    }
+    
+    /**
+     * Creates a handle whose open request has been issued but not completed.
+     * The response is processed by the first operation that needs the file
+     * descriptor.
+     * 
+     * @param fs
+     * @param status
+     * @param openFuture
+     * @param readonly 
+     */
+    SyndicateFSFileHandle(SyndicateFileSystem fs, SyndicateFSFileStatus status, Future<ClientResponse> openFuture, boolean readonly) {
+        if(openFuture == null) {
+            throw new IllegalArgumentException("openFuture is null");
         }
+        
+        initialize(fs, status, readonly);
+        
+        this.pendingOpen = openFuture;
+        LOG.info("file opening - " + this.status.getPath().toString());
     }
     
-    SyndicateFSFileHandle(SyndicateFileSystem fs, SyndicateFSFileStatus status, FileDescriptor fd, boolean readonly) {
+    private void initialize(SyndicateFileSystem fs, SyndicateFSFileStatus status, boolean readonly) {
         this.filesystem = fs;
         this.status = status;
-        this.fileDescriptor = fd;
         this.readonly = readonly;
         this.closed = false;
         this.modified = false;
@@ -89,21 +104,25 @@ public class SyndicateFSFileHandle implements Closeable {
         this.localReadFailCount = 0;
         
         String host = this.filesystem.getSyndicateFsConfiguration().getHost();
-        if(IPUtils.isLocalIPAddress(host)) {
-            this.localFileSystem = true;
-            try {
-                this.localCachedBlocks = fs.listLocalCachedBlocks(status.getPath());
-            } catch (IOException ex) {
-                LOG.info("exception raised while reading cache info : " + ex.toString());
-                this.localCachedBlocks = null;
-            }
-        } else {
-            this.localFileSystem = false;
+        this.localFileSystem = IPUtils.isLocalIPAddress(host);
+        this.localCachedBlocks = null;
+    }
+    
+    /*
+     * Reads the list of blocks the local gateway caches. Called once the file
+     * is open, so a lazy open does not wait for it.
+     */
+    private synchronized void loadLocalCachedBlocks() {
+        if(!this.localFileSystem) {
+            return;
         }
         
-        this.keepaliveThread = new Thread(new KeepaliveWorker(this));
-        this.keepaliveThread.start();
-        LOG.info("file opened - " + this.status.getPath().toString());
+        try {
+            this.localCachedBlocks = this.filesystem.listLocalCachedBlocks(this.status.getPath());
+        } catch (IOException ex) {
+            LOG.info("exception raised while reading cache info : " + ex.toString());
+            this.localCachedBlocks = null;
+        }
     }
     
     public synchronized SyndicateFileSystem getFileSystem() {
@@ -118,14 +137,56 @@ public class SyndicateFSFileHandle implements Closeable {
         return this.status;
     }
     
+    /**
+     * Returns the file descriptor, waiting for the open request if the handle
+     * was opened lazily. A failed open is reported to every caller.
+     * 
+     * @return
+     * @throws IOException 
+     */
+    private synchronized FileDescriptor getFileDescriptor() throws IOException {
+        if(this.fileDescriptor != null) {
+            return this.fileDescriptor;
+        }
+        
+        if(this.openFailure != null) {
+            throw this.openFailure;
+        }
+        
+        Future<ClientResponse> openFuture = this.pendingOpen;
+        this.pendingOpen = null;
+        try {
+            SyndicateUGHttpClient client = this.filesystem.getUGRestClient(this.status.getPath().getSessionName());
+            FileDescriptor fd = client.processOpen(openFuture);
+            if(fd == null) {
+                throw new IOException("Can not open the file : " + this.status.getPath().toString());
+            }
+            
+            this.fileDescriptor = fd;
+            this.keepaliveEntry = this.filesystem.getKeepaliveService().register(this.status.getPath().getSessionName(), this.status.getPath().getPathWithoutSession(), fd);
+            LOG.info("file opened - " + this.status.getPath().toString());
+            loadLocalCachedBlocks();
+            return fd;
+        } catch (FileNotFoundException ex) {
+            LOG.error("exception occurred", ex);
+            this.openFailure = ex;
+            throw ex;
+        } catch (Exception ex) {
+            LOG.error("exception occurred", ex);
+            this.openFailure = new IOException(ex);
+            throw this.openFailure;
+        }
+    }
+    
     public synchronized void extendTTL() throws IOException {
         if(this.closed) {
             throw new IOException("File handle is closed");
         }
         
+        FileDescriptor fd = getFileDescriptor();
         try {
             SyndicateUGHttpClient client = this.filesystem.getUGRestClient(this.status.getPath().getSessionName());
-            Future<ClientResponse> extendTtlFuture = client.extendTtl(this.status.getPath().getPathWithoutSession(), this.fileDescriptor);
+            Future<ClientResponse> extendTtlFuture = client.extendTtl(this.status.getPath().getPathWithoutSession(), fd);
             if (extendTtlFuture != null) {
                 client.processExtendTtl(extendTtlFuture);
             } else {
@@ -138,7 +199,8 @@ public class SyndicateFSFileHandle implements Closeable {
     }
     
     public synchronized void tryExtendTTL() {
-        if(!this.closed) {
+        // nothing to extend until a lazy open completes
+        if(!this.closed && this.fileDescriptor != null) {
             try {
                 SyndicateUGHttpClient client = this.filesystem.getUGRestClient(this.status.getPath().getSessionName());
                 Future<ClientResponse> extendTtlFuture = client.extendTtl(this.status.getPath().getPathWithoutSession(), this.fileDescriptor);
@@ -149,9 +211,33 @@ public class SyndicateFSFileHandle implements Closeable {
         }
     }
     
-    protected synchronized InputStream readFileDataBlockInputStream(int blockID) throws IOException {
-        if(blockID < 0) {
-            throw new IllegalArgumentException("blockID must be positive");
+    /**
+     * Returns the cache key of the block in the current version of the file.
+     * 
+     * @param blockID
+     * @return 
+     */
+    SyndicateFSBlockCache.BlockKey makeBlockKey(int blockID) {
+        SyndicateFSFileStatus status = getStatus();
+        StatRaw statRaw = status.getStatRaw();
+        long version = 0;
+        long writeNonce = 0;
+        if(statRaw != null) {
+            version = statRaw.getVersion();
+            writeNonce = statRaw.getWriteNonce();
+        }
+        return new SyndicateFSBlockCache.BlockKey(status.getPath().getSessionName(), status.getPath().getPathWithoutSession(), version, writeNonce, blockID);
+    }
+    
+    private synchronized File getLocalCachedBlockFile(int blockID) {
+        if(this.localFileSystem && this.fileDescriptor == null) {
+            // the local block list is read when the lazy open completes
+            try {
+                getFileDescriptor();
+            } catch (IOException ex) {
+                // reported by the request to the gateway
+                return null;
+            }
         }
         
         // read from local if available
@@ -161,34 +247,92 @@ public class SyndicateFSFileHandle implements Closeable {
             if(cachedBlockFile != null) {
                 // has cache
                 if(cachedBlockFile.exists()) {
-                    LOG.info("read from local cache file");
-                    return new FileInputStream(cachedBlockFile);
+                    return cachedBlockFile;
                 } else {
-                    // cannot access the file
-                    if(this.localReadFailCount < LOCAL_READ_FAIL_THRESHOLD) {
-                        LOG.info("cannot read from local cache file - " + this.localReadFailCount);
-                        this.localReadFailCount++;
-                    } else {
-                        // keep failing...
-                        LOG.info("switch to read via REST");
-                        this.localFileSystem = false;
-                    }
+                    onLocalReadFailure();
                 }
             }
         }
+        return null;
+    }
+    
+    private synchronized void onLocalReadFailure() {
+        // cannot access the file
+        if(this.localReadFailCount < LOCAL_READ_FAIL_THRESHOLD) {
+            LOG.info("cannot read from local cache file - " + this.localReadFailCount);
+            this.localReadFailCount++;
+        } else {
+            // keep failing...
+            LOG.info("switch to read via REST");
+            this.localFileSystem = false;
+        }
+    }
+    
+    private synchronized InputStream openLocalCachedBlock(int blockID) throws IOException {
+        File cachedBlockFile = getLocalCachedBlockFile(blockID);
+        if(cachedBlockFile != null) {
+            LOG.info("read from local cache file");
+            return new FileInputStream(cachedBlockFile);
+        }
+        return null;
+    }
+    
+    /*
+     * Maps the local cache file of the block read-only. The mapping stays
+     * valid after the channel is closed, so reads are served from the page
+     * cache without copying the block onto the heap.
+     */
+    private synchronized SyndicateFSReadBlockData mapLocalCachedBlock(int blockID) {
+        File cachedBlockFile = getLocalCachedBlockFile(blockID);
+        if(cachedBlockFile == null) {
+            return null;
+        }
+        
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(cachedBlockFile, "r");
+            FileChannel channel = raf.getChannel();
+            long mapSize = Math.min(channel.size(), this.blockSize);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, mapSize);
+            LOG.info("mapped local cache file");
+            return new SyndicateFSReadBlockData(BlockUtils.getBlockStartOffset(blockID, this.blockSize), buffer, (int) this.blockSize);
+        } catch (IOException ex) {
+            LOG.info("cannot map local cache file - " + ex.toString());
+            onLocalReadFailure();
+            return null;
+        } finally {
+            if(raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex) {
+                    LOG.error("exception occurred", ex);
+                }
+            }
+        }
+    }
+    
+    protected synchronized InputStream readFileDataBlockInputStream(int blockID) throws IOException {
+        if(blockID < 0) {
+            throw new IllegalArgumentException("blockID must be positive");
+        }
+        
+        InputStream localIS = openLocalCachedBlock(blockID);
+        if(localIS != null) {
+            return localIS;
+        }
         
         // otherwise
+        Future<ClientResponse> readFuture = requestFileDataBlock(blockID);
+        return processReadFileDataBlock(readFuture);
+    }
+    
+    Future<ClientResponse> requestFileDataBlock(int blockID) throws IOException {
+        FileDescriptor fd = getFileDescriptor();
         try {
             SyndicateUGHttpClient client = this.filesystem.getUGRestClient(this.status.getPath().getSessionName());
-            Future<ClientResponse> readFuture = client.read(this.status.getPath().getPathWithoutSession(), this.fileDescriptor, BlockUtils.getBlockStartOffset(blockID, this.blockSize), (int) this.blockSize);
+            Future<ClientResponse> readFuture = client.read(this.status.getPath().getPathWithoutSession(), fd, BlockUtils.getBlockStartOffset(blockID, this.blockSize), (int) this.blockSize);
             if(readFuture != null) {
-                InputStream readIS = client.processRead(readFuture);
-                if(readIS == null) {
-                    LOG.error("failed to read file - " + this.status.getPath().toString());
-                    throw new IOException("failed to read file - " + this.status.getPath().toString());
-                }
-
-                return readIS;
+                return readFuture;
             } else {
                 throw new IOException("Can not process REST operations");
             }
@@ -198,20 +342,110 @@ public class SyndicateFSFileHandle implements Closeable {
         }
     }
     
-    public synchronized SyndicateFSReadBlockData readFileDataBlock(int blockID) throws IOException {
+    InputStream processReadFileDataBlock(Future<ClientResponse> readFuture) throws IOException {
+        try {
+            SyndicateUGHttpClient client = this.filesystem.getUGRestClient(this.status.getPath().getSessionName());
+            InputStream readIS = client.processRead(readFuture);
+            if(readIS == null) {
+                LOG.error("failed to read file - " + this.status.getPath().toString());
+                throw new IOException("failed to read file - " + this.status.getPath().toString());
+            }
+
+            return readIS;
+        } catch (Exception ex) {
+            LOG.error("exception occurred", ex);
+            throw new IOException(ex);
+        }
+    }
+    
+    SyndicateFSReadBlockData makeReadBlockData(int blockID, InputStream is) throws IOException {
+        SyndicateFSBufferPool bufferPool = this.filesystem.getBufferPool();
+        ByteBuffer buffer = bufferPool.lease((int) this.blockSize);
+        if(this.filesystem.getSyndicateFsConfiguration().getStreamingRead()) {
+            // bytes are pulled from the stream as the reader asks for them
+            return new SyndicateFSReadBlockData(BlockUtils.getBlockStartOffset(blockID, this.blockSize), is, buffer, (int) this.blockSize, bufferPool);
+        }
+        
+        try {
+            int dataSize = IOUtils.read(is, buffer, (int) this.blockSize);
+            LOG.info("obtained data for the block " + blockID);
+            
+            SyndicateFSReadBlockData blockData = new SyndicateFSReadBlockData(BlockUtils.getBlockStartOffset(blockID, this.blockSize), buffer, dataSize, (int) this.blockSize, bufferPool);
+            SyndicateFSDiskBlockCache diskCache = this.filesystem.getDiskBlockCache();
+            if(diskCache != null && this.readonly) {
+                diskCache.putAsync(makeBlockKey(blockID), blockData);
+            }
+            return blockData;
+        } catch (IOException ex) {
+            bufferPool.release(buffer);
+            throw ex;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+    
+    /**
+     * Creates a read of the block that is issued when start() is called on
+     * the returned future. Nothing is sent to the gateway here.
+     * 
+     * @param blockID
+     * @return
+     * @throws IOException 
+     */
+    synchronized SyndicateFSReadBlockFuture newReadBlockFuture(int blockID) throws IOException {
         if(this.closed) {
             throw new IOException("File handle is closed");
         }
         
-        LOG.info("reading a block " + blockID);
-        InputStream is = readFileDataBlockInputStream(blockID);
-        LOG.info("obtained an inputStream for the block " + blockID);
-        byte[] buffer = IOUtils.toByteArray(is);
+        if(blockID < 0) {
+            throw new IllegalArgumentException("blockID must be positive");
+        }
         
-        return new SyndicateFSReadBlockData(BlockUtils.getBlockStartOffset(blockID, this.blockSize), buffer, (int) this.blockSize);
+        return new SyndicateFSReadBlockFuture(this, blockID);
     }
     
-    protected synchronized void writeFileDataBlock(int blockID, byte[] buffer, int size) throws IOException {
+    /*
+     * Returns the block mapped from the local gateway cache or read from the
+     * disk cache, or null if neither has it.
+     */
+    SyndicateFSReadBlockData readCachedBlockData(int blockID) {
+        LOG.info("requesting a block " + blockID);
+        SyndicateFSReadBlockData mappedBlockData = mapLocalCachedBlock(blockID);
+        if(mappedBlockData != null) {
+            return mappedBlockData;
+        }
+        
+        SyndicateFSDiskBlockCache diskCache = this.filesystem.getDiskBlockCache();
+        if(diskCache != null && this.readonly) {
+            return diskCache.get(makeBlockKey(blockID), BlockUtils.getBlockStartOffset(blockID, this.blockSize), (int) this.blockSize);
+        }
+        return null;
+    }
+    
+    /**
+     * Issues a read of the block without waiting for the data. A failure to
+     * issue the read is reported by get() of the returned future.
+     * 
+     * @param blockID
+     * @return a future to obtain the block data
+     * @throws IOException 
+     */
+    public SyndicateFSReadBlockFuture readFileDataBlockAsync(int blockID) throws IOException {
+        SyndicateFSReadBlockFuture future = newReadBlockFuture(blockID);
+        future.start();
+        return future;
+    }
+    
+    public SyndicateFSReadBlockData readFileDataBlock(int blockID) throws IOException {
+        SyndicateFSReadBlockFuture future = readFileDataBlockAsync(blockID);
+        try {
+            return future.get();
+        } finally {
+            future.release(true);
+        }
+    }
+    
+    private synchronized Future<ClientResponse> requestWriteFileDataBlock(int blockID, ByteBuffer buffer, int size) throws IOException {
         if(blockID < 0) {
             throw new IllegalArgumentException("blockID must be positive");
         }
@@ -220,16 +454,15 @@ public class SyndicateFSFileHandle implements Closeable {
             throw new IOException("Can not write data to readonly handle");
         }
         
+        FileDescriptor fd = getFileDescriptor();
         try {
             SyndicateUGHttpClient client = this.filesystem.getUGRestClient(this.status.getPath().getSessionName());
-            Future<ClientResponse> writeFuture = client.write(this.status.getPath().getPathWithoutSession(), this.fileDescriptor, BlockUtils.getBlockStartOffset(blockID, this.blockSize), size, buffer);
+            ByteBuffer data = buffer.duplicate();
+            data.position(0);
+            data.limit(size);
+            Future<ClientResponse> writeFuture = client.write(this.status.getPath().getPathWithoutSession(), fd, BlockUtils.getBlockStartOffset(blockID, this.blockSize), size, data);
             if(writeFuture != null) {
-                client.processWrite(writeFuture);
-                if(this.status.getSize() <= BlockUtils.getBlockStartOffset(blockID, this.blockSize) + size) {
-                    this.status.notifySizeChanged(BlockUtils.getBlockStartOffset(blockID, this.blockSize) + size);
-                }
-
-                this.modified = true;
+                return writeFuture;
             } else {
                 throw new IOException("Can not process REST operations");
             }
@@ -239,15 +472,88 @@ public class SyndicateFSFileHandle implements Closeable {
         }
     }
     
+    private void processWriteFileDataBlock(int blockID, Future<ClientResponse> writeFuture, int size) throws IOException {
+        try {
+            SyndicateUGHttpClient client = this.filesystem.getUGRestClient(this.status.getPath().getSessionName());
+            client.processWrite(writeFuture);
+        } catch (Exception ex) {
+            LOG.error("exception occurred", ex);
+            throw new IOException(ex);
+        }
+        
+        synchronized(this) {
+            if(this.status.getSize() <= BlockUtils.getBlockStartOffset(blockID, this.blockSize) + size) {
+                this.status.notifySizeChanged(BlockUtils.getBlockStartOffset(blockID, this.blockSize) + size);
+            }
+
+            this.modified = true;
+        }
+    }
+    
+    protected synchronized void writeFileDataBlock(int blockID, ByteBuffer buffer, int size) throws IOException {
+        Future<ClientResponse> writeFuture = requestWriteFileDataBlock(blockID, buffer, size);
+        processWriteFileDataBlock(blockID, writeFuture, size);
+    }
+    
+    /**
+     * Issues a write of the first size bytes of the buffer without waiting
+     * for the response. The buffer must not be modified until the write is
+     * completed with completeWriteFileDataBlock().
+     * 
+     * @param blockID
+     * @param buffer
+     * @param size
+     * @return a future of the write
+     * @throws IOException 
+     */
+    public synchronized Future<ClientResponse> writeFileDataBlockAsync(int blockID, ByteBuffer buffer, int size) throws IOException {
+        if(this.closed) {
+            throw new IOException("File handle is closed");
+        }
+        
+        LOG.info("writing a block asynchronously " + blockID);
+        return requestWriteFileDataBlock(blockID, buffer, size);
+    }
+    
+    /**
+     * Waits for a write issued by writeFileDataBlockAsync().
+     * 
+     * @param blockID
+     * @param writeFuture
+     * @param size
+     * @throws IOException 
+     */
+    public void completeWriteFileDataBlock(int blockID, Future<ClientResponse> writeFuture, int size) throws IOException {
+        processWriteFileDataBlock(blockID, writeFuture, size);
+    }
+    
     public synchronized void writeFileDataBlockByteArray(int blockID, byte[] buffer, int size) throws IOException {
         if(this.closed) {
             throw new IOException("File handle is closed");
         }
         
         LOG.info("writing a block " + blockID);
-        byte[] bufferCpy = new byte[size];
-        System.arraycopy(buffer, 0, bufferCpy, 0, size);
-        writeFileDataBlock(blockID, bufferCpy, size);
+        writeFileDataBlock(blockID, ByteBuffer.wrap(buffer), size);
+    }
+    
+    /**
+     * Writes the first size bytes of the buffer as a block.
+     * 
+     * The buffer is sent as is, so the caller must not modify it until this
+     * returns.
+     * 
+     * @param blockID
+     * @param buffer
+     * @param size
+     * @throws IOException 
+     */
+    public synchronized void writeFileDataBlockByteBuffer(int blockID, ByteBuffer buffer, int size) throws IOException {
+        if(this.closed) {
+            throw new IOException("File handle is closed");
+        }
+        
+        LOG.info("writing a block " + blockID);
+        writeFileDataBlock(blockID, buffer, size);
     }
     
     public synchronized boolean isOpen() {
@@ -263,6 +569,19 @@ public class SyndicateFSFileHandle implements Closeable {
         if(!this.closed) {
             LOG.info("closing a file");
             
+            if(this.fileDescriptor == null) {
+                // the file was never opened at the gateway if the lazy open failed
+                try {
+                    getFileDescriptor();
+                } catch (IOException ex) {
+                    this.closed = true;
+                    if(this.localCachedBlocks != null) {
+                        this.localCachedBlocks.clear();
+                    }
+                    return;
+                }
+            }
+            
             try {
                 SyndicateUGHttpClient client = this.filesystem.getUGRestClient(this.status.getPath().getSessionName());
                 Future<ClientResponse> closeFuture = client.close(this.status.getPath().getPathWithoutSession(), this.fileDescriptor);
@@ -270,11 +589,6 @@ public class SyndicateFSFileHandle implements Closeable {
                     client.processClose(closeFuture);
                     this.closed = true;
                     
-                    if(this.keepaliveThread != null && this.keepaliveThread.isAlive()) {
-                        this.keepaliveThread.interrupt();
-                    }
-                    this.keepaliveThread = null;
-                    
                     if(!this.readonly) {
                         if(this.modified) {
                             this.status.setDirty();
@@ -290,6 +604,12 @@ public class SyndicateFSFileHandle implements Closeable {
             } catch (Exception ex) {
                 LOG.error("exception occurred", ex);
                 throw new IOException(ex);
+            } finally {
+                // a failed close leaves nothing worth keeping alive
+                if(this.keepaliveEntry != null) {
+                    this.filesystem.getKeepaliveService().unregister(this.keepaliveEntry);
+                    this.keepaliveEntry = null;
+                }
             }
         }
     }
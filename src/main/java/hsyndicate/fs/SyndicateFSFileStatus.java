@@ -18,6 +18,8 @@ package hsyndicate.fs;
 import hsyndicate.rest.datatypes.StatRaw;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
 
 public class SyndicateFSFileStatus {
 
@@ -144,6 +146,24 @@ public class SyndicateFSFileStatus {
         return this.statRaw.getOthersMode();
     }
     
+    private static FsAction parseMode(int mode) {
+        FsAction action = FsAction.NONE;
+        if((mode & 0x04) == 0x04) {
+            action = action.or(FsAction.READ);
+        }
+        if((mode & 0x02) == 0x02) {
+            action = action.or(FsAction.WRITE);
+        }
+        if((mode & 0x01) == 0x01) {
+            action = action.or(FsAction.EXECUTE);
+        }
+        return action;
+    }
+    
+    public synchronized FsPermission getPermission() {
+        return new FsPermission(parseMode(getUserMode()), parseMode(getGroupMode()), parseMode(getOthersMode()));
+    }
+    
     public synchronized String getOwner() {
         if(this.statRaw == null) {
             return DEFAULT_USER_MAPPING;
@@ -0,0 +1,746 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.fs;
+
+import hsyndicate.rest.datatypes.StatRaw;
+import hsyndicate.utils.DateTimeUtils;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * File status cache that can be read and updated by many threads at once.
+ *
+ * An entry lives as long as the read freshness the gateway advertises for
+ * the file, capped at the maximum time-to-live. Files without one use the
+ * default time-to-live.
+ *
+ * An expired entry is not returned by get(), but it is kept for a while so
+ * that a newer status can be checked against it. If the version and the
+ * write and xattr nonces did not change, the cached status is kept and only
+ * its lifetime is extended. Entries that came in with a directory listing
+ * remember the directory, so they can be revalidated together by listing it
+ * again instead of one stat per file.
+ *
+ * Paths known not to exist are remembered as negative entries for a shorter
+ * time, so repeated lookups of a missing path do not all go to the gateway.
+ *
+ * A directory that was listed in full is marked complete. Until the
+ * directory expires or a status of another version arrives for it, a child
+ * that is not in the listing is known not to exist without asking the
+ * gateway. Creates, deletes and renames done through this filesystem update
+ * the listing in place.
+ *
+ * The cache can be bounded by the number of entries and by an estimate of
+ * the heap they take. When a bound is exceeded, expired entries and then
+ * entries not looked up since the clock hand last passed them (CLOCK) are
+ * evicted until the cache is back below 90% of the bound. Counters and
+ * the estimate are exposed through JMX.
+ *
+ * @author iychoi
+ */
+public class SyndicateFSFileStatusCache implements ISyndicateFSFileStatusCacheMXBean {
+
+    // number of puts between sweeps of expired entries
+    private static final int PURGE_INTERVAL = 1024;
+    // eviction brings the cache down to this share of the bounds
+    private static final double EVICTION_LOW_WATERMARK = 0.9;
+    // full turns of the clock hand before giving up, the second one sees no
+    // reference bits set
+    private static final int EVICTION_MAX_TURNS = 2;
+
+    // rough heap usage of the map node and the entry
+    private static final long ENTRY_OVERHEAD = 96;
+    // rough heap usage of a path, its URI and strings, excluding characters
+    private static final long PATH_OVERHEAD = 160;
+    // rough heap usage of a status and its StatRaw, excluding strings
+    private static final long STATUS_OVERHEAD = 320;
+    // rough heap usage of a name in a listing, excluding characters
+    private static final long NAME_OVERHEAD = 80;
+
+    private static class CacheEntry {
+        // null for a path known not to exist
+        private SyndicateFSFileStatus status;
+        // directory whose listing brought the entry, null if it came from a stat
+        private SyndicateFSPath listedBy;
+        private long expireTime;
+        // stale entries are kept for revalidation until this time
+        private long retainTime;
+        private long size;
+        // set on lookup, cleared by eviction sweeps
+        private volatile boolean referenced;
+
+        CacheEntry(SyndicateFSFileStatus status, SyndicateFSPath listedBy, long expireTime, long retainTime, long size) {
+            this.status = status;
+            this.listedBy = listedBy;
+            this.expireTime = expireTime;
+            this.retainTime = retainTime;
+            this.size = size;
+            this.referenced = true;
+        }
+    }
+
+    private static class DirectoryListing {
+        private Set<String> names;
+        private long expireTime;
+        private AtomicLong size;
+
+        DirectoryListing(Set<String> names, long expireTime, long size) {
+            this.names = names;
+            this.expireTime = expireTime;
+            this.size = new AtomicLong(size);
+        }
+    }
+
+    private long timeToLive;
+    private long negativeTimeToLive;
+    private long maxTimeToLive;
+    private long maxEntries;
+    private long maxSize;
+    private ConcurrentMap<SyndicateFSPath, CacheEntry> entries = new ConcurrentHashMap<SyndicateFSPath, CacheEntry>();
+    private ConcurrentMap<SyndicateFSPath, DirectoryListing> listings = new ConcurrentHashMap<SyndicateFSPath, DirectoryListing>();
+    private AtomicInteger putCount = new AtomicInteger(0);
+    private AtomicLong estimatedSize = new AtomicLong(0);
+    private ReentrantLock evictionLock = new ReentrantLock();
+    // guarded by evictionLock
+    private Iterator<Map.Entry<SyndicateFSPath, CacheEntry>> clockHand;
+
+    private AtomicLong hitCount = new AtomicLong(0);
+    private AtomicLong missCount = new AtomicLong(0);
+    private AtomicLong negativeHitCount = new AtomicLong(0);
+    private AtomicLong evictionCount = new AtomicLong(0);
+    private AtomicLong revalidatedCount = new AtomicLong(0);
+    private AtomicLong replacedCount = new AtomicLong(0);
+    private AtomicLong listingMissCount = new AtomicLong(0);
+
+    public SyndicateFSFileStatusCache(long timeToLive) {
+        this(timeToLive, 0);
+    }
+
+    public SyndicateFSFileStatusCache(long timeToLive, long negativeTimeToLive) {
+        this(timeToLive, negativeTimeToLive, timeToLive);
+    }
+
+    public SyndicateFSFileStatusCache(long timeToLive, long negativeTimeToLive, long maxTimeToLive) {
+        this(timeToLive, negativeTimeToLive, maxTimeToLive, 0, 0);
+    }
+
+    /**
+     * @param timeToLive
+     * @param negativeTimeToLive
+     * @param maxTimeToLive
+     * @param maxEntries maximum number of entries, 0 for no limit
+     * @param maxSize maximum estimated heap usage in bytes, 0 for no limit
+     */
+    public SyndicateFSFileStatusCache(long timeToLive, long negativeTimeToLive, long maxTimeToLive, long maxEntries, long maxSize) {
+        if(timeToLive < 0) {
+            throw new IllegalArgumentException("timeToLive must not be negative");
+        }
+
+        if(negativeTimeToLive < 0) {
+            throw new IllegalArgumentException("negativeTimeToLive must not be negative");
+        }
+
+        if(maxTimeToLive < timeToLive) {
+            throw new IllegalArgumentException("maxTimeToLive must not be less than timeToLive");
+        }
+
+        if(maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries must not be negative");
+        }
+
+        if(maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must not be negative");
+        }
+
+        this.timeToLive = timeToLive;
+        this.negativeTimeToLive = negativeTimeToLive;
+        this.maxTimeToLive = maxTimeToLive;
+        this.maxEntries = maxEntries;
+        this.maxSize = maxSize;
+    }
+
+    public long getTimeToLive() {
+        return this.timeToLive;
+    }
+
+    public long getNegativeTimeToLive() {
+        return this.negativeTimeToLive;
+    }
+
+    public long getMaxTimeToLive() {
+        return this.maxTimeToLive;
+    }
+
+    /**
+     * Returns the time-to-live of the status. This is the read freshness
+     * advertised by the gateway in milliseconds, capped at the maximum.
+     *
+     * @param status
+     * @return
+     */
+    private long getTimeToLive(SyndicateFSFileStatus status) {
+        StatRaw statRaw = status.getStatRaw();
+        if(statRaw != null && statRaw.getMaxReadFreshness() > 0) {
+            return Math.min(statRaw.getMaxReadFreshness(), this.maxTimeToLive);
+        }
+        return this.timeToLive;
+    }
+
+    private static long estimateSize(SyndicateFSPath path, SyndicateFSFileStatus status) {
+        // the path string is kept by the URI and its parsed path
+        long size = ENTRY_OVERHEAD + PATH_OVERHEAD + 4L * path.getPath().length();
+        if(status != null) {
+            StatRaw statRaw = status.getStatRaw();
+            size += STATUS_OVERHEAD;
+            if(statRaw != null && statRaw.getName() != null) {
+                size += 2L * statRaw.getName().length();
+            }
+        }
+        return size;
+    }
+
+    private static long estimateNameSize(String name) {
+        return NAME_OVERHEAD + 2L * name.length();
+    }
+
+    private void putEntry(SyndicateFSPath path, CacheEntry entry) {
+        CacheEntry previous = this.entries.put(path, entry);
+        this.estimatedSize.addAndGet(entry.size - (previous == null ? 0 : previous.size));
+
+        if(this.putCount.incrementAndGet() % PURGE_INTERVAL == 0) {
+            purge();
+        }
+        evictIfNeeded();
+    }
+
+    private boolean removeEntry(SyndicateFSPath path, CacheEntry entry) {
+        if(this.entries.remove(path, entry)) {
+            this.estimatedSize.addAndGet(-entry.size);
+            // a listing is not kept without the status of the directory
+            removeListing(path);
+            return true;
+        }
+        return false;
+    }
+
+    private void putListing(SyndicateFSPath path, DirectoryListing listing) {
+        DirectoryListing previous = this.listings.put(path, listing);
+        this.estimatedSize.addAndGet(listing.size.get() - (previous == null ? 0 : previous.size.get()));
+        evictIfNeeded();
+    }
+
+    private boolean removeListing(SyndicateFSPath path, DirectoryListing listing) {
+        if(this.listings.remove(path, listing)) {
+            this.estimatedSize.addAndGet(-listing.size.get());
+            return true;
+        }
+        return false;
+    }
+
+    private CacheEntry getEntry(SyndicateFSPath path) {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        CacheEntry entry = this.entries.get(path);
+        if(entry == null) {
+            return null;
+        }
+
+        long now = DateTimeUtils.getCurrentTime();
+        if(entry.expireTime <= now) {
+            if(entry.retainTime <= now) {
+                // remove only if nobody replaced it
+                removeEntry(path, entry);
+            }
+            return null;
+        }
+        return entry;
+    }
+
+    public SyndicateFSFileStatus get(SyndicateFSPath path) {
+        CacheEntry entry = getEntry(path);
+        if(entry == null || entry.status == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        entry.referenced = true;
+        this.hitCount.incrementAndGet();
+        return entry.status;
+    }
+
+    /**
+     * Same as get(), but does not count as a lookup.
+     *
+     * @param path
+     * @return
+     */
+    public SyndicateFSFileStatus peek(SyndicateFSPath path) {
+        CacheEntry entry = getEntry(path);
+        if(entry == null) {
+            return null;
+        }
+        return entry.status;
+    }
+
+    /**
+     * Returns true if the path is known not to exist.
+     *
+     * @param path
+     * @return
+     */
+    public boolean isMissing(SyndicateFSPath path) {
+        CacheEntry entry = getEntry(path);
+        if(entry != null) {
+            if(entry.status == null) {
+                entry.referenced = true;
+                this.negativeHitCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        SyndicateFSPath parent = path.getParent();
+        if(parent == null) {
+            return false;
+        }
+
+        DirectoryListing listing = getListing(parent);
+        if(listing != null && !listing.names.contains(path.getName())) {
+            this.negativeHitCount.incrementAndGet();
+            this.listingMissCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private DirectoryListing getListing(SyndicateFSPath path) {
+        DirectoryListing listing = this.listings.get(path);
+        if(listing == null) {
+            return null;
+        }
+
+        if(listing.expireTime <= DateTimeUtils.getCurrentTime()) {
+            removeListing(path, listing);
+            return null;
+        }
+        return listing;
+    }
+
+    /**
+     * Marks the directory complete with the given children. The listing
+     * lives as long as the cached status of the directory, and is not kept
+     * if the directory is not cached.
+     *
+     * @param path
+     * @param children full listing of the directory
+     */
+    public void putListing(SyndicateFSPath path, SyndicateFSFileStatus[] children) {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        if(children == null) {
+            throw new IllegalArgumentException("children is null");
+        }
+
+        CacheEntry entry = this.entries.get(path);
+        if(entry == null || entry.status == null || !entry.status.isDirectory()) {
+            return;
+        }
+
+        long expireTime = DateTimeUtils.getCurrentTime() + getTimeToLive(entry.status);
+        Set<String> names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        long size = 0;
+        for(SyndicateFSFileStatus child : children) {
+            String name = child.getPath().getName();
+            if(names.add(name)) {
+                size += estimateNameSize(name);
+            }
+        }
+        putListing(path, new DirectoryListing(names, expireTime, size));
+    }
+
+    /**
+     * Adds the path to the listing of its parent, if the parent is complete.
+     *
+     * @param path
+     */
+    public void addToListing(SyndicateFSPath path) {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        SyndicateFSPath parent = path.getParent();
+        if(parent == null) {
+            return;
+        }
+
+        DirectoryListing listing = this.listings.get(parent);
+        if(listing != null && listing.names.add(path.getName())) {
+            long size = estimateNameSize(path.getName());
+            listing.size.addAndGet(size);
+            this.estimatedSize.addAndGet(size);
+        }
+    }
+
+    /**
+     * Removes the path from the listing of its parent, if the parent is
+     * complete.
+     *
+     * @param path
+     */
+    public void removeFromListing(SyndicateFSPath path) {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        SyndicateFSPath parent = path.getParent();
+        if(parent == null) {
+            return;
+        }
+
+        DirectoryListing listing = this.listings.get(parent);
+        if(listing != null && listing.names.remove(path.getName())) {
+            long size = estimateNameSize(path.getName());
+            listing.size.addAndGet(-size);
+            this.estimatedSize.addAndGet(-size);
+        }
+    }
+
+    /**
+     * Forgets that the directory is complete, e.g. when a change to it may
+     * or may not have been made.
+     *
+     * @param path
+     */
+    public void removeListing(SyndicateFSPath path) {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        DirectoryListing listing = this.listings.get(path);
+        if(listing != null) {
+            removeListing(path, listing);
+        }
+    }
+
+    /**
+     * Returns the directory to list to revalidate the expired status of the
+     * path, or null if the status did not come from a directory listing or
+     * is not cached at all.
+     *
+     * @param path
+     * @return
+     */
+    public SyndicateFSPath getRevalidationDirectory(SyndicateFSPath path) {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        CacheEntry entry = this.entries.get(path);
+        if(entry == null || entry.status == null) {
+            return null;
+        }
+        return entry.listedBy;
+    }
+
+    private static boolean isSameVersion(SyndicateFSFileStatus cached, SyndicateFSFileStatus fresh) {
+        if(cached.isDirty()) {
+            return false;
+        }
+
+        StatRaw cachedRaw = cached.getStatRaw();
+        StatRaw freshRaw = fresh.getStatRaw();
+        if(cachedRaw == null || freshRaw == null) {
+            return false;
+        }
+
+        return cachedRaw.getVersion() == freshRaw.getVersion()
+                && cachedRaw.getWriteNonce() == freshRaw.getWriteNonce()
+                && cachedRaw.getXattrNonce() == freshRaw.getXattrNonce()
+                && cachedRaw.getManifestMtimeSec() == freshRaw.getManifestMtimeSec()
+                && cachedRaw.getManifestMtimeNsec() == freshRaw.getManifestMtimeNsec()
+                && cachedRaw.getSize() == freshRaw.getSize();
+    }
+
+    public SyndicateFSFileStatus put(SyndicateFSPath path, SyndicateFSFileStatus status) {
+        return put(path, status, null);
+    }
+
+    /**
+     * Caches the status read from the gateway. If the cached status, fresh or
+     * stale, has the same version, it is kept and its lifetime is extended.
+     *
+     * @param path
+     * @param status
+     * @param listedBy directory whose listing returned the status, or null
+     * @return the status in the cache, which the caller should use
+     */
+    public SyndicateFSFileStatus put(SyndicateFSPath path, SyndicateFSFileStatus status, SyndicateFSPath listedBy) {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        if(status == null) {
+            throw new IllegalArgumentException("status is null");
+        }
+
+        long now = DateTimeUtils.getCurrentTime();
+        long ttl = getTimeToLive(status);
+        long expireTime = now + ttl;
+        // keep stale entries around for another lifetime
+        long retainTime = expireTime + Math.max(ttl, this.timeToLive);
+
+        SyndicateFSFileStatus cachedStatus = status;
+        CacheEntry existing = this.entries.get(path);
+        if(existing != null && existing.status != null) {
+            if(isSameVersion(existing.status, status)) {
+                cachedStatus = existing.status;
+                this.revalidatedCount.incrementAndGet();
+            } else {
+                this.replacedCount.incrementAndGet();
+                // the directory changed behind us
+                removeListing(path);
+            }
+        }
+
+        putEntry(path, new CacheEntry(cachedStatus, listedBy, expireTime, retainTime, estimateSize(path, cachedStatus)));
+        return cachedStatus;
+    }
+
+    /**
+     * Remembers that the path does not exist.
+     *
+     * @param path
+     */
+    public void putMissing(SyndicateFSPath path) {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        if(this.negativeTimeToLive <= 0) {
+            return;
+        }
+
+        long expireTime = DateTimeUtils.getCurrentTime() + this.negativeTimeToLive;
+        putEntry(path, new CacheEntry(null, null, expireTime, expireTime, estimateSize(path, null)));
+    }
+
+    public void remove(SyndicateFSPath path) {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        CacheEntry entry = this.entries.get(path);
+        if(entry != null) {
+            removeEntry(path, entry);
+        }
+        removeListing(path);
+    }
+
+    private static boolean isUnder(SyndicateFSPath path, String prefix) {
+        String p = path.getPath();
+        if(!p.startsWith(prefix)) {
+            return false;
+        }
+        return p.length() == prefix.length() || prefix.endsWith("/") || p.charAt(prefix.length()) == '/';
+    }
+
+    /**
+     * Drops the path and everything cached under it, and removes the path
+     * from the listing of its parent.
+     *
+     * @param path
+     */
+    public void removeTree(SyndicateFSPath path) {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        String prefix = path.getPath();
+        for(Map.Entry<SyndicateFSPath, CacheEntry> entry : this.entries.entrySet()) {
+            if(isUnder(entry.getKey(), prefix)) {
+                removeEntry(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for(Map.Entry<SyndicateFSPath, DirectoryListing> listing : this.listings.entrySet()) {
+            if(isUnder(listing.getKey(), prefix)) {
+                removeListing(listing.getKey(), listing.getValue());
+            }
+        }
+
+        removeFromListing(path);
+    }
+
+    /**
+     * Drops expired entries that are no longer kept for revalidation.
+     */
+    public void purge() {
+        long now = DateTimeUtils.getCurrentTime();
+        for(Map.Entry<SyndicateFSPath, CacheEntry> entry : this.entries.entrySet()) {
+            if(entry.getValue().retainTime <= now) {
+                removeEntry(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for(Map.Entry<SyndicateFSPath, DirectoryListing> listing : this.listings.entrySet()) {
+            if(listing.getValue().expireTime <= now) {
+                removeListing(listing.getKey(), listing.getValue());
+            }
+        }
+    }
+
+    private boolean isOverLimit(double ratio) {
+        if(this.maxEntries > 0 && this.entries.size() > this.maxEntries * ratio) {
+            return true;
+        }
+        return this.maxSize > 0 && this.estimatedSize.get() > this.maxSize * ratio;
+    }
+
+    private void evictIfNeeded() {
+        if(!isOverLimit(1.0)) {
+            return;
+        }
+
+        // one thread sweeps at a time, the others go on
+        if(!this.evictionLock.tryLock()) {
+            return;
+        }
+
+        try {
+            long now = DateTimeUtils.getCurrentTime();
+            long maxSteps = (long) EVICTION_MAX_TURNS * this.entries.size();
+            for(long step=0;step<maxSteps && isOverLimit(EVICTION_LOW_WATERMARK);step++) {
+                if(this.clockHand == null || !this.clockHand.hasNext()) {
+                    // wrap around
+                    this.clockHand = this.entries.entrySet().iterator();
+                    if(!this.clockHand.hasNext()) {
+                        break;
+                    }
+                }
+
+                Map.Entry<SyndicateFSPath, CacheEntry> entry = this.clockHand.next();
+                CacheEntry value = entry.getValue();
+                if(value.retainTime <= now) {
+                    removeEntry(entry.getKey(), value);
+                } else if(value.expireTime <= now || !value.referenced) {
+                    if(removeEntry(entry.getKey(), value)) {
+                        this.evictionCount.incrementAndGet();
+                    }
+                } else {
+                    // second chance
+                    value.referenced = false;
+                }
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    @Override
+    public long getEntryCount() {
+        return this.entries.size();
+    }
+
+    @Override
+    public long getListingCount() {
+        return this.listings.size();
+    }
+
+    @Override
+    public long getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        return this.estimatedSize.get();
+    }
+
+    @Override
+    public long getMaxSize() {
+        return this.maxSize;
+    }
+
+    @Override
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    @Override
+    public long getNegativeHitCount() {
+        return this.negativeHitCount.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    @Override
+    public long getRevalidatedCount() {
+        return this.revalidatedCount.get();
+    }
+
+    @Override
+    public long getReplacedCount() {
+        return this.replacedCount.get();
+    }
+
+    @Override
+    public long getListingMissCount() {
+        return this.listingMissCount.get();
+    }
+
+    public void clear() {
+        this.evictionLock.lock();
+        try {
+            this.clockHand = null;
+        } finally {
+            this.evictionLock.unlock();
+        }
+        this.entries.clear();
+        this.listings.clear();
+        this.estimatedSize.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SyndicateFSFileStatusCache - entries(%d/%d), listings(%d), size(%d/%d), hits(%d), misses(%d), negativeHits(%d), evictions(%d), revalidated(%d), replaced(%d), listingMisses(%d)",
+                this.entries.size(), this.maxEntries, this.listings.size(), this.estimatedSize.get(), this.maxSize,
+                this.hitCount.get(), this.missCount.get(), this.negativeHitCount.get(), this.evictionCount.get(),
+                this.revalidatedCount.get(), this.replacedCount.get(), this.listingMissCount.get());
+    }
+}
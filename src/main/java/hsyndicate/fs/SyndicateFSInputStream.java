@@ -15,11 +15,18 @@
 */
 package hsyndicate.fs;
 
+import hsyndicate.utils.BlockBitmap;
 import hsyndicate.utils.BlockUtils;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import org.apache.commons.collections4.map.LRUMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -28,17 +35,79 @@ public class SyndicateFSInputStream extends InputStream {
     private static final Log LOG = LogFactory.getLog(SyndicateFSInputStream.class);
     
     private SyndicateFSFileHandle handle;
+    // handles of the file at each gateway blocks are read from, the first is the handle above
+    private List<SyndicateFSFileHandle> stripeHandles = new ArrayList<SyndicateFSFileHandle>();
+    private List<BlockBitmap> stripeBitmaps = new ArrayList<BlockBitmap>();
     private long offset;
     private long size;
-    private boolean closed;
-    private Map<Integer, SyndicateFSReadBlockData> cachedBlockData = new LRUMap<Integer, SyndicateFSReadBlockData>(10);
+    private volatile boolean closed;
+    // guards block maps - held only briefly, never while waiting for data
+    private final Object blockLock = new Object();
+    private SyndicateFSBlockCache blockCache;
+    // block under the stream position, kept even if evicted from the shared cache
+    private SyndicateFSReadBlockData currentBlockData;
+    private int currentBlockID;
+    // false while the current block is a streamed block left out of the cache
+    private boolean currentBlockCached;
+    private Map<Integer, SyndicateFSReadBlockFuture> readAheadBlocks = new HashMap<Integer, SyndicateFSReadBlockFuture>();
+    private Map<Integer, SyndicateFSReadBlockFuture> inflightBlocks = new HashMap<Integer, SyndicateFSReadBlockFuture>();
+    private List<SyndicateFSReadBlockFuture> cancelledBlocks = new ArrayList<SyndicateFSReadBlockFuture>();
+    private int maxReadAheadWindow;
+    private int gatewayReadAheadWindow;
+    private int readAheadWindow;
+    private int lastBlockID;
     
     SyndicateFSInputStream(SyndicateFSFileHandle handle) {
+        this(handle, 0);
+    }
+    
+    SyndicateFSInputStream(SyndicateFSFileHandle handle, int maxReadAheadWindow) {
+        this(handle, maxReadAheadWindow, new ArrayList<SyndicateFSFileHandle>(), new ArrayList<BlockBitmap>());
+    }
+    
+    /**
+     * Creates a stream that reads blocks from several gateways.
+     * 
+     * @param handle handle of the file at the gateway of the file system
+     * @param maxReadAheadWindow read-ahead blocks per gateway
+     * @param stripeHandles handles of the same file version at other gateways
+     * @param bitmaps cache bitmap of each gateway, the handle first and then
+     * the stripe handles, may contain null
+     */
+    SyndicateFSInputStream(SyndicateFSFileHandle handle, int maxReadAheadWindow, List<SyndicateFSFileHandle> stripeHandles, List<BlockBitmap> bitmaps) {
         this.handle = handle;
+        this.stripeHandles.add(handle);
+        this.stripeHandles.addAll(stripeHandles);
+        for(int i=0;i<this.stripeHandles.size();i++) {
+            this.stripeBitmaps.add(i < bitmaps.size() ? bitmaps.get(i) : null);
+        }
+        this.blockCache = handle.getFileSystem().getBlockCache();
         
         this.offset = 0;
         this.size = handle.getStatus().getSize();
         this.closed = false;
+        
+        if(this.stripeHandles.size() > 1) {
+            // blocks are fetched in parallel only through read-ahead
+            this.gatewayReadAheadWindow = Math.max(1, maxReadAheadWindow);
+            this.maxReadAheadWindow = this.gatewayReadAheadWindow * this.stripeHandles.size();
+        } else {
+            this.gatewayReadAheadWindow = Math.max(0, maxReadAheadWindow);
+            this.maxReadAheadWindow = this.gatewayReadAheadWindow;
+        }
+        this.readAheadWindow = 0;
+        this.lastBlockID = -1;
+        this.currentBlockData = null;
+        this.currentBlockID = -1;
+    }
+    
+    /**
+     * Returns the size of the file when the stream was opened.
+     * 
+     * @return 
+     */
+    public long getSize() {
+        return this.size;
     }
     
     public long getPos() throws IOException {
@@ -65,6 +134,8 @@ public class SyndicateFSInputStream extends InputStream {
         } else {
             this.offset = l;
         }
+        
+        onSeek();
     }
     
     @Override
@@ -85,13 +156,294 @@ public class SyndicateFSInputStream extends InputStream {
         long lavailable = this.size - this.offset;
         if(l >= lavailable) {
             this.offset = this.size;
+            onSeek();
             return lavailable;
         } else {
             this.offset += l;
+            onSeek();
             return l;
         }
     }
     
+    private synchronized void onSeek() {
+        if(this.lastBlockID < 0) {
+            return;
+        }
+        
+        int blockSize = (int) this.handle.getStatus().getBlockSize();
+        int blockID = BlockUtils.getBlockID(this.offset, blockSize);
+        if(blockID == this.lastBlockID || blockID == this.lastBlockID + 1) {
+            // still sequential
+            return;
+        }
+        
+        // random access - drop blocks read ahead outside of the shrunk window
+        cancelReadAhead(blockID, blockID + this.readAheadWindow / 2);
+    }
+    
+    private void cancelReadAhead(int startBlockID, int endBlockID) {
+        synchronized(this.blockLock) {
+            Iterator<Map.Entry<Integer, SyndicateFSReadBlockFuture>> iter = this.readAheadBlocks.entrySet().iterator();
+            while(iter.hasNext()) {
+                Map.Entry<Integer, SyndicateFSReadBlockFuture> entry = iter.next();
+                int blockID = entry.getKey();
+                if(blockID < startBlockID || blockID > endBlockID) {
+                    SyndicateFSReadBlockFuture future = entry.getValue();
+                    if(!future.cancel()) {
+                        this.cancelledBlocks.add(future);
+                    }
+                    iter.remove();
+                }
+            }
+        }
+    }
+    
+    private void releaseCancelledBlocks(boolean wait) {
+        synchronized(this.blockLock) {
+            Iterator<SyndicateFSReadBlockFuture> iter = this.cancelledBlocks.iterator();
+            while(iter.hasNext()) {
+                SyndicateFSReadBlockFuture future = iter.next();
+                if(future.release(wait)) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+    
+    private SyndicateFSBlockCache.BlockKey makeBlockKey(int blockID) {
+        return this.handle.makeBlockKey(blockID);
+    }
+    
+    /*
+     * Creates a read of the block on a gateway that has it cached, unless
+     * those already have a full read-ahead window in flight, then on the
+     * least busy gateway. The read is issued by start() once the block lock
+     * is released. Called with the block lock.
+     */
+    private SyndicateFSReadBlockFuture newReadFuture(int blockID) throws IOException {
+        return selectHandle(blockID).newReadBlockFuture(blockID);
+    }
+    
+    /*
+     * Drops the gateway of a failed read so that the block is requested from
+     * the other gateways. Returns false if the read was sent through the
+     * gateway of the file system, which cannot be dropped.
+     */
+    private boolean dropFailedStripe(int blockID, SyndicateFSReadBlockFuture future, IOException cause) {
+        SyndicateFSFileHandle stripeHandle = future.getHandle();
+        if(stripeHandle == this.handle) {
+            return false;
+        }
+        
+        boolean dropped = false;
+        synchronized(this.blockLock) {
+            int index = this.stripeHandles.indexOf(stripeHandle);
+            if(index >= 0) {
+                this.stripeHandles.remove(index);
+                this.stripeBitmaps.remove(index);
+                dropped = true;
+            }
+            
+            if(this.inflightBlocks.get(blockID) == future) {
+                this.inflightBlocks.remove(blockID);
+            }
+        }
+        
+        if(dropped) {
+            LOG.info("dropping a gateway that failed to read the file - " + stripeHandle.getFileSystem().getSyndicateFsConfiguration().getAddress(), cause);
+            try {
+                stripeHandle.close();
+            } catch (IOException ex) {
+                LOG.error("exception occurred", ex);
+            }
+        }
+        return true;
+    }
+    
+    private SyndicateFSFileHandle selectHandle(int blockID) {
+        int handles = this.stripeHandles.size();
+        if(handles == 1) {
+            return this.handle;
+        }
+        
+        // blocks requested from each gateway and not yet consumed
+        int[] loads = new int[handles];
+        countLoads(this.readAheadBlocks.values(), loads);
+        countLoads(this.inflightBlocks.values(), loads);
+        
+        int cachedSelected = -1;
+        int anySelected = -1;
+        for(int i=0;i<handles;i++) {
+            // start from a different gateway per block to break ties evenly
+            int index = (blockID + i) % handles;
+            BlockBitmap bitmap = this.stripeBitmaps.get(index);
+            if(bitmap != null && bitmap.isPresent(blockID)) {
+                if(cachedSelected < 0 || loads[index] < loads[cachedSelected]) {
+                    cachedSelected = index;
+                }
+            }
+            
+            if(anySelected < 0 || loads[index] < loads[anySelected]) {
+                anySelected = index;
+            }
+        }
+        
+        if(cachedSelected >= 0 && (loads[cachedSelected] < this.gatewayReadAheadWindow || loads[cachedSelected] <= loads[anySelected])) {
+            return this.stripeHandles.get(cachedSelected);
+        }
+        return this.stripeHandles.get(anySelected);
+    }
+    
+    private void countLoads(Collection<SyndicateFSReadBlockFuture> futures, int[] loads) {
+        for(SyndicateFSReadBlockFuture future : futures) {
+            int index = this.stripeHandles.indexOf(future.getHandle());
+            if(index >= 0) {
+                loads[index]++;
+            }
+        }
+    }
+    
+    private synchronized void readAhead(int blockID) throws IOException {
+        if(this.maxReadAheadWindow <= 0) {
+            return;
+        }
+        
+        if(blockID == this.lastBlockID) {
+            return;
+        }
+        
+        if(blockID == this.lastBlockID + 1) {
+            // sequential access - grow the window
+            if(this.readAheadWindow == 0) {
+                this.readAheadWindow = 1;
+            } else {
+                this.readAheadWindow = Math.min(this.readAheadWindow * 2, this.maxReadAheadWindow);
+            }
+        } else {
+            // random access - shrink the window
+            this.readAheadWindow = this.readAheadWindow / 2;
+        }
+        this.lastBlockID = blockID;
+        
+        cancelReadAhead(blockID + 1, blockID + this.readAheadWindow);
+        releaseCancelledBlocks(false);
+        
+        int blockSize = (int) this.handle.getStatus().getBlockSize();
+        int blocks = BlockUtils.getBlocks(this.size, blockSize);
+        List<SyndicateFSReadBlockFuture> issued = new ArrayList<SyndicateFSReadBlockFuture>();
+        synchronized(this.blockLock) {
+            for(int i=1;i<=this.readAheadWindow;i++) {
+                int readAheadBlockID = blockID + i;
+                if(readAheadBlockID >= blocks) {
+                    break;
+                }
+
+                if(this.blockCache.contains(makeBlockKey(readAheadBlockID)) 
+                        || this.readAheadBlocks.containsKey(readAheadBlockID)
+                        || this.inflightBlocks.containsKey(readAheadBlockID)) {
+                    continue;
+                }
+
+                SyndicateFSReadBlockFuture future = newReadFuture(readAheadBlockID);
+                this.readAheadBlocks.put(readAheadBlockID, future);
+                issued.add(future);
+            }
+        }
+        
+        for(SyndicateFSReadBlockFuture future : issued) {
+            future.start();
+        }
+    }
+    
+    private synchronized SyndicateFSReadBlockData getBlockData(int blockID) throws IOException {
+        if(this.currentBlockData != null && this.currentBlockID == blockID) {
+            return this.currentBlockData;
+        }
+        
+        SyndicateFSReadBlockData blockData = fetchBlockData(blockID);
+        if(this.currentBlockData != null) {
+            // a streamed block can be shared once it has been read to the end
+            if(!this.currentBlockCached && this.currentBlockData.isFullyBufferred() && !this.currentBlockData.isFailed()) {
+                this.blockCache.put(makeBlockKey(this.currentBlockID), this.currentBlockData);
+            }
+            this.currentBlockData.release();
+        }
+        this.currentBlockData = blockData;
+        this.currentBlockID = blockID;
+        this.currentBlockCached = blockData.isFullyBufferred();
+        
+        readAhead(blockID);
+        return blockData;
+    }
+    
+    /*
+     * Returns the block data without touching the stream position.
+     * Concurrent callers asking for the same block share one request.
+     * The returned reference must be released by the caller.
+     */
+    private SyndicateFSReadBlockData fetchBlockData(int blockID) throws IOException {
+        SyndicateFSBlockCache.BlockKey key = makeBlockKey(blockID);
+        while(true) {
+            SyndicateFSReadBlockFuture future;
+            boolean created = false;
+            synchronized(this.blockLock) {
+                SyndicateFSReadBlockData blockData = this.blockCache.get(key);
+                if(blockData != null) {
+                    return blockData;
+                }
+
+                future = this.inflightBlocks.get(blockID);
+                if(future == null) {
+                    future = this.readAheadBlocks.remove(blockID);
+                    if(future == null) {
+                        future = newReadFuture(blockID);
+                        created = true;
+                    }
+                    this.inflightBlocks.put(blockID, future);
+                }
+                future.acquire();
+            }
+            
+            if(created) {
+                // other callers of the block wait in get() until it is issued
+                future.start();
+            }
+
+            boolean lastWaiter = false;
+            try {
+                SyndicateFSReadBlockData blockData = future.get();
+                if(blockData.isFullyBufferred()) {
+                    // a streamed block holds its connection until it is read to
+                    // the end, so it is not kept in the shared cache before that
+                    this.blockCache.put(key, blockData);
+                }
+                return blockData;
+            } catch (IOException ex) {
+                if(!dropFailedStripe(blockID, future, ex)) {
+                    throw ex;
+                }
+            } finally {
+                synchronized(this.blockLock) {
+                    if(future.releaseWaiter()) {
+                        if(this.inflightBlocks.get(blockID) == future) {
+                            this.inflightBlocks.remove(blockID);
+                        }
+                        lastWaiter = true;
+                    }
+                }
+
+                if(lastWaiter) {
+                    // nobody else can reach the future now
+                    if(!future.release(false)) {
+                        synchronized(this.blockLock) {
+                            this.cancelledBlocks.add(future);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
     @Override
     public synchronized int available() throws IOException {
         if(this.closed) {
@@ -103,16 +455,8 @@ public class SyndicateFSInputStream extends InputStream {
         int blockID = BlockUtils.getBlockID(this.offset, blockSize);
         int blockOffset = (int) (this.offset - BlockUtils.getBlockStartOffset(blockID, blockSize));
         
-        SyndicateFSReadBlockData blockData = this.cachedBlockData.get(blockID);
-        if(blockData != null) {
-            if(blockData.getBufferredSize() - blockOffset == 0) {
-                return blockSize - blockOffset;
-            } else {
-                return blockData.getBufferredSize() - blockOffset;
-            }
-        } else {
-            return blockSize - blockOffset;
-        }
+        // remaining bytes of the current block
+        return (int) Math.min(blockSize - blockOffset, this.size - this.offset);
     }
     
     @Override
@@ -131,11 +475,7 @@ public class SyndicateFSInputStream extends InputStream {
             int blockOffset = (int) (this.offset - BlockUtils.getBlockStartOffset(blockID, blockSize));
 
             //LOG.info("read - offset(" + this.offset + "), blockId(" + blockID + "), blockOffset(" + blockOffset + ")");
-            SyndicateFSReadBlockData blockData = this.cachedBlockData.get(blockID);
-            if(blockData == null) {
-                blockData = this.handle.readFileDataBlock(blockID);
-                this.cachedBlockData.put(blockID, blockData);
-            }
+            SyndicateFSReadBlockData blockData = getBlockData(blockID);
 
             int read = blockData.getData(blockOffset, buffer, readLen);
             if(read <= 0) {
@@ -168,11 +508,7 @@ public class SyndicateFSInputStream extends InputStream {
                 int blockOffset = (int) (this.offset - BlockUtils.getBlockStartOffset(blockID, blockSize));
             
                 //LOG.info("read - offset(" + this.offset + "), blockId(" + blockID + "), blockOffset(" + blockOffset + ")");
-                SyndicateFSReadBlockData blockData = this.cachedBlockData.get(blockID);
-                if(blockData == null) {
-                    blockData = this.handle.readFileDataBlock(blockID);
-                    this.cachedBlockData.put(blockID, blockData);
-                }
+                SyndicateFSReadBlockData blockData = getBlockData(blockID);
                 
                 int toCopy = Math.min(Math.min(readLen - totalReadLen, blockSize), blockSize - blockOffset);
                 int read = blockData.getData(blockOffset, bytes, totalReadLen, toCopy);
@@ -208,11 +544,7 @@ public class SyndicateFSInputStream extends InputStream {
                 int blockOffset = (int) (this.offset - BlockUtils.getBlockStartOffset(blockID, blockSize));
             
                 //LOG.info(String.format("read - offset(%d), blockId(%d), blockOffset(%d)", this.offset, blockID, blockOffset));
-                SyndicateFSReadBlockData blockData = this.cachedBlockData.get(blockID);
-                if(blockData == null) {
-                    blockData = this.handle.readFileDataBlock(blockID);
-                    this.cachedBlockData.put(blockID, blockData);
-                }
+                SyndicateFSReadBlockData blockData = getBlockData(blockID);
                 
                 int toCopy = Math.min(Math.min(readLen - totalReadLen, blockSize), blockSize - blockOffset);
                 int read = blockData.getData(blockOffset, bytes, off + totalReadLen, toCopy);
@@ -231,18 +563,159 @@ public class SyndicateFSInputStream extends InputStream {
         }
     }
     
+    /**
+     * Reads data into the buffer, up to its remaining space.
+     * 
+     * @param buffer
+     * @return the number of bytes read, or -1 at the end of the file
+     * @throws IOException 
+     */
+    public synchronized int read(ByteBuffer buffer) throws IOException {
+        if(this.closed) {
+            LOG.error("InputStream is already closed");
+            throw new IOException("InputStream is already closed");
+        }
+        
+        int readLen = (int) Math.min(this.handle.getStatus().getSize() - this.offset, buffer.remaining());
+        if(readLen > 0) {
+            int totalReadLen = 0;
+            int blockSize = (int) this.handle.getStatus().getBlockSize();
+            
+            while(totalReadLen < readLen) {
+                int blockID = BlockUtils.getBlockID(this.offset, blockSize);
+                int blockOffset = (int) (this.offset - BlockUtils.getBlockStartOffset(blockID, blockSize));
+                
+                SyndicateFSReadBlockData blockData = getBlockData(blockID);
+                
+                int toCopy = Math.min(readLen - totalReadLen, blockSize - blockOffset);
+                int read = blockData.getData(blockOffset, buffer, toCopy);
+                if(read <= 0) {
+                    // EOF
+                    break;
+                }
+
+                this.offset += read;
+                totalReadLen += read;
+            }
+            
+            if(totalReadLen == 0) {
+                return -1;
+            }
+            return totalReadLen;
+        } else if(buffer.remaining() == 0) {
+            return 0;
+        } else {
+            // EOF
+            return -1;
+        }
+    }
+    
+    /**
+     * Reads data at the given position without changing the stream position.
+     * 
+     * Unlike the sequential read methods, this does not hold the stream lock,
+     * so multiple threads can read the same stream concurrently.
+     * 
+     * @param position
+     * @param bytes
+     * @param off
+     * @param len
+     * @return the number of bytes read, or -1 at the end of the file
+     * @throws IOException 
+     */
+    public int read(long position, byte[] bytes, int off, int len) throws IOException {
+        if(this.closed) {
+            LOG.error("InputStream is already closed");
+            throw new IOException("InputStream is already closed");
+        }
+        
+        if(position < 0) {
+            throw new IOException("cannot read from negative offset : " + position);
+        }
+        
+        int readLen = (int) Math.min(this.handle.getStatus().getSize() - position, len);
+        if(readLen > 0) {
+            int totalReadLen = 0;
+            int blockSize = (int) this.handle.getStatus().getBlockSize();
+            long curPosition = position;
+            
+            while(totalReadLen < readLen) {
+                int blockID = BlockUtils.getBlockID(curPosition, blockSize);
+                int blockOffset = (int) (curPosition - BlockUtils.getBlockStartOffset(blockID, blockSize));
+                
+                SyndicateFSReadBlockData blockData = fetchBlockData(blockID);
+                
+                int toCopy = Math.min(readLen - totalReadLen, blockSize - blockOffset);
+                int read;
+                try {
+                    read = blockData.getData(blockOffset, bytes, off + totalReadLen, toCopy);
+                } finally {
+                    blockData.release();
+                }
+                if(read <= 0) {
+                    // EOF
+                    break;
+                }
+
+                curPosition += read;
+                totalReadLen += read;
+            }
+            
+            if(totalReadLen == 0) {
+                return -1;
+            }
+            return totalReadLen;
+        } else {
+            // EOF
+            return -1;
+        }
+    }
+    
+    /**
+     * Reads exactly len bytes at the given position without changing the
+     * stream position.
+     * 
+     * @param position
+     * @param bytes
+     * @param off
+     * @param len
+     * @throws IOException 
+     */
+    public void readFully(long position, byte[] bytes, int off, int len) throws IOException {
+        int totalReadLen = 0;
+        while(totalReadLen < len) {
+            int read = read(position + totalReadLen, bytes, off + totalReadLen, len - totalReadLen);
+            if(read < 0) {
+                throw new EOFException("reached end of file before reading fully : " + (position + totalReadLen));
+            }
+            totalReadLen += read;
+        }
+    }
+    
     @Override
     public synchronized void close() throws IOException {
         if(!this.closed) {
+            cancelReadAhead(0, -1);
+            releaseCancelledBlocks(true);
+            if(this.currentBlockData != null) {
+                this.currentBlockData.release();
+                this.currentBlockData = null;
+            }
+            
+            List<SyndicateFSFileHandle> otherHandles;
+            synchronized(this.blockLock) {
+                otherHandles = new ArrayList<SyndicateFSFileHandle>(this.stripeHandles.subList(1, this.stripeHandles.size()));
+            }
+            for(SyndicateFSFileHandle stripeHandle : otherHandles) {
+                try {
+                    stripeHandle.close();
+                } catch (IOException ex) {
+                    LOG.error("exception occurred", ex);
+                }
+            }
+            
             this.handle.close();
             this.handle.getFileSystem().notifyInputStreamClosed(this);
-
-            for(Map.Entry<Integer, SyndicateFSReadBlockData> entry : this.cachedBlockData.entrySet()) {
-                SyndicateFSReadBlockData blockData = entry.getValue();
-                blockData.close();
-            }
-
-            this.cachedBlockData.clear();
         }
         this.closed = true;
     }
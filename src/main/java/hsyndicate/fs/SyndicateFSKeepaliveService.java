@@ -0,0 +1,305 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.fs;
+
+import com.sun.jersey.api.client.ClientResponse;
+import hsyndicate.rest.client.SyndicateUGHttpClient;
+import hsyndicate.rest.datatypes.FileDescriptor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps open file handles of a filesystem alive on the gateway.
+ *
+ * Handles are kept in a hashed timing wheel whose revolution is the renewal
+ * period. Each tick renews the handles of one slot, so renewals are spread
+ * over the period instead of arriving in bursts. Handles due at the same
+ * tick are renewed together per session: all requests are sent first and
+ * the responses are collected afterwards.
+ *
+ * @author iychoi
+ */
+public class SyndicateFSKeepaliveService {
+
+    private static final Log LOG = LogFactory.getLog(SyndicateFSKeepaliveService.class);
+
+    public static final long DEFAULT_PERIOD = 60 * 1000; // 60 sec
+    public static final long DEFAULT_TICK = 1000; // 1 sec
+
+    private SyndicateFileSystem filesystem;
+    private List<Set<Entry>> wheel;
+    private volatile int cursor;
+    private AtomicLong sequence = new AtomicLong(0);
+    private ScheduledExecutorService scheduler;
+
+    private AtomicInteger openHandles = new AtomicInteger(0);
+    private AtomicLong renewCount = new AtomicLong(0);
+    private AtomicLong renewFailCount = new AtomicLong(0);
+    private AtomicLong batchCount = new AtomicLong(0);
+    private AtomicLong renewLatencyTotal = new AtomicLong(0);
+    private AtomicLong renewLatencyMax = new AtomicLong(0);
+
+    /**
+     * A registered handle.
+     */
+    public static class Entry {
+        private String sessionName;
+        private String path;
+        private FileDescriptor fileDescriptor;
+        private int slot;
+        private volatile boolean cancelled;
+
+        private Entry(String sessionName, String path, FileDescriptor fileDescriptor) {
+            this.sessionName = sessionName;
+            this.path = path;
+            this.fileDescriptor = fileDescriptor;
+            this.cancelled = false;
+        }
+    }
+
+    public SyndicateFSKeepaliveService(SyndicateFileSystem filesystem) {
+        this(filesystem, DEFAULT_PERIOD, DEFAULT_TICK);
+    }
+
+    public SyndicateFSKeepaliveService(SyndicateFileSystem filesystem, long period, long tick) {
+        if(filesystem == null) {
+            throw new IllegalArgumentException("filesystem is null");
+        }
+
+        if(tick <= 0) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+
+        if(period < tick * 2) {
+            throw new IllegalArgumentException("period must be at least two ticks");
+        }
+
+        this.filesystem = filesystem;
+
+        int slots = (int) (period / tick);
+        this.wheel = new ArrayList<Set<Entry>>(slots);
+        for(int i=0;i<slots;i++) {
+            this.wheel.add(Collections.newSetFromMap(new ConcurrentHashMap<Entry, Boolean>()));
+        }
+        this.cursor = 0;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SyndicateFSKeepaliveService");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                onTick();
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts renewing the handle. The first renewal happens between half a
+     * period and a full period from now.
+     *
+     * @param sessionName
+     * @param path path without the session
+     * @param fileDescriptor
+     * @return an entry to pass to unregister
+     */
+    public Entry register(String sessionName, String path, FileDescriptor fileDescriptor) {
+        if(fileDescriptor == null) {
+            throw new IllegalArgumentException("fileDescriptor is null");
+        }
+
+        Entry entry = new Entry(sessionName, path, fileDescriptor);
+
+        // handles opened together land in consecutive slots of the later half
+        int slots = this.wheel.size();
+        int half = slots / 2;
+        int offset = (int) (this.sequence.getAndIncrement() % (slots - half));
+        entry.slot = (this.cursor + half + offset) % slots;
+
+        this.wheel.get(entry.slot).add(entry);
+        this.openHandles.incrementAndGet();
+        return entry;
+    }
+
+    public void unregister(Entry entry) {
+        if(entry == null) {
+            throw new IllegalArgumentException("entry is null");
+        }
+
+        entry.cancelled = true;
+        if(this.wheel.get(entry.slot).remove(entry)) {
+            this.openHandles.decrementAndGet();
+        }
+    }
+
+    private void onTick() {
+        try {
+            int slot = (this.cursor + 1) % this.wheel.size();
+            this.cursor = slot;
+
+            Set<Entry> due = this.wheel.get(slot);
+            if(due.isEmpty()) {
+                return;
+            }
+
+            Map<String, List<Entry>> batches = new HashMap<String, List<Entry>>();
+            for(Entry entry : due) {
+                String key = entry.sessionName == null ? "" : entry.sessionName;
+                List<Entry> batch = batches.get(key);
+                if(batch == null) {
+                    batch = new ArrayList<Entry>();
+                    batches.put(key, batch);
+                }
+                batch.add(entry);
+            }
+
+            for(List<Entry> batch : batches.values()) {
+                renew(batch);
+            }
+        } catch (Exception ex) {
+            LOG.error("exception occurred", ex);
+        }
+    }
+
+    private void renew(List<Entry> batch) {
+        SyndicateUGHttpClient client;
+        try {
+            client = this.filesystem.getUGRestClient(batch.get(0).sessionName);
+        } catch (InstantiationException ex) {
+            LOG.error("exception occurred", ex);
+            this.renewFailCount.addAndGet(batch.size());
+            return;
+        }
+
+        this.batchCount.incrementAndGet();
+        long start = System.currentTimeMillis();
+
+        // send all, then collect
+        List<Future<ClientResponse>> futures = new ArrayList<Future<ClientResponse>>(batch.size());
+        for(Entry entry : batch) {
+            Future<ClientResponse> future = null;
+            if(!entry.cancelled) {
+                try {
+                    future = client.extendTtl(entry.path, entry.fileDescriptor);
+                } catch (Exception ex) {
+                    LOG.error("failed to extend ttl of " + entry.path, ex);
+                    this.renewFailCount.incrementAndGet();
+                }
+            }
+            futures.add(future);
+        }
+
+        for(int i=0;i<batch.size();i++) {
+            Future<ClientResponse> future = futures.get(i);
+            if(future == null) {
+                continue;
+            }
+
+            Entry entry = batch.get(i);
+            try {
+                client.processExtendTtl(future);
+                this.renewCount.incrementAndGet();
+
+                long latency = System.currentTimeMillis() - start;
+                this.renewLatencyTotal.addAndGet(latency);
+                long max = this.renewLatencyMax.get();
+                while(latency > max && !this.renewLatencyMax.compareAndSet(max, latency)) {
+                    max = this.renewLatencyMax.get();
+                }
+            } catch (Exception ex) {
+                if(!entry.cancelled) {
+                    // the handle may have been closed while renewing
+                    LOG.error("failed to extend ttl of " + entry.path, ex);
+                    this.renewFailCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public int getOpenHandles() {
+        return this.openHandles.get();
+    }
+
+    public long getRenewCount() {
+        return this.renewCount.get();
+    }
+
+    public long getRenewFailCount() {
+        return this.renewFailCount.get();
+    }
+
+    public long getBatchCount() {
+        return this.batchCount.get();
+    }
+
+    /**
+     * Returns the average time from sending a batch to a renewal completing,
+     * in milliseconds.
+     *
+     * @return
+     */
+    public long getAverageRenewLatency() {
+        long count = this.renewCount.get();
+        if(count == 0) {
+            return 0;
+        }
+        return this.renewLatencyTotal.get() / count;
+    }
+
+    public long getMaxRenewLatency() {
+        return this.renewLatencyMax.get();
+    }
+
+    public void close() {
+        this.scheduler.shutdownNow();
+
+        for(Set<Entry> slot : this.wheel) {
+            for(Entry entry : slot) {
+                entry.cancelled = true;
+            }
+            slot.clear();
+        }
+        this.openHandles.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SyndicateFSKeepaliveService - open(%d), renewed(%d), failed(%d), batches(%d), latency(avg %d, max %d)",
+                this.openHandles.get(), this.renewCount.get(), this.renewFailCount.get(), this.batchCount.get(),
+                getAverageRenewLatency(), this.renewLatencyMax.get());
+    }
+}
@@ -15,9 +15,14 @@
 */
 package hsyndicate.fs;
 
+import com.sun.jersey.api.client.ClientResponse;
 import hsyndicate.utils.BlockUtils;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Future;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -25,24 +30,106 @@ public class SyndicateFSOutputStream extends OutputStream {
 
     private static final Log LOG = LogFactory.getLog(SyndicateFSOutputStream.class);
     
+    /*
+     * A full block handed to the gateway but not acknowledged yet.
+     */
+    private static class PendingBlockWrite {
+        private int blockID;
+        private ByteBuffer buffer;
+        private int size;
+        private Future<ClientResponse> future;
+        
+        PendingBlockWrite(int blockID, ByteBuffer buffer, int size, Future<ClientResponse> future) {
+            this.blockID = blockID;
+            this.buffer = buffer;
+            this.size = size;
+            this.future = future;
+        }
+    }
+    
     private SyndicateFSFileHandle handle;
     private long blockOffset;
     private int blockSize;
-    private byte[] bufferredData;
+    private SyndicateFSBufferPool bufferPool;
+    private ByteBuffer bufferredData;
     private int bufferredSize;
     private boolean closed;
+    private int maxInflightBlocks;
+    private Deque<PendingBlockWrite> inflightBlocks = new ArrayDeque<PendingBlockWrite>();
+    // first failure of a write-behind block, raised by the next call
+    private IOException writeError;
     
     SyndicateFSOutputStream(SyndicateFSFileHandle handle) {
+        this(handle, 0);
+    }
+    
+    SyndicateFSOutputStream(SyndicateFSFileHandle handle, int maxInflightBlocks) {
         this.handle = handle;
         
         this.blockOffset = 0;
         this.blockSize = (int) handle.getStatus().getBlockSize();
-        this.bufferredData = new byte[this.blockSize];
+        this.bufferPool = handle.getFileSystem().getBufferPool();
+        this.bufferredData = this.bufferPool.lease(this.blockSize);
         this.bufferredSize = 0;
+        this.maxInflightBlocks = Math.max(0, maxInflightBlocks);
+        this.writeError = null;
     
         this.closed = false;
     }
     
+    private void checkWriteError() throws IOException {
+        if(this.writeError != null) {
+            throw this.writeError;
+        }
+    }
+    
+    private void completeBlockWrite(PendingBlockWrite write) {
+        try {
+            this.handle.completeWriteFileDataBlock(write.blockID, write.future, write.size);
+        } catch (IOException ex) {
+            LOG.error("exception occurred", ex);
+            if(this.writeError == null) {
+                this.writeError = ex;
+            }
+        } finally {
+            this.bufferPool.release(write.buffer);
+        }
+    }
+    
+    /*
+     * Completes acknowledged writes from the head of the queue, and waits
+     * until no more than maxLength writes are in flight.
+     */
+    private void reapBlockWrites(int maxLength) {
+        while(!this.inflightBlocks.isEmpty()) {
+            PendingBlockWrite write = this.inflightBlocks.peekFirst();
+            if(this.inflightBlocks.size() <= maxLength && !write.future.isDone()) {
+                break;
+            }
+            
+            this.inflightBlocks.pollFirst();
+            completeBlockWrite(write);
+        }
+    }
+    
+    private void writeBlock() throws IOException {
+        int blockID = BlockUtils.getBlockID(this.blockOffset, this.blockSize);
+        if(this.maxInflightBlocks > 0) {
+            // write behind - the buffer goes with the request
+            Future<ClientResponse> future = this.handle.writeFileDataBlockAsync(blockID, this.bufferredData, this.bufferredSize);
+            this.inflightBlocks.addLast(new PendingBlockWrite(blockID, this.bufferredData, this.bufferredSize, future));
+            this.bufferredData = this.bufferPool.lease(this.blockSize);
+            
+            reapBlockWrites(this.maxInflightBlocks);
+            checkWriteError();
+        } else {
+            this.handle.writeFileDataBlockByteBuffer(blockID, this.bufferredData, this.bufferredSize);
+        }
+        
+        this.blockOffset += this.bufferredSize;
+        this.bufferredSize = 0;
+    }
+    
     @Override
     public synchronized void write(int i) throws IOException {
         if(this.closed) {
@@ -50,42 +137,20 @@ public class SyndicateFSOutputStream extends OutputStream {
             throw new IOException("OutputStream is already closed");
         }
         
-        if(this.bufferredSize >= this.blockSize) {
-            flush();
-        }
+        checkWriteError();
         
         byte b = (byte)(i & 0xff);
-        this.bufferredData[this.bufferredSize] = b;
+        this.bufferredData.put(this.bufferredSize, b);
         this.bufferredSize++;
         
         if(this.bufferredSize >= this.blockSize) {
-            flush();
+            writeBlock();
         }
     }
     
     @Override
     public synchronized void write(byte[] bytes) throws IOException {
-        if(this.closed) {
-            LOG.error("OutputStream is already closed");
-            throw new IOException("OutputStream is already closed");
-        }
-        
-        if(this.bufferredSize >= this.blockSize) {
-            flush();
-        }
-        
-        int toCopy = bytes.length;
-        int copied = 0;
-        while(copied < toCopy) {
-            int left = Math.min(toCopy - copied, this.blockSize - this.bufferredSize);
-            System.arraycopy(bytes, copied, this.bufferredData, this.bufferredSize, left);
-            copied += left;
-            this.bufferredSize += left;
-            
-            if(this.bufferredSize >= this.blockSize) {
-                flush();
-            }
-        }
+        write(bytes, 0, bytes.length);
     }
     
     @Override
@@ -95,24 +160,28 @@ public class SyndicateFSOutputStream extends OutputStream {
             throw new IOException("OutputStream is already closed");
         }
         
-        if(this.bufferredSize >= this.blockSize) {
-            flush();
-        }
+        checkWriteError();
         
         int toCopy = len;
         int copied = 0;
         while(copied < toCopy) {
             int left = Math.min(toCopy - copied, this.blockSize - this.bufferredSize);
-            System.arraycopy(bytes, offset + copied, this.bufferredData, this.bufferredSize, left);
+            this.bufferredData.position(this.bufferredSize);
+            this.bufferredData.put(bytes, offset + copied, left);
             copied += left;
             this.bufferredSize += left;
             
             if(this.bufferredSize >= this.blockSize) {
-                flush();
+                writeBlock();
             }
         }
     }
     
+    /**
+     * Waits for all blocks written behind and writes the partial block.
+     * 
+     * @throws IOException 
+     */
     @Override
     public synchronized void flush() throws IOException {
         if(this.closed) {
@@ -120,25 +189,31 @@ public class SyndicateFSOutputStream extends OutputStream {
             throw new IOException("OutputStream is already closed");
         }
         
+        reapBlockWrites(0);
+        checkWriteError();
+        
         if(this.bufferredSize > 0) {
-            // flush stale data
-            this.handle.writeFileDataBlockByteArray(BlockUtils.getBlockID(this.blockOffset, this.blockSize), this.bufferredData, this.bufferredSize);
-            
-            if(this.bufferredSize >= this.blockSize) {
-                this.blockOffset += this.bufferredSize;
-                this.bufferredSize = 0;
-            }
+            // flush stale data - the block is rewritten when it fills up
+            this.handle.writeFileDataBlockByteBuffer(BlockUtils.getBlockID(this.blockOffset, this.blockSize), this.bufferredData, this.bufferredSize);
         }
     }
     
     @Override
     public synchronized void close() throws IOException {
         if(!this.closed) {
-            flush();
-
-            this.handle.close();
-            this.handle.getFileSystem().notifyOutputStreamClosed(this);
-            this.closed = true;
+            try {
+                flush();
+            } finally {
+                // make sure no request still reads from our buffers
+                reapBlockWrites(0);
+                
+                this.bufferPool.release(this.bufferredData);
+                this.bufferredData = null;
+                this.closed = true;
+                
+                this.handle.close();
+                this.handle.getFileSystem().notifyOutputStreamClosed(this);
+            }
         }
     }
 }
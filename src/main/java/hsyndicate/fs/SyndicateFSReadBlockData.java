@@ -19,11 +19,23 @@ import hsyndicate.utils.IOUtils;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- *
+ * Data of a block, shared by reference counting.
+ * 
+ * A new block data has one reference. Every holder that keeps the data
+ * beyond a single call takes a reference with retain() and drops it with
+ * release(). The buffer goes back to the pool when the last reference is
+ * dropped.
+ * 
+ * Data backed by an input stream is read incrementally, only as far as
+ * callers have asked for, so the first bytes are available before the
+ * whole block arrives.
+ * 
  * @author iychoi
  */
 public class SyndicateFSReadBlockData implements Closeable {
@@ -33,27 +45,93 @@ public class SyndicateFSReadBlockData implements Closeable {
     private long offset;
     private InputStream inputStream;
     private int blockSize;
-    private byte[] bufferredData;
+    private ByteBuffer bufferredData;
     private int bufferredSize;
     private boolean fullyBufferred;
+    private IOException failure;
+    private SyndicateFSBufferPool bufferPool;
+    private int refCount;
     
     public SyndicateFSReadBlockData(long offset, byte[] buffer, int blockSize) {
         this.offset = offset;
         this.inputStream = null;
         this.blockSize = blockSize;
-        this.bufferredData = new byte[blockSize];
-        System.arraycopy(buffer, 0, this.bufferredData, 0, Math.min(buffer.length, blockSize));
-        this.bufferredSize = buffer.length;
+        this.bufferredData = ByteBuffer.allocate(blockSize);
+        this.bufferredSize = Math.min(buffer.length, blockSize);
+        this.bufferredData.put(buffer, 0, this.bufferredSize);
         this.fullyBufferred = true;
+        this.bufferPool = null;
+        this.refCount = 1;
     }
     
     public SyndicateFSReadBlockData(long offset, InputStream is, int blockSize) {
         this.offset = offset;
         this.inputStream = is;
         this.blockSize = blockSize;
-        this.bufferredData = new byte[blockSize];
+        this.bufferredData = ByteBuffer.allocate(blockSize);
         this.bufferredSize = 0;
         this.fullyBufferred = false;
+        this.bufferPool = null;
+        this.refCount = 1;
+    }
+    
+    /**
+     * Creates a block data that is filled from the stream on demand into a
+     * buffer leased from the pool.
+     * 
+     * @param offset
+     * @param is
+     * @param buffer buffer leased from the pool
+     * @param blockSize
+     * @param pool 
+     */
+    public SyndicateFSReadBlockData(long offset, InputStream is, ByteBuffer buffer, int blockSize, SyndicateFSBufferPool pool) {
+        this.offset = offset;
+        this.inputStream = is;
+        this.blockSize = blockSize;
+        this.bufferredData = buffer;
+        this.bufferredSize = 0;
+        this.fullyBufferred = false;
+        this.bufferPool = pool;
+        this.refCount = 1;
+    }
+    
+    /**
+     * Creates a block data that reads from a mapped local file.
+     * 
+     * @param offset
+     * @param buffer mapped block, the limit is the size of the data
+     * @param blockSize 
+     */
+    public SyndicateFSReadBlockData(long offset, MappedByteBuffer buffer, int blockSize) {
+        this.offset = offset;
+        this.inputStream = null;
+        this.blockSize = blockSize;
+        this.bufferredData = buffer;
+        this.bufferredSize = Math.min(buffer.limit(), blockSize);
+        this.fullyBufferred = true;
+        this.bufferPool = null;
+        this.refCount = 1;
+    }
+    
+    /**
+     * Creates a block data that owns a buffer leased from the pool.
+     * 
+     * @param offset
+     * @param buffer buffer leased from the pool, filled from position 0
+     * @param dataSize
+     * @param blockSize
+     * @param pool 
+     */
+    public SyndicateFSReadBlockData(long offset, ByteBuffer buffer, int dataSize, int blockSize, SyndicateFSBufferPool pool) {
+        this.offset = offset;
+        this.inputStream = null;
+        this.blockSize = blockSize;
+        this.bufferredData = buffer;
+        this.bufferredSize = dataSize;
+        this.fullyBufferred = true;
+        this.bufferPool = pool;
+        this.refCount = 1;
     }
     
     public long getOffset() {
@@ -64,17 +142,60 @@ public class SyndicateFSReadBlockData implements Closeable {
         return this.blockSize;
     }
     
+    public synchronized SyndicateFSReadBlockData retain() {
+        if(this.refCount <= 0) {
+            throw new IllegalStateException("block data is already released");
+        }
+        
+        this.refCount++;
+        return this;
+    }
+    
+    public synchronized void release() {
+        if(this.refCount <= 0) {
+            LOG.error("block data is already released");
+            return;
+        }
+        
+        this.refCount--;
+        if(this.refCount == 0) {
+            if(!this.fullyBufferred) {
+                if(this.inputStream != null) {
+                    IOUtils.closeQuietly(this.inputStream);
+                }
+            }
+            this.inputStream = null;
+            
+            if(this.bufferPool != null) {
+                this.bufferPool.release(this.bufferredData);
+            }
+            this.bufferredData = null;
+        }
+    }
+    
     private synchronized int ensureLoadData(int destOffset) throws IOException {
         if(this.fullyBufferred) {
             return this.bufferredSize;
         } else if(this.bufferredSize >= destOffset) {
             return this.bufferredSize;
+        } else if(this.failure != null) {
+            throw this.failure;
         } else {
             if(this.inputStream != null) {
                 int toRead = destOffset - this.bufferredSize;
                 int totalReadLen = 0;
                 while(totalReadLen < toRead) {
-                    int readLen = IOUtils.read(this.inputStream, this.bufferredData, this.bufferredSize, destOffset - this.bufferredSize);
+                    this.bufferredData.position(this.bufferredSize);
+                    int readLen;
+                    try {
+                        readLen = IOUtils.read(this.inputStream, this.bufferredData, destOffset - this.bufferredSize);
+                    } catch (IOException ex) {
+                        // the rest of the block is lost with the stream
+                        IOUtils.closeQuietly(this.inputStream);
+                        this.inputStream = null;
+                        this.failure = ex;
+                        throw ex;
+                    }
                     if(readLen > 0) {
                         this.bufferredSize += readLen;
                         totalReadLen += readLen;
@@ -97,48 +218,115 @@ public class SyndicateFSReadBlockData implements Closeable {
         }
     }
     
+    private void checkReleased() throws IOException {
+        if(this.bufferredData == null) {
+            throw new IOException("block data is already released");
+        }
+    }
+    
     public synchronized int getData(int offset, byte[] buffer, int length) throws IOException {
+        return getData(offset, buffer, 0, length);
+    }
+    
+    public synchronized int getData(int offset, byte[] buffer, int bufferStartOffset, int length) throws IOException {
         if(offset + length > this.blockSize) {
             throw new IOException(String.format("cannot read requested size of data : off(%d) len(%d) > blockSize(%d)", offset, length, this.blockSize));
         }
         
+        checkReleased();
         ensureLoadData(offset + length);
         
         int toCopy = Math.min(this.bufferredSize - offset, length);
-        System.arraycopy(this.bufferredData, offset, buffer, 0, toCopy);
+        if(toCopy <= 0) {
+            return 0;
+        }
+        
+        this.bufferredData.position(offset);
+        this.bufferredData.get(buffer, bufferStartOffset, toCopy);
         return toCopy;
     }
     
-    public synchronized int getData(int offset, byte[] buffer, int bufferStartOffset, int length) throws IOException {
+    /**
+     * Copies data of the block into the buffer without going through a byte
+     * array.
+     * 
+     * @param offset
+     * @param buffer
+     * @param length
+     * @return the number of bytes copied
+     * @throws IOException 
+     */
+    public synchronized int getData(int offset, ByteBuffer buffer, int length) throws IOException {
         if(offset + length > this.blockSize) {
             throw new IOException(String.format("cannot read requested size of data : off(%d) len(%d) > blockSize(%d)", offset, length, this.blockSize));
         }
         
+        checkReleased();
         ensureLoadData(offset + length);
         
-        int toCopy = Math.min(this.bufferredSize - offset, length);
-        System.arraycopy(this.bufferredData, offset, buffer, bufferStartOffset, toCopy);
+        int toCopy = Math.min(Math.min(this.bufferredSize - offset, length), buffer.remaining());
+        if(toCopy <= 0) {
+            return 0;
+        }
+        
+        ByteBuffer src = this.bufferredData.duplicate();
+        src.limit(offset + toCopy);
+        src.position(offset);
+        buffer.put(src);
         return toCopy;
     }
     
     public synchronized byte[] getData() throws IOException {
+        checkReleased();
         int dataSize = ensureLoadData(this.blockSize);
         
         byte[] arr = new byte[dataSize];
-        System.arraycopy(this.bufferredData, 0, arr, 0, this.bufferredSize);
+        this.bufferredData.position(0);
+        this.bufferredData.get(arr, 0, dataSize);
         return arr;
     }
     
+    /**
+     * Returns a read-only view of the buffered bytes, from position 0 to the
+     * buffered size. The view is valid only while the caller holds a
+     * reference.
+     * 
+     * @return
+     * @throws IOException 
+     */
+    public synchronized ByteBuffer getDataBuffer() throws IOException {
+        checkReleased();
+        
+        ByteBuffer view = this.bufferredData.asReadOnlyBuffer();
+        view.limit(this.bufferredSize);
+        view.position(0);
+        return view;
+    }
+    
     public synchronized int getBufferredSize() {
         return this.bufferredSize;
     }
+    
+    public synchronized boolean isFullyBufferred() {
+        return this.fullyBufferred;
+    }
+    
+    /**
+     * Returns true if reading the rest of the block from the stream failed.
+     * 
+     * @return 
+     */
+    public synchronized boolean isFailed() {
+        return this.failure != null;
+    }
 
+    /**
+     * Drops a reference. Same as release().
+     * 
+     * @throws IOException 
+     */
     @Override
-    public synchronized void close() throws IOException {
-        if(!this.fullyBufferred) {
-            if(this.inputStream != null) {
-                IOUtils.closeQuietly(this.inputStream);
-            }
-        }
+    public void close() throws IOException {
+        release();
     }
 }
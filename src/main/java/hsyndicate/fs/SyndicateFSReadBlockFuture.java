@@ -0,0 +1,272 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.fs;
+
+import com.sun.jersey.api.client.ClientResponse;
+import hsyndicate.utils.IOUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Future;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A block read that has been issued but not consumed yet.
+ *
+ * The request is either an in-flight REST read, an opened local cache file
+ * or a local cache file that is already mapped.
+ * A future can be created before the read is issued, so that it can be
+ * registered under a lock and issued by start() after the lock is released.
+ * Until then, get() and release(true) wait for it.
+ * The block data is materialized once, on the first call to get(). The future
+ * holds its own reference to the data until it is released, and every call
+ * to get() hands out a new reference.
+ *
+ * @author iychoi
+ */
+public class SyndicateFSReadBlockFuture {
+
+    private static final Log LOG = LogFactory.getLog(SyndicateFSReadBlockFuture.class);
+
+    private SyndicateFSFileHandle handle;
+    private int blockID;
+    private Future<ClientResponse> future;
+    private InputStream inputStream;
+    private SyndicateFSReadBlockData blockData;
+    private IOException failure;
+    private boolean cancelled;
+    private boolean started;
+    private int waiters;
+
+    /*
+     * Creates a read that is issued by start().
+     */
+    SyndicateFSReadBlockFuture(SyndicateFSFileHandle handle, int blockID) {
+        this.handle = handle;
+        this.blockID = blockID;
+        this.future = null;
+        this.inputStream = null;
+        this.blockData = null;
+        this.failure = null;
+        this.cancelled = false;
+        this.started = false;
+        this.waiters = 0;
+    }
+
+    SyndicateFSReadBlockFuture(SyndicateFSFileHandle handle, int blockID, Future<ClientResponse> future) {
+        this.handle = handle;
+        this.blockID = blockID;
+        this.future = future;
+        this.inputStream = null;
+        this.blockData = null;
+        this.failure = null;
+        this.cancelled = false;
+        this.started = true;
+        this.waiters = 0;
+    }
+
+    SyndicateFSReadBlockFuture(SyndicateFSFileHandle handle, int blockID, InputStream is) {
+        this.handle = handle;
+        this.blockID = blockID;
+        this.future = null;
+        this.inputStream = is;
+        this.blockData = null;
+        this.failure = null;
+        this.cancelled = false;
+        this.started = true;
+        this.waiters = 0;
+    }
+
+    SyndicateFSReadBlockFuture(SyndicateFSFileHandle handle, int blockID, SyndicateFSReadBlockData blockData) {
+        this.handle = handle;
+        this.blockID = blockID;
+        this.future = null;
+        this.inputStream = null;
+        this.blockData = blockData;
+        this.failure = null;
+        this.cancelled = false;
+        this.started = true;
+        this.waiters = 0;
+    }
+
+    SyndicateFSFileHandle getHandle() {
+        return this.handle;
+    }
+    
+    public int getBlockID() {
+        return this.blockID;
+    }
+
+    /*
+     * Issues the read. Opening the file, mapping a local cache file and
+     * checking the disk cache may take a while, so this is called without
+     * any lock held.
+     */
+    void start() {
+        SyndicateFSReadBlockData data = null;
+        Future<ClientResponse> readFuture = null;
+        IOException ex = null;
+        try {
+            data = this.handle.readCachedBlockData(this.blockID);
+            if(data == null) {
+                readFuture = this.handle.requestFileDataBlock(this.blockID);
+            }
+        } catch (IOException e) {
+            ex = e;
+        } catch (RuntimeException e) {
+            ex = new IOException(e);
+        }
+
+        synchronized(this) {
+            this.blockData = data;
+            this.future = readFuture;
+            this.failure = ex;
+            this.started = true;
+            notifyAll();
+        }
+    }
+
+    private void waitForStart() throws InterruptedException {
+        while(!this.started) {
+            wait();
+        }
+    }
+
+    public synchronized boolean isDone() {
+        if(!this.started) {
+            return false;
+        }
+        if(this.blockData != null || this.inputStream != null || this.failure != null) {
+            return true;
+        }
+        return this.future == null || this.future.isDone();
+    }
+
+    public synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Waits for the block data.
+     * 
+     * @return a new reference to the block data that the caller must release
+     * @throws IOException 
+     */
+    public synchronized SyndicateFSReadBlockData get() throws IOException {
+        try {
+            waitForStart();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("interrupted while waiting for a block read - " + this.blockID);
+        }
+
+        if(this.cancelled) {
+            throw new IOException("block read is cancelled - " + this.blockID);
+        }
+
+        if(this.failure != null) {
+            throw this.failure;
+        }
+
+        if(this.blockData == null) {
+            try {
+                InputStream is = this.inputStream;
+                if(is == null) {
+                    is = this.handle.processReadFileDataBlock(this.future);
+                }
+
+                this.inputStream = null;
+                this.future = null;
+                this.blockData = this.handle.makeReadBlockData(this.blockID, is);
+            } catch (IOException ex) {
+                this.failure = ex;
+                throw ex;
+            }
+        }
+        return this.blockData.retain();
+    }
+
+    /*
+     * Registers a caller that is going to wait on get().
+     */
+    synchronized void acquire() {
+        this.waiters++;
+    }
+
+    /*
+     * Unregisters a caller, returns true if it was the last one.
+     */
+    synchronized boolean releaseWaiter() {
+        this.waiters--;
+        return this.waiters <= 0;
+    }
+
+    /**
+     * Abandons the block read.
+     *
+     * A REST read cannot be aborted without losing the pooled connection,
+     * so a pending read is only marked as cancelled here and its response is
+     * released by release() once it arrives. The same holds for a read that
+     * has not been issued yet.
+     *
+     * @return true if all resources held by the read are released
+     */
+    public synchronized boolean cancel() {
+        this.cancelled = true;
+        return release(false);
+    }
+
+    synchronized boolean release(boolean wait) {
+        if(!this.started) {
+            if(!wait) {
+                return false;
+            }
+
+            try {
+                waitForStart();
+            } catch (InterruptedException ex) {
+                LOG.info("interrupted while releasing a block read");
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        if(this.inputStream != null) {
+            IOUtils.closeQuietly(this.inputStream);
+            this.inputStream = null;
+        }
+
+        if(this.blockData != null) {
+            this.blockData.release();
+            this.blockData = null;
+        }
+
+        if(this.future != null) {
+            if(!wait && !this.future.isDone()) {
+                return false;
+            }
+
+            try {
+                ClientResponse response = this.future.get();
+                response.close();
+            } catch (Exception ex) {
+                LOG.info("exception raised while releasing a block read : " + ex.toString());
+            }
+            this.future = null;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.fs;
+
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent callers asking for the same key share one request.
+ *
+ * The first caller for a key runs the request; callers arriving while it is
+ * in flight wait for its result, including its failure. Once the request
+ * completes the key is free again, so results are not kept here - callers
+ * cache them through Request.onLoaded().
+ *
+ * @author iychoi
+ */
+public class SyndicateFSRequestCoalescer<K, V> {
+
+    /**
+     * A request run by the first caller for a key.
+     */
+    public static abstract class Request<V> {
+        /**
+         * Performs the request.
+         *
+         * @return the result, may be null
+         * @throws IOException
+         */
+        public abstract V load() throws IOException;
+
+        /**
+         * Called with the result, unless the key was invalidated while the
+         * request was in flight. Callers publish the result to their cache
+         * here.
+         *
+         * @param value
+         */
+        public void onLoaded(V value) {
+        }
+    }
+
+    private ConcurrentMap<K, SettableFuture<V>> pendingRequests = new ConcurrentHashMap<K, SettableFuture<V>>();
+    private AtomicLong requestCount = new AtomicLong(0);
+    private AtomicLong coalescedCount = new AtomicLong(0);
+
+    public SyndicateFSRequestCoalescer() {
+    }
+
+    public V get(K key, Request<V> request) throws IOException {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+
+        if(request == null) {
+            throw new IllegalArgumentException("request is null");
+        }
+
+        SettableFuture<V> future = SettableFuture.create();
+        SettableFuture<V> pendingFuture = this.pendingRequests.putIfAbsent(key, future);
+        if(pendingFuture != null) {
+            this.coalescedCount.incrementAndGet();
+            return waitFor(pendingFuture);
+        }
+
+        this.requestCount.incrementAndGet();
+        try {
+            V value = request.load();
+            synchronized(future) {
+                // do not publish a result that was invalidated while loading
+                if(this.pendingRequests.get(key) == future) {
+                    request.onLoaded(value);
+                }
+            }
+            future.set(value);
+            return value;
+        } catch (IOException ex) {
+            future.setException(ex);
+            throw ex;
+        } catch (RuntimeException ex) {
+            future.setException(ex);
+            throw ex;
+        } finally {
+            this.pendingRequests.remove(key, future);
+        }
+    }
+
+    private V waitFor(SettableFuture<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Detaches the request in flight for the key so that its result is not
+     * published, and runs the action once a publish that is already under
+     * way has finished. Callers that joined the request still get its result.
+     *
+     * @param key
+     * @param action removes the cached value, may be null
+     */
+    public void invalidate(K key, Runnable action) {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+
+        SettableFuture<V> pendingFuture = this.pendingRequests.remove(key);
+        if(pendingFuture != null && action != null) {
+            synchronized(pendingFuture) {
+                action.run();
+            }
+        }
+    }
+
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SyndicateFSRequestCoalescer - requests(%d), coalesced(%d)", this.requestCount.get(), this.coalescedCount.get());
+    }
+}
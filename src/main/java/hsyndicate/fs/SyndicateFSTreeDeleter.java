@@ -0,0 +1,293 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.fs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Deletes a directory tree with a bounded number of requests in flight.
+ *
+ * Directories are listed and their entries unlinked in parallel. A
+ * directory is removed once everything in it is gone, so directories go in
+ * post-order. Entries that are already gone are not failures.
+ *
+ * In fail-fast mode the first failure stops the deletion and is thrown to
+ * the caller. Otherwise the deleter goes on with everything else, keeps the
+ * directories that could not be emptied, and reports that the tree was not
+ * fully deleted.
+ *
+ * @author iychoi
+ */
+public class SyndicateFSTreeDeleter {
+
+    private static final Log LOG = LogFactory.getLog(SyndicateFSTreeDeleter.class);
+
+    public static final int DEFAULT_PARALLELISM = 16;
+    // deleted entries between progress reports
+    private static final long PROGRESS_INTERVAL = 10000;
+
+    private AHSyndicateFileSystemBase filesystem;
+    private int parallelism;
+    private boolean failFast;
+    private ThreadPoolExecutor executor;
+    private CountDownLatch done;
+    private volatile boolean aborted = false;
+    private volatile IOException firstFailure;
+
+    private AtomicLong deletedFiles = new AtomicLong(0);
+    private AtomicLong deletedDirectories = new AtomicLong(0);
+    private AtomicLong failures = new AtomicLong(0);
+
+    private static class DirectoryNode {
+        private SyndicateFSPath path;
+        private DirectoryNode parent;
+        // entries not deleted yet, plus one for the listing itself
+        private AtomicInteger pending = new AtomicInteger(1);
+        private volatile boolean failed = false;
+        // the directory was gone when listed
+        private volatile boolean gone = false;
+
+        DirectoryNode(SyndicateFSPath path, DirectoryNode parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * @param filesystem
+     * @param parallelism maximum number of requests in flight
+     * @param failFast stop at the first failure
+     */
+    public SyndicateFSTreeDeleter(AHSyndicateFileSystemBase filesystem, int parallelism, boolean failFast) {
+        if(filesystem == null) {
+            throw new IllegalArgumentException("filesystem is null");
+        }
+
+        if(parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+
+        this.filesystem = filesystem;
+        this.parallelism = parallelism;
+        this.failFast = failFast;
+    }
+
+    /**
+     * Deletes the directory and everything under it. Blocks until done.
+     *
+     * @param path absolute path of a directory
+     * @return true if the whole tree was deleted
+     * @throws IOException the first failure in fail-fast mode
+     */
+    public synchronized boolean delete(SyndicateFSPath path) throws IOException {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        this.aborted = false;
+        this.firstFailure = null;
+        this.done = new CountDownLatch(1);
+        this.executor = new ThreadPoolExecutor(this.parallelism, this.parallelism, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SyndicateFSTreeDeleter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        DirectoryNode root = new DirectoryNode(path, null);
+        try {
+            submitListing(root);
+            this.done.await();
+        } catch (InterruptedException ex) {
+            this.aborted = true;
+            throw new InterruptedIOException("interrupted while deleting " + path.toString());
+        } finally {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+
+        LOG.info(String.format("deleted %d files and %d directories under %s, %d failures",
+                this.deletedFiles.get(), this.deletedDirectories.get(), path.toString(), this.failures.get()));
+
+        if(this.failFast && this.firstFailure != null) {
+            throw this.firstFailure;
+        }
+        return !root.failed;
+    }
+
+    private void submitListing(final DirectoryNode node) {
+        this.executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                listDirectory(node);
+            }
+        });
+    }
+
+    private void submitUnlink(final SyndicateFSPath path, final DirectoryNode parent) {
+        this.executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                unlink(path, parent);
+            }
+        });
+    }
+
+    private void listDirectory(DirectoryNode node) {
+        try {
+            if(this.aborted) {
+                node.failed = true;
+                return;
+            }
+
+            SyndicateFSFileStatus[] entries;
+            try {
+                entries = this.filesystem.listDirectoryStatus(node.path);
+            } catch (FileNotFoundException ex) {
+                // already gone, nothing to remove
+                node.gone = true;
+                return;
+            } catch (IOException ex) {
+                fail(node, ex);
+                return;
+            }
+
+            for(SyndicateFSFileStatus entry : entries) {
+                if(this.aborted) {
+                    node.failed = true;
+                    break;
+                }
+
+                node.pending.incrementAndGet();
+                if(entry.isDirectory()) {
+                    submitListing(new DirectoryNode(entry.getPath(), node));
+                } else {
+                    submitUnlink(entry.getPath(), node);
+                }
+            }
+        } finally {
+            finishEntry(node);
+        }
+    }
+
+    private void unlink(SyndicateFSPath path, DirectoryNode parent) {
+        try {
+            if(this.aborted) {
+                parent.failed = true;
+                return;
+            }
+
+            this.filesystem.delete(path);
+            reportDeleted(this.deletedFiles.incrementAndGet() + this.deletedDirectories.get());
+        } catch (FileNotFoundException ex) {
+            // already gone
+        } catch (IOException ex) {
+            fail(parent, ex);
+        } finally {
+            finishEntry(parent);
+        }
+    }
+
+    /*
+     * Called when an entry of the directory is done with.
+     */
+    private void finishEntry(DirectoryNode node) {
+        if(node.pending.decrementAndGet() == 0) {
+            finishDirectory(node);
+        }
+    }
+
+    /*
+     * Removes the directory once all of its entries are done with.
+     */
+    private void finishDirectory(DirectoryNode node) {
+        // a directory that was gone when listed has nothing to remove
+        if(!node.gone) {
+            if(this.aborted) {
+                node.failed = true;
+            } else if(!node.failed) {
+                try {
+                    this.filesystem.delete(node.path);
+                    reportDeleted(this.deletedFiles.get() + this.deletedDirectories.incrementAndGet());
+                } catch (FileNotFoundException ex) {
+                    // already gone
+                } catch (IOException ex) {
+                    fail(node, ex);
+                }
+            }
+        }
+
+        if(node.failed && node.parent != null) {
+            // a directory that is not empty can not be removed
+            node.parent.failed = true;
+        }
+
+        if(node.parent == null) {
+            this.done.countDown();
+        } else {
+            finishEntry(node.parent);
+        }
+    }
+
+    private void fail(DirectoryNode node, IOException ex) {
+        LOG.error("failed to delete under " + node.path.toString(), ex);
+        this.failures.incrementAndGet();
+        node.failed = true;
+
+        if(this.failFast) {
+            synchronized(this.failures) {
+                if(this.firstFailure == null) {
+                    this.firstFailure = ex;
+                }
+            }
+            this.aborted = true;
+        }
+    }
+
+    private void reportDeleted(long count) {
+        if(count % PROGRESS_INTERVAL == 0) {
+            LOG.info(String.format("deleted %d files and %d directories", this.deletedFiles.get(), this.deletedDirectories.get()));
+        }
+    }
+
+    public long getDeletedFiles() {
+        return this.deletedFiles.get();
+    }
+
+    public long getDeletedDirectories() {
+        return this.deletedDirectories.get();
+    }
+
+    public long getFailures() {
+        return this.failures.get();
+    }
+}
@@ -0,0 +1,299 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.fs;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Lists all files under a directory, listing subdirectories in parallel.
+ *
+ * Every directory found is listed by one of a bounded number of threads, so
+ * the round trips of sibling directories overlap. Files are handed to the
+ * caller as they arrive, in no particular order. When the caller falls
+ * behind, the listing threads wait for it.
+ *
+ * Entries rejected by the filter are skipped, and directories rejected by
+ * the filter are not descended into. A directory that disappears during the
+ * walk is skipped; any other failure is thrown to the caller.
+ *
+ * A caller that stops taking files without closing the walker is assumed
+ * to have abandoned it after a while, and the listing threads stop.
+ *
+ * @author iychoi
+ */
+public class SyndicateFSTreeWalker implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(SyndicateFSTreeWalker.class);
+
+    public static final int DEFAULT_PARALLELISM = 8;
+    // files buffered for the caller before listing threads wait
+    private static final int RESULT_QUEUE_SIZE = 4096;
+    // marks the end of the walk in the result queue
+    private static final Object END_OF_WALK = new Object();
+    // how often a listing thread waiting for the caller checks for close
+    private static final long OFFER_INTERVAL = 1000; // 1 sec
+    // time without the caller taking a file before the walk is abandoned
+    private static final long ABANDON_TIMEOUT = 10 * 60 * 1000; // 10 min
+
+    private AHSyndicateFileSystemBase filesystem;
+    private ISyndicateFSPathFilter filter;
+    private ThreadPoolExecutor executor;
+    private BlockingQueue<Object> results = new LinkedBlockingQueue<Object>(RESULT_QUEUE_SIZE);
+    private AtomicInteger pendingDirectories = new AtomicInteger(0);
+    private volatile boolean closed = false;
+    private volatile boolean abandoned = false;
+    private volatile long lastTakeTime;
+
+    private SyndicateFSFileStatus nextStatus;
+    private boolean finished = false;
+
+    /**
+     * Adapts a filename filter to a path filter.
+     */
+    private static class FilenameFilterAdapter implements ISyndicateFSPathFilter {
+
+        private ISyndicateFSFilenameFilter filter;
+
+        FilenameFilterAdapter(ISyndicateFSFilenameFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean accept(SyndicateFSPath path) {
+            return this.filter.accept(path.getParent(), path.getName());
+        }
+    }
+
+    public SyndicateFSTreeWalker(AHSyndicateFileSystemBase filesystem, SyndicateFSPath path, ISyndicateFSFilenameFilter filter, int parallelism) {
+        this(filesystem, path, filter == null ? null : new FilenameFilterAdapter(filter), parallelism);
+    }
+
+    /**
+     * Starts listing the directory.
+     *
+     * @param filesystem
+     * @param path absolute path of a directory
+     * @param filter may be null
+     * @param parallelism maximum number of directories listed at once
+     */
+    public SyndicateFSTreeWalker(AHSyndicateFileSystemBase filesystem, SyndicateFSPath path, ISyndicateFSPathFilter filter, int parallelism) {
+        if(filesystem == null) {
+            throw new IllegalArgumentException("filesystem is null");
+        }
+
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+
+        if(parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+
+        this.filesystem = filesystem;
+        this.filter = filter;
+        this.lastTakeTime = System.currentTimeMillis();
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SyndicateFSTreeWalker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+
+        submitDirectory(path, true);
+    }
+
+    private void submitDirectory(final SyndicateFSPath path, final boolean top) {
+        this.pendingDirectories.incrementAndGet();
+        try {
+            this.executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        if(!closed) {
+                            listDirectory(path, top);
+                        }
+                    } catch (InterruptedException ex) {
+                        // closed
+                    } finally {
+                        if(pendingDirectories.decrementAndGet() == 0) {
+                            finishWalk();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // closed
+            this.pendingDirectories.decrementAndGet();
+        }
+    }
+
+    private void listDirectory(SyndicateFSPath path, boolean top) throws InterruptedException {
+        SyndicateFSFileStatus[] entries;
+        try {
+            entries = this.filesystem.listDirectoryStatus(path);
+        } catch (FileNotFoundException ex) {
+            if(top) {
+                putResult(ex);
+            }
+            // removed while walking
+            return;
+        } catch (IOException ex) {
+            LOG.error("exception occurred", ex);
+            putResult(ex);
+            return;
+        }
+
+        for(SyndicateFSFileStatus entry : entries) {
+            if(this.closed) {
+                return;
+            }
+
+            if(this.filter != null && !this.filter.accept(entry.getPath())) {
+                continue;
+            }
+
+            if(entry.isDirectory()) {
+                submitDirectory(entry.getPath(), false);
+            } else if(entry.isFile()) {
+                putResult(entry);
+            }
+        }
+    }
+
+    private void finishWalk() {
+        if(this.closed) {
+            return;
+        }
+
+        try {
+            putResult(END_OF_WALK);
+        } catch (InterruptedException ex) {
+            // closed
+        }
+    }
+
+    /*
+     * Hands a result to the caller, waiting while the caller is behind.
+     * Gives up when the walker is closed or the caller has not taken a file
+     * for too long.
+     */
+    private void putResult(Object result) throws InterruptedException {
+        while(!this.closed) {
+            if(this.results.offer(result, OFFER_INTERVAL, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+
+            if(System.currentTimeMillis() - this.lastTakeTime > ABANDON_TIMEOUT) {
+                LOG.error("listing is abandoned by the caller");
+                this.abandoned = true;
+                shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns true if there is another file, waiting for the listing if
+     * needed.
+     *
+     * @return
+     * @throws IOException
+     */
+    public synchronized boolean hasNext() throws IOException {
+        if(this.nextStatus != null) {
+            return true;
+        }
+
+        if(this.abandoned) {
+            throw new IOException("listing was stopped because files were not taken for too long");
+        }
+
+        if(this.finished) {
+            return false;
+        }
+
+        Object result;
+        try {
+            result = this.results.take();
+            this.lastTakeTime = System.currentTimeMillis();
+        } catch (InterruptedException ex) {
+            close();
+            throw new InterruptedIOException("interrupted while listing");
+        }
+
+        if(result == END_OF_WALK) {
+            close();
+            return false;
+        } else if(result instanceof IOException) {
+            close();
+            throw (IOException) result;
+        }
+
+        this.nextStatus = (SyndicateFSFileStatus) result;
+        return true;
+    }
+
+    public synchronized SyndicateFSFileStatus next() throws IOException {
+        if(!hasNext()) {
+            throw new NoSuchElementException("no more files");
+        }
+
+        SyndicateFSFileStatus status = this.nextStatus;
+        this.nextStatus = null;
+        return status;
+    }
+
+    /**
+     * Stops listing. Files not taken yet are dropped.
+     */
+    @Override
+    public synchronized void close() {
+        this.finished = true;
+        shutdown();
+    }
+
+    /*
+     * Not synchronized, so that listing threads can stop the walk while the
+     * caller waits in hasNext().
+     */
+    private void shutdown() {
+        if(this.closed) {
+            return;
+        }
+
+        this.closed = true;
+        this.executor.shutdownNow();
+        this.results.clear();
+    }
+}
@@ -27,17 +27,24 @@ import hsyndicate.rest.datatypes.StatRaw;
 import hsyndicate.rest.datatypes.Statvfs;
 import hsyndicate.rest.datatypes.Xattr;
 import hsyndicate.rest.datatypes.XattrKeyList;
+import hsyndicate.utils.BlockBitmap;
 import hsyndicate.utils.BlockUtils;
 import hsyndicate.utils.DateTimeUtils;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
+import javax.management.ObjectName;
 import org.apache.commons.collections4.map.PassiveExpiringMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -50,24 +57,58 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
     private static final Log LOG = LogFactory.getLog(SyndicateFileSystem.class);
 
     private static final int DEFAULT_FILESTATUS_TIMETOLIVE = 60000; // 60 sec
+    private static final int DEFAULT_NEGATIVE_FILESTATUS_TIMETOLIVE = 5000; // 5 sec
+    private static final int DEFAULT_MAX_FILESTATUS_TIMETOLIVE = 600000; // 10 min
     private static final int DEFAULT_STATVFS_TIMETOLIVE = 60000; // 60 sec
-    private static final int DEFAULT_UGRESTCLIENT_TIMETOLIVE = 600000; // 600 sec
     private static final long DEFAULT_BLOCK_SIZE = 1024*1024; // 1MB
     private static final String LOCAL_CACHED_BLOCKS_XATTR_NAME = "user.syndicate_cached_blocks";
     private static final String LOCAL_CACHED_FILE_PATH_XATTR_NAME = "user.syndicate_cached_file_path";
     
-    private Map<String, SyndicateUGHttpClient> ugRestClients = new HashMap<String, SyndicateUGHttpClient>(DEFAULT_UGRESTCLIENT_TIMETOLIVE);
+    private ConcurrentMap<String, SyndicateUGHttpClient> ugRestClients = new ConcurrentHashMap<String, SyndicateUGHttpClient>();
     
-    private List<SyndicateFSInputStream> openInputStream = new ArrayList<SyndicateFSInputStream>();
-    private List<SyndicateFSOutputStream> openOutputStream = new ArrayList<SyndicateFSOutputStream>();
+    private List<SyndicateFSInputStream> openInputStream = new CopyOnWriteArrayList<SyndicateFSInputStream>();
+    private List<SyndicateFSOutputStream> openOutputStream = new CopyOnWriteArrayList<SyndicateFSOutputStream>();
     
-    private Map<SyndicateFSPath, SyndicateFSFileStatus> fileStatusCache = new PassiveExpiringMap<SyndicateFSPath, SyndicateFSFileStatus>(DEFAULT_FILESTATUS_TIMETOLIVE);
-    private Map<String, Statvfs> statVfsCache = new PassiveExpiringMap<String, Statvfs>(DEFAULT_STATVFS_TIMETOLIVE);
+    private SyndicateFSFileStatusCache fileStatusCache;
+    private boolean fileStatusCacheShared;
+    private ObjectName fileStatusCacheMBeanName;
+    private Map<String, Statvfs> statVfsCache = Collections.synchronizedMap(new PassiveExpiringMap<String, Statvfs>(DEFAULT_STATVFS_TIMETOLIVE));
+    // concurrent lookups of the same key share one request on the wire
+    private SyndicateFSRequestCoalescer<SyndicateFSPath, SyndicateFSFileStatus> fileStatusRequests = new SyndicateFSRequestCoalescer<SyndicateFSPath, SyndicateFSFileStatus>();
+    private SyndicateFSRequestCoalescer<SyndicateFSPath, SyndicateFSFileStatus[]> listDirectoryRequests = new SyndicateFSRequestCoalescer<SyndicateFSPath, SyndicateFSFileStatus[]>();
+    private SyndicateFSRequestCoalescer<String, Statvfs> statVfsRequests = new SyndicateFSRequestCoalescer<String, Statvfs>();
+    
+    private SyndicateFSBlockCache blockCache;
+    private SyndicateFSBufferPool bufferPool;
+    private SyndicateFSKeepaliveService keepaliveService;
+    private SyndicateFSDiskBlockCache diskBlockCache;
     
     public SyndicateFileSystem(SyndicateFSConfiguration syndicateFsConf, Configuration hadoopConf) throws InstantiationException {
         initialize(syndicateFsConf, hadoopConf);
     }
     
+    /**
+     * Creates a file system that looks up file status through the cache of
+     * another file system of the same volume, so that it sees modifications
+     * made through that one. The cache stays owned by the other file system
+     * and is not cleared when this one is closed.
+     * 
+     * @param syndicateFsConf
+     * @param hadoopConf
+     * @param fileStatusCache
+     * @throws InstantiationException 
+     */
+    public SyndicateFileSystem(SyndicateFSConfiguration syndicateFsConf, Configuration hadoopConf, SyndicateFSFileStatusCache fileStatusCache) throws InstantiationException {
+        if(fileStatusCache == null) {
+            LOG.error("FileSystem Initialize failed : fileStatusCache is null");
+            throw new IllegalArgumentException("Can not initialize the filesystem from null file status cache");
+        }
+        
+        this.fileStatusCache = fileStatusCache;
+        this.fileStatusCacheShared = true;
+        initialize(syndicateFsConf, hadoopConf);
+    }
+    
     @Override
     protected void initialize(SyndicateFSConfiguration syndicateFsConf, Configuration hadoopConf) throws InstantiationException {
         if(syndicateFsConf == null) {
@@ -84,38 +125,131 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
 
         super.initialize(syndicateFsConf, hadoopConf);
         
+        if(!this.fileStatusCacheShared) {
+            this.fileStatusCache = new SyndicateFSFileStatusCache(DEFAULT_FILESTATUS_TIMETOLIVE, DEFAULT_NEGATIVE_FILESTATUS_TIMETOLIVE, DEFAULT_MAX_FILESTATUS_TIMETOLIVE,
+                    Math.max(0, syndicateFsConf.getStatusCacheEntries()), Math.max(0, syndicateFsConf.getStatusCacheSize()));
+            this.fileStatusCacheMBeanName = registerFileStatusCacheMBean();
+        }
+        
+        this.blockCache = new SyndicateFSBlockCache(Math.max(0, syndicateFsConf.getBlockCacheSize()));
+        this.bufferPool = new SyndicateFSBufferPool(Math.max(0, syndicateFsConf.getBufferPoolSize()));
+        this.keepaliveService = new SyndicateFSKeepaliveService(this);
+        
+        String diskCacheDir = syndicateFsConf.getDiskCacheDir();
+        if(diskCacheDir != null && !diskCacheDir.isEmpty() && syndicateFsConf.getDiskCacheSize() > 0) {
+            // null if the directory is used by another process
+            this.diskBlockCache = SyndicateFSDiskBlockCache.acquire(new File(diskCacheDir), syndicateFsConf.getDiskCacheSize());
+        }
+        
         super.raiseOnAfterCreateEvent();
     }
     
-    public synchronized SyndicateUGHttpClient getUGRestClient(String sessionName) throws InstantiationException {
+    private ObjectName registerFileStatusCacheMBean() {
+        try {
+            String gateway = this.syndicateFsConf.getHost() + ":" + this.syndicateFsConf.getPort();
+            ObjectName name = new ObjectName("hsyndicate:type=FileStatusCache,gateway=" + ObjectName.quote(gateway) + ",id=" + System.identityHashCode(this));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.fileStatusCache, name);
+            return name;
+        } catch (Exception ex) {
+            // monitoring only
+            LOG.error("failed to register the file status cache MBean", ex);
+            return null;
+        }
+    }
+    
+    private void unregisterFileStatusCacheMBean() {
+        if(this.fileStatusCacheMBeanName == null) {
+            return;
+        }
+        
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.fileStatusCacheMBeanName);
+        } catch (Exception ex) {
+            LOG.error("failed to unregister the file status cache MBean", ex);
+        }
+        this.fileStatusCacheMBeanName = null;
+    }
+    
+    public SyndicateFSFileStatusCache getFileStatusCache() {
+        return this.fileStatusCache;
+    }
+    
+    /**
+     * Returns the status of the path, or null if it does not exist.
+     * 
+     * @param path
+     * @return
+     * @throws IOException 
+     */
+    public SyndicateFSFileStatus getStatus(SyndicateFSPath path) throws IOException {
+        if(path == null) {
+            LOG.error("path is null");
+            throw new IllegalArgumentException("path is null");
+        }
+        
+        return getFileStatus(getAbsolutePath(path));
+    }
+    
+    public SyndicateUGHttpClient getUGRestClient(String sessionName) throws InstantiationException {
         boolean anonymous = false;
-        SyndicateUGHttpClient client;
+        String clientKey;
         
         if(sessionName == null || sessionName.isEmpty()) {
             // no session
             anonymous = true;
-            client = this.ugRestClients.get("$$_ANONYMOUS_$$");
+            clientKey = "$$_ANONYMOUS_$$";
         } else {
-            client = this.ugRestClients.get(sessionName);
+            clientKey = sessionName;
         }
         
+        SyndicateUGHttpClient client = this.ugRestClients.get(clientKey);
         if(client == null) {
             String sessionKey = null;
             if(anonymous) {
-                client = new SyndicateUGHttpClient(this.syndicateFsConf.getHost(), this.syndicateFsConf.getPort(), null, null);
-                this.ugRestClients.put("$$_ANONYMOUS_$$", client);
+                client = new SyndicateUGHttpClient(this.syndicateFsConf.getHost(), this.syndicateFsConf.getPort(), null, null, this.syndicateFsConf.getTransportConf());
             } else {
                 sessionKey = HSyndicateConfigUtils.getSyndicateUGSessionKey(this.hadoopConf, sessionName);
                 if(sessionKey == null || sessionKey.isEmpty()) {
                     sessionKey = "ANONYMOUS";
                 }
-                client = new SyndicateUGHttpClient(this.syndicateFsConf.getHost(), this.syndicateFsConf.getPort(), sessionName, sessionKey);
-                this.ugRestClients.put(sessionName, client);
+                client = new SyndicateUGHttpClient(this.syndicateFsConf.getHost(), this.syndicateFsConf.getPort(), sessionName, sessionKey, this.syndicateFsConf.getTransportConf());
+            }
+            
+            SyndicateUGHttpClient existingClient = this.ugRestClients.putIfAbsent(clientKey, client);
+            if(existingClient != null) {
+                // another thread created one first
+                try {
+                    client.close();
+                } catch (IOException ex) {
+                    LOG.error("exception occurred", ex);
+                }
+                client = existingClient;
             }
         }
         return client;
     }
     
+    public SyndicateFSBlockCache getBlockCache() {
+        return this.blockCache;
+    }
+    
+    public SyndicateFSBufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+    
+    /**
+     * Returns the disk block cache, or null if it is not enabled.
+     * 
+     * @return 
+     */
+    public SyndicateFSDiskBlockCache getDiskBlockCache() {
+        return this.diskBlockCache;
+    }
+    
+    public SyndicateFSKeepaliveService getKeepaliveService() {
+        return this.keepaliveService;
+    }
+    
     private StatRaw makeRootStat() {
         StatRaw rootStat = new StatRaw();
         rootStat.setName("/");
@@ -138,7 +272,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
         return sessionStat; 
     }
     
-    private SyndicateFSFileStatus getFileStatus(SyndicateFSPath absPath) throws IOException {
+    private SyndicateFSFileStatus getFileStatus(final SyndicateFSPath absPath) throws IOException {
         if(absPath == null) {
             LOG.error("Can not get FileStatus from null abspath");
             throw new IllegalArgumentException("Can not get FileStatus from null abspath");
@@ -150,7 +284,86 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             return cachedStatus;
         }
         
-        // not in memory cache
+        if(this.fileStatusCache.isMissing(absPath)) {
+            return null;
+        }
+        
+        // expired - revalidate siblings listed together with one listing
+        SyndicateFSPath listedBy = this.fileStatusCache.getRevalidationDirectory(absPath);
+        if(listedBy != null) {
+            try {
+                listDirectoryStatusShared(listedBy);
+            } catch (FileNotFoundException ex) {
+                // the directory is gone - fall back to stat
+            }
+            
+            cachedStatus = this.fileStatusCache.peek(absPath);
+            if(cachedStatus != null && !cachedStatus.isDirty()) {
+                return cachedStatus;
+            }
+        }
+        
+        // not in memory cache - join a request on the wire if there is one
+        SyndicateFSFileStatus status = this.fileStatusRequests.get(absPath, new SyndicateFSRequestCoalescer.Request<SyndicateFSFileStatus>() {
+            @Override
+            public SyndicateFSFileStatus load() throws IOException {
+                return loadFileStatus(absPath);
+            }
+
+            @Override
+            public void onLoaded(SyndicateFSFileStatus status) {
+                if(status != null) {
+                    fileStatusCache.put(absPath, status);
+                } else {
+                    fileStatusCache.putMissing(absPath);
+                }
+            }
+        });
+        
+        if(status != null) {
+            // the cache keeps the old status if the version did not change
+            cachedStatus = this.fileStatusCache.peek(absPath);
+            if(cachedStatus != null && !cachedStatus.isDirty()) {
+                return cachedStatus;
+            }
+        }
+        return status;
+    }
+    
+    /*
+     * Drops the cached status of the path, and keeps a stat that is on the
+     * wire from caching what it read before the change.
+     */
+    private void invalidateFileStatus(final SyndicateFSPath absPath) {
+        this.fileStatusRequests.invalidate(absPath, new Runnable() {
+            @Override
+            public void run() {
+                fileStatusCache.remove(absPath);
+            }
+        });
+        SyndicateFSPath parent = absPath.getParent();
+        if(parent != null) {
+            // a listing in flight may have read the entry before the change
+            this.listDirectoryRequests.invalidate(parent, new Runnable() {
+                @Override
+                public void run() {
+                    fileStatusCache.remove(absPath);
+                }
+            });
+        }
+        this.fileStatusCache.remove(absPath);
+    }
+    
+    /*
+     * A recursive delete drops the whole subtree at once, including entries
+     * cached by lookups while it ran.
+     */
+    @Override
+    protected void invalidateTree(SyndicateFSPath absPath) {
+        this.fileStatusCache.removeTree(absPath);
+    }
+    
+    private SyndicateFSFileStatus loadFileStatus(SyndicateFSPath absPath) throws IOException {
         StatRaw statRaw = null;
         
         if(absPath.getParent() == null) {
@@ -175,9 +388,12 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
                             
                             // put to memory cache
                             SyndicateFSPath entryPath = new SyndicateFSPath(absPath.getParent(), session.getName());
-                            this.fileStatusCache.remove(entryPath);
+                            if(entryPath.equals(absPath)) {
+                                // cached by the caller
+                                continue;
+                            }
                             SyndicateFSFileStatus entryStatus = new SyndicateFSFileStatus(this, entryPath, raw);
-                            this.fileStatusCache.put(entryPath, entryStatus);
+                            this.fileStatusCache.put(entryPath, entryStatus, absPath.getParent());
                         }
                     } else {
                         throw new IOException("Can not process REST operations");
@@ -204,13 +420,14 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             return null;
         }
         
-        SyndicateFSFileStatus status = new SyndicateFSFileStatus(this, absPath, statRaw);
-        this.fileStatusCache.put(absPath, status);
-        
-        return status;
+        return new SyndicateFSFileStatus(this, absPath, statRaw);
     }
     
     private SyndicateFSFileHandle getFileHandle(SyndicateFSFileStatus status, boolean readonly) throws IOException {
+        return getFileHandle(status, readonly, readonly && this.syndicateFsConf.getLazyOpen());
+    }
+    
+    private SyndicateFSFileHandle getFileHandle(SyndicateFSFileStatus status, boolean readonly, boolean lazy) throws IOException {
         if(status == null) {
             LOG.error("Can not get FileHandle from null status");
             throw new IllegalArgumentException("Can not get FileHandle from null status");
@@ -234,6 +451,11 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             }
         
             if(openFuture != null) {
+                if(readonly && lazy) {
+                    // the first read waits for the response
+                    return new SyndicateFSFileHandle(this, status, openFuture, readonly);
+                }
+                
                 fi = client.processOpen(openFuture);
                 return new SyndicateFSFileHandle(this, status, fi, readonly);
             } else {
@@ -245,7 +467,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
         }
     }
     
-    private synchronized SyndicateFSFileHandle createNewFile(SyndicateFSPath absPath) throws IOException {
+    private SyndicateFSFileHandle createNewFile(SyndicateFSPath absPath) throws IOException {
         if(absPath == null) {
             LOG.error("abspath is null");
             throw new IllegalArgumentException("abspath is null");
@@ -279,6 +501,9 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             Future<ClientResponse> openFuture = client.open(absPath.getPathWithoutSession(), "w");
             if(openFuture != null) {
                 FileDescriptor fi = client.processOpen(openFuture);
+                // the path may be cached as missing
+                invalidateFileStatus(absPath);
+                this.fileStatusCache.addToListing(absPath);
                 SyndicateFSFileStatus status = new SyndicateFSFileStatus(this, absPath);
                 return new SyndicateFSFileHandle(this, status, fi, false);
             } else {
@@ -286,12 +511,14 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             }
         } catch (Exception ex) {
             LOG.error("exception occurred", ex);
+            // the file may have been created
+            this.fileStatusCache.removeListing(absPath.getParent());
             throw new IOException(ex);
         }
     }
     
     @Override
-    public synchronized boolean exists(SyndicateFSPath path) {
+    public boolean exists(SyndicateFSPath path) {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -312,7 +539,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
     }
 
     @Override
-    public synchronized boolean isDirectory(SyndicateFSPath path) {
+    public boolean isDirectory(SyndicateFSPath path) {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -333,7 +560,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
     }
 
     @Override
-    public synchronized boolean isFile(SyndicateFSPath path) {
+    public boolean isFile(SyndicateFSPath path) {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -354,7 +581,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
     }
 
     @Override
-    public synchronized long getSize(SyndicateFSPath path) {
+    public long getSize(SyndicateFSPath path) {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -375,7 +602,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
     }
     
     @Override
-    public synchronized long getLastModifiedTime(SyndicateFSPath path) {
+    public long getLastModifiedTime(SyndicateFSPath path) {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -396,7 +623,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
     }
     
     @Override
-    public synchronized long getLastAccessTime(SyndicateFSPath path) {
+    public long getLastAccessTime(SyndicateFSPath path) {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -416,22 +643,8 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
         return 0;
     }
     
-    private FsAction parseMode(int mode) {
-        FsAction action = FsAction.NONE;
-        if((mode & 0x04) == 0x04) {
-            action = action.or(FsAction.READ);
-        }
-        if((mode & 0x02) == 0x02) {
-            action = action.or(FsAction.WRITE);
-        }
-        if((mode & 0x01) == 0x01) {
-            action = action.or(FsAction.EXECUTE);
-        }
-        return action;
-    }
-    
     @Override
-    public synchronized FsPermission getPermission(SyndicateFSPath path) {
+    public FsPermission getPermission(SyndicateFSPath path) {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -446,17 +659,13 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
         }
         
         if(status != null) {
-            int userMode = status.getUserMode();
-            int groupMode = status.getGroupMode();
-            int othersMode = status.getOthersMode();
-            
-            return new FsPermission(parseMode(userMode), parseMode(groupMode), parseMode(othersMode));
+            return status.getPermission();
         }
         return new FsPermission(FsAction.NONE, FsAction.NONE, FsAction.NONE);
     }
     
     @Override
-    public synchronized String getOwner(SyndicateFSPath path) {
+    public String getOwner(SyndicateFSPath path) {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -478,7 +687,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
     }
     
     @Override
-    public synchronized String getGroup(SyndicateFSPath path) {
+    public String getGroup(SyndicateFSPath path) {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -500,7 +709,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
     }
     
     @Override
-    public synchronized int getReplication(SyndicateFSPath path) {
+    public int getReplication(SyndicateFSPath path) {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -510,7 +719,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
     }
     
     @Override
-    public synchronized long getBlockSize() {
+    public long getBlockSize() {
         return DEFAULT_BLOCK_SIZE;
     }
     
@@ -539,19 +748,13 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
         
         // not in memory cache
         // query
-        Statvfs statvfs = null;
         try {
-            SyndicateUGHttpClient client = getUGRestClient(absPath.getSessionName());
-            Future<ClientResponse> statvfsFuture = client.getSessionStatvfs();
-            if(statvfsFuture != null) {
-                statvfs = client.processGetSessionStatvfs(statvfsFuture);
-                this.statVfsCache.put(absPath.getSessionName(), statvfs);
+            Statvfs statvfs = getSessionStatvfs(absPath.getSessionName());
+            if(statvfs != null) {
                 long bsize = statvfs.getBsize();
                 if(bsize > 0) {
                     return bsize;
                 }
-            } else {
-                LOG.error("Can not process REST operations");
             }
         } catch (Exception ex) {
             LOG.error("exception occurred", ex);
@@ -561,8 +764,37 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
         return getBlockSize();
     }
     
+    private Statvfs getSessionStatvfs(final String sessionName) throws IOException {
+        return this.statVfsRequests.get(sessionName, new SyndicateFSRequestCoalescer.Request<Statvfs>() {
+            @Override
+            public Statvfs load() throws IOException {
+                try {
+                    SyndicateUGHttpClient client = getUGRestClient(sessionName);
+                    Future<ClientResponse> statvfsFuture = client.getSessionStatvfs();
+                    if(statvfsFuture != null) {
+                        return client.processGetSessionStatvfs(statvfsFuture);
+                    } else {
+                        LOG.error("Can not process REST operations");
+                        return null;
+                    }
+                } catch (IOException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new IOException(ex);
+                }
+            }
+
+            @Override
+            public void onLoaded(Statvfs statvfs) {
+                if(statvfs != null) {
+                    statVfsCache.put(sessionName, statvfs);
+                }
+            }
+        });
+    }
+    
     @Override
-    public synchronized String[] listExtendedAttrs(SyndicateFSPath path) throws IOException {
+    public String[] listExtendedAttrs(SyndicateFSPath path) throws IOException {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -596,7 +828,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
     }
 
     @Override
-    public synchronized String getExtendedAttr(SyndicateFSPath path, String name) throws IOException {
+    public String getExtendedAttr(SyndicateFSPath path, String name) throws IOException {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -614,6 +846,10 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             throw new IOException("file not exist : " + path.toString());
         }
         
+        return requestExtendedAttr(absPath, name);
+    }
+    
+    private String requestExtendedAttr(SyndicateFSPath absPath, String name) throws IOException {
         try {
             SyndicateUGHttpClient client = getUGRestClient(absPath.getSessionName());
             Future<ClientResponse> getXattrFuture = client.getXattr(absPath.getPathWithoutSession(), name);
@@ -630,7 +866,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
     }
 
     @Override
-    public synchronized boolean delete(SyndicateFSPath path) throws FileNotFoundException, IOException {
+    public boolean delete(SyndicateFSPath path) throws FileNotFoundException, IOException {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -674,14 +910,19 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             }
         } catch (Exception ex) {
             LOG.error("exception occurred", ex);
+            // the file may have been deleted
+            invalidateFileStatus(absPath);
+            this.fileStatusCache.removeListing(absPath.getParent());
             throw new IOException(ex);
         }
-        this.fileStatusCache.remove(absPath);
+        invalidateFileStatus(absPath);
+        this.fileStatusCache.removeFromListing(absPath);
+        this.blockCache.invalidate(absPath.getSessionName(), absPath.getPathWithoutSession());
         return true;
     }
 
     @Override
-    public synchronized void rename(SyndicateFSPath path, SyndicateFSPath newpath) throws FileNotFoundException, IOException {
+    public void rename(SyndicateFSPath path, SyndicateFSPath newpath) throws FileNotFoundException, IOException {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -733,14 +974,23 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             }
         } catch (Exception ex) {
             LOG.error("exception occurred", ex);
+            // the file may have been moved
+            invalidateFileStatus(absPath);
+            invalidateFileStatus(absNewPath);
+            this.fileStatusCache.removeListing(absPath.getParent());
+            this.fileStatusCache.removeListing(absNewPath.getParent());
             throw new IOException(ex);
         }
         
-        this.fileStatusCache.remove(absPath);
+        invalidateFileStatus(absPath);
+        invalidateFileStatus(absNewPath);
+        this.fileStatusCache.removeFromListing(absPath);
+        this.fileStatusCache.addToListing(absNewPath);
+        this.blockCache.invalidate(absPath.getSessionName(), absPath.getPathWithoutSession());
     }
 
     @Override
-    public synchronized void mkdir(SyndicateFSPath path) throws IOException {
+    public void mkdir(SyndicateFSPath path) throws IOException {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
@@ -764,11 +1014,17 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             Future<ClientResponse> makeDirFuture = client.makeDir(absPath.getPathWithoutSession(), 0744);
             if(makeDirFuture != null) {
                 client.processMakeDir(makeDirFuture);
+                // the path may be cached as missing
+                invalidateFileStatus(absPath);
+                this.fileStatusCache.addToListing(absPath);
             } else {
                 throw new IOException("Can not process REST operations");
             }
         } catch (Exception ex) {
             LOG.error("exception occurred", ex);
+            // the directory may have been created
+            invalidateFileStatus(absPath);
+            this.fileStatusCache.removeListing(absPath.getParent());
             throw new IOException(ex);
         }
     }
@@ -787,16 +1043,121 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             throw new FileNotFoundException("Can not open the file to read : " + absPath.toString());
         }
         
+        if(status.isDirectory()) {
+            LOG.error("Can not open a directory to read : " + absPath.toString());
+            throw new IOException("Can not open a directory to read : " + absPath.toString());
+        }
+        
         SyndicateFSFileHandle handle = getFileHandle(status, true);
         if(handle == null) {
             LOG.error("Can not open the file to read : " + absPath.toString());
             throw new IOException("Can not open the file to read : " + absPath.toString());
         }
         
-        SyndicateFSInputStream is = new SyndicateFSInputStream(handle);
+        SyndicateFSInputStream is = new SyndicateFSInputStream(handle, this.syndicateFsConf.getReadAheadBlocks());
+        this.openInputStream.add(is);
+        return is;
+    }
+
+    /**
+     * Opens the file for reading with blocks fetched from several user
+     * gateways at once.
+     * 
+     * The file is also opened through each of the given file systems, which
+     * are connected to other gateways. Each block is requested from a gateway
+     * whose bitmap has the block cached, unless those are busy with a full
+     * read-ahead window, then from the least busy gateway. A file system that
+     * sees another version of the file is left out. The read-ahead window is
+     * scaled by the number of gateways, so every gateway keeps as many blocks
+     * in flight as a single-gateway stream.
+     * 
+     * @param path
+     * @param bitmap cache bitmap of this file system's gateway, may be null
+     * @param stripeFileSystems file systems connected to other gateways
+     * @param stripeBitmaps cache bitmaps of the other gateways, may contain null
+     * @return
+     * @throws FileNotFoundException
+     * @throws IOException 
+     */
+    public SyndicateFSInputStream getStripedFileInputStream(SyndicateFSPath path, BlockBitmap bitmap, List<SyndicateFileSystem> stripeFileSystems, List<BlockBitmap> stripeBitmaps) throws FileNotFoundException, IOException {
+        if(path == null) {
+            LOG.error("path is null");
+            throw new IllegalArgumentException("path is null");
+        }
+        
+        if(stripeFileSystems == null || stripeBitmaps == null || stripeFileSystems.size() != stripeBitmaps.size()) {
+            LOG.error("stripeFileSystems and stripeBitmaps must have the same size");
+            throw new IllegalArgumentException("stripeFileSystems and stripeBitmaps must have the same size");
+        }
+        
+        SyndicateFSPath absPath = getAbsolutePath(path);
+        SyndicateFSFileStatus status = getFileStatus(absPath);
+        if(status == null) {
+            LOG.error("Can not open the file to read : " + absPath.toString());
+            throw new FileNotFoundException("Can not open the file to read : " + absPath.toString());
+        }
+        
+        if(status.isDirectory()) {
+            LOG.error("Can not open a directory to read : " + absPath.toString());
+            throw new IOException("Can not open a directory to read : " + absPath.toString());
+        }
+        
+        List<SyndicateFSFileHandle> stripeHandles = new ArrayList<SyndicateFSFileHandle>();
+        List<BlockBitmap> bitmaps = new ArrayList<BlockBitmap>();
+        bitmaps.add(bitmap);
+        
+        // opens are sent at once, the first read from a gateway waits for its response
+        for(int i=0;i<stripeFileSystems.size();i++) {
+            SyndicateFileSystem stripeFs = stripeFileSystems.get(i);
+            if(stripeFs == null || stripeFs == this) {
+                continue;
+            }
+            
+            try {
+                SyndicateFSFileStatus stripeStatus = stripeFs.getFileStatus(absPath);
+                if(stripeStatus == null || !isSameVersion(status, stripeStatus)) {
+                    LOG.info("skipping a gateway that has another version of the file - " + stripeFs.getSyndicateFsConfiguration().getAddress());
+                    continue;
+                }
+                
+                stripeHandles.add(stripeFs.getFileHandle(stripeStatus, true, true));
+                bitmaps.add(stripeBitmaps.get(i));
+            } catch (IOException ex) {
+                LOG.info("skipping a gateway that failed to open the file - " + stripeFs.getSyndicateFsConfiguration().getAddress(), ex);
+            }
+        }
+        
+        SyndicateFSFileHandle handle;
+        try {
+            handle = getFileHandle(status, true);
+        } catch (IOException ex) {
+            for(SyndicateFSFileHandle stripeHandle : stripeHandles) {
+                closeQuietly(stripeHandle);
+            }
+            throw ex;
+        }
+        
+        SyndicateFSInputStream is = new SyndicateFSInputStream(handle, this.syndicateFsConf.getReadAheadBlocks(), stripeHandles, bitmaps);
         this.openInputStream.add(is);
         return is;
     }
+    
+    private static boolean isSameVersion(SyndicateFSFileStatus status1, SyndicateFSFileStatus status2) {
+        StatRaw statRaw1 = status1.getStatRaw();
+        StatRaw statRaw2 = status2.getStatRaw();
+        return statRaw1.getVersion() == statRaw2.getVersion()
+                && statRaw1.getWriteNonce() == statRaw2.getWriteNonce()
+                && statRaw1.getSize() == statRaw2.getSize()
+                && status1.getBlockSize() == status2.getBlockSize();
+    }
+    
+    private static void closeQuietly(SyndicateFSFileHandle handle) {
+        try {
+            handle.close();
+        } catch (IOException ex) {
+            LOG.error("exception occurred", ex);
+        }
+    }
 
     @Override
     public SyndicateFSOutputStream getFileOutputStream(SyndicateFSPath path) throws IOException {
@@ -820,7 +1181,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
                 throw new IOException("Can not open the file to write : " + absPath.toString());
             }
             
-            SyndicateFSOutputStream os = new SyndicateFSOutputStream(handle);
+            SyndicateFSOutputStream os = new SyndicateFSOutputStream(handle, this.syndicateFsConf.getWriteBehindBlocks());
             this.openOutputStream.add(os);
             return os;
         } else {
@@ -831,27 +1192,65 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
                 throw new IOException("Can not create a file to write : " + absPath.toString());
             }
 
-            SyndicateFSOutputStream os = new SyndicateFSOutputStream(handle);
+            SyndicateFSOutputStream os = new SyndicateFSOutputStream(handle, this.syndicateFsConf.getWriteBehindBlocks());
             this.openOutputStream.add(os);
             return os;
         }
     }
 
     @Override
-    public synchronized String[] readDirectoryEntries(SyndicateFSPath path) throws FileNotFoundException, IOException {
+    public String[] readDirectoryEntries(SyndicateFSPath path) throws FileNotFoundException, IOException {
+        SyndicateFSFileStatus[] statuses = listDirectoryStatus(path);
+        
+        String[] entries = new String[statuses.length];
+        for(int i=0;i<statuses.length;i++) {
+            entries[i] = statuses[i].getPath().getName();
+        }
+        return entries;
+    }
+    
+    @Override
+    public SyndicateFSFileStatus[] listDirectoryStatus(SyndicateFSPath path) throws FileNotFoundException, IOException {
         if(path == null) {
             LOG.error("path is null");
             throw new IllegalArgumentException("path is null");
         }
         
         SyndicateFSPath absPath = getAbsolutePath(path);
+        return listDirectoryStatusShared(absPath).clone();
+    }
+    
+    /*
+     * Lists the directory, joining a listing on the wire if there is one.
+     * The returned array is shared with the callers that joined.
+     */
+    private SyndicateFSFileStatus[] listDirectoryStatusShared(final SyndicateFSPath absPath) throws FileNotFoundException, IOException {
+        return this.listDirectoryRequests.get(absPath, new SyndicateFSRequestCoalescer.Request<SyndicateFSFileStatus[]>() {
+            @Override
+            public SyndicateFSFileStatus[] load() throws IOException {
+                return loadDirectoryStatus(absPath);
+            }
+
+            @Override
+            public void onLoaded(SyndicateFSFileStatus[] statuses) {
+                for(int i=0;i<statuses.length;i++) {
+                    // the cache keeps the old status if the version did not change
+                    statuses[i] = fileStatusCache.put(statuses[i].getPath(), statuses[i], absPath);
+                }
+                // missing children can be answered from the listing
+                fileStatusCache.putListing(absPath, statuses);
+            }
+        });
+    }
+    
+    private SyndicateFSFileStatus[] loadDirectoryStatus(SyndicateFSPath absPath) throws FileNotFoundException, IOException {
         SyndicateFSFileStatus status = getFileStatus(absPath);
         if(status == null) {
             LOG.error("directory does not exist : " + absPath.toString());
             throw new FileNotFoundException("directory does not exist : " + absPath.toString());
         }
         
-        List<String> entries = new ArrayList<String>();
+        List<SyndicateFSFileStatus> entries = new ArrayList<SyndicateFSFileStatus>();
         
         try {
             if(absPath.getSessionName() == null || absPath.getSessionName().isEmpty()) {
@@ -861,13 +1260,9 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
                     SessionList processListSessions = client.processListSessions(listSessionsFuture);
 
                     for(SessionInfo session : processListSessions.getSessions()) {
-                        entries.add(session.getName());
-                        
-                        // put to memory cache
                         SyndicateFSPath entryPath = new SyndicateFSPath(absPath, session.getName());
-                        this.fileStatusCache.remove(entryPath);
                         SyndicateFSFileStatus entryStatus = new SyndicateFSFileStatus(this, entryPath, makeSessionStat(session.getName(), session.getUser(), session.getVolume()));
-                        this.fileStatusCache.put(entryPath, entryStatus);
+                        entries.add(entryStatus);
                     }
                 } else {
                     throw new IOException("Can not process REST operations");
@@ -903,14 +1298,10 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
                         }
                     }
 
-                    entries.addAll(entryTable.keySet());
-
-                    // put to memory cache
                     for(StatRaw statRaw : entryTable.values()) {
                         SyndicateFSPath entryPath = new SyndicateFSPath(absPath, statRaw.getName());
-                        this.fileStatusCache.remove(entryPath);
                         SyndicateFSFileStatus entryStatus = new SyndicateFSFileStatus(this, entryPath, statRaw);
-                        this.fileStatusCache.put(entryPath, entryStatus);
+                        entries.add(entryStatus);
                     }
                 } else {
                     throw new IOException("Can not process REST operations");
@@ -921,36 +1312,47 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             throw new IOException(ex);
         }
         
-        return entries.toArray(new String[0]);
+        return entries.toArray(new SyndicateFSFileStatus[0]);
     }
 
     @Override
-    public synchronized byte[] getLocalCachedBlocks(SyndicateFSPath path) throws FileNotFoundException, IOException {
+    public BlockBitmap getLocalCachedBlocks(SyndicateFSPath path) throws FileNotFoundException, IOException {
         long blocksize = getBlockSize(path);
         long filesize = this.getSize(path);
         
-        int blocknum = BlockUtils.getBlocks(filesize, blocksize);
-        
-        String blockBitmapString = getExtendedAttr(path, LOCAL_CACHED_BLOCKS_XATTR_NAME);
+        return getLocalCachedBlocks(path, BlockUtils.getBlocks(filesize, blocksize));
+    }
+    
+    /**
+     * Returns the cache bitmap of the file for the given number of blocks.
+     * Only the attribute is requested; the status of the file is not looked
+     * up.
+     * 
+     * @param path
+     * @param blocknum
+     * @return
+     * @throws FileNotFoundException
+     * @throws IOException 
+     */
+    public BlockBitmap getLocalCachedBlocks(SyndicateFSPath path, int blocknum) throws FileNotFoundException, IOException {
+        if(path == null) {
+            LOG.error("path is null");
+            throw new IllegalArgumentException("path is null");
+        }
         
-        byte[] bitmap = new byte[blocknum];
-        for(int i=0;i<blocknum;i++) {
-            bitmap[i] = 0;
-            
-            if(blockBitmapString != null) {
-                if(i < blockBitmapString.length()) {
-                    // exist
-                    if(blockBitmapString.charAt(i) == '1') {
-                        bitmap[i] = 1;
-                    }
-                }
-            }
+        SyndicateFSPath absPath = getAbsolutePath(path);
+        if(absPath.getParent() == null) {
+            // root
+            throw new IOException(String.format("Attribute not exist : %s - %s", absPath.toString(), LOCAL_CACHED_BLOCKS_XATTR_NAME));
         }
-        return bitmap;
+        
+        String blockBitmapString = requestExtendedAttr(absPath, LOCAL_CACHED_BLOCKS_XATTR_NAME);
+        
+        return BlockBitmap.parse(blockBitmapString, blocknum);
     }
     
     @Override
-    public synchronized Map<UnsignedLong, File> listLocalCachedBlocks(SyndicateFSPath path) throws FileNotFoundException, IOException {
+    public Map<UnsignedLong, File> listLocalCachedBlocks(SyndicateFSPath path) throws FileNotFoundException, IOException {
         String localCachePath = getExtendedAttr(path, LOCAL_CACHED_FILE_PATH_XATTR_NAME);
     
         Map<UnsignedLong, File> fileTable = new HashMap<UnsignedLong, File>();
@@ -987,7 +1389,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
         return fileTable;
     }
     
-    synchronized void notifyInputStreamClosed(SyndicateFSInputStream inputStream) {
+    void notifyInputStreamClosed(SyndicateFSInputStream inputStream) {
         if(inputStream == null) {
             LOG.error("inputStream is null");
             throw new IllegalArgumentException("inputStream is null");
@@ -996,7 +1398,7 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
         this.openInputStream.remove(inputStream);
     }
     
-    synchronized void notifyOutputStreamClosed(SyndicateFSOutputStream outputStream) {
+    void notifyOutputStreamClosed(SyndicateFSOutputStream outputStream) {
         if(outputStream == null) {
             LOG.error("outputStream is null");
             throw new IllegalArgumentException("outputStream is null");
@@ -1032,7 +1434,28 @@ public class SyndicateFileSystem extends AHSyndicateFileSystemBase {
             }
         }
         
-        this.fileStatusCache.clear();
+        LOG.info(this.keepaliveService.toString());
+        this.keepaliveService.close();
+        
+        if(!this.fileStatusCacheShared) {
+            LOG.info(this.fileStatusCache.toString());
+            unregisterFileStatusCacheMBean();
+            this.fileStatusCache.clear();
+        }
+        LOG.info("stat " + this.fileStatusRequests.toString());
+        LOG.info("listdir " + this.listDirectoryRequests.toString());
+        LOG.info("statvfs " + this.statVfsRequests.toString());
+        
+        LOG.info(this.blockCache.toString());
+        this.blockCache.clear();
+        
+        if(this.diskBlockCache != null) {
+            SyndicateFSDiskBlockCache.release(this.diskBlockCache);
+            this.diskBlockCache = null;
+        }
+        
+        LOG.info(this.bufferPool.toString());
+        this.bufferPool.clear();
 
         for(String key : this.ugRestClients.keySet()) {
             SyndicateUGHttpClient client = this.ugRestClients.get(key);
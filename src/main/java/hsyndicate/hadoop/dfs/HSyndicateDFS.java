@@ -15,14 +15,24 @@
 */
 package hsyndicate.hadoop.dfs;
 
+import hsyndicate.fs.SyndicateFSFileStatus;
+import hsyndicate.fs.SyndicateFSInputStream;
 import hsyndicate.fs.SyndicateFSPath;
 import hsyndicate.fs.SyndicateFSConfiguration;
+import hsyndicate.fs.SyndicateFSTreeWalker;
 import hsyndicate.fs.SyndicateFileSystem;
+import hsyndicate.rest.datatypes.StatRaw;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
@@ -31,7 +41,11 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.fs.RemoteIterator;
+import hsyndicate.utils.BlockBitmap;
 import hsyndicate.utils.BlockUtils;
 import hsyndicate.hadoop.utils.HSyndicateConfigUtils;
 import hsyndicate.utils.IPUtils;
@@ -44,13 +58,17 @@ public class HSyndicateDFS extends FileSystem {
     
     private URI uri;
     private SyndicateFileSystem syndicateFS;
-    private Path workingDir;
+    private Map<String, SyndicateFileSystem> gatewayFileSystems = new HashMap<String, SyndicateFileSystem>();
+    private HSyndicateLocalityService localityService;
+    private HSyndicateUGRouter router;
+    private int readStripes;
+    private volatile Path workingDir;
     
     public HSyndicateDFS() {
     }
 
     @Override
-    public synchronized URI getUri() {
+    public URI getUri() {
         return this.uri;
     }
 
@@ -64,6 +82,15 @@ public class HSyndicateDFS extends FileSystem {
         
         this.syndicateFS = createHSyndicateFS(uri, conf);
         
+        // reads are routed only when no gateway is given in the uri or local
+        if((uri.getHost() == null || uri.getHost().isEmpty())
+                && HSyndicateConfigUtils.ROUTING_HASH.equalsIgnoreCase(HSyndicateConfigUtils.getSyndicateRouting(conf))
+                && !HSyndicateConfigUtils.hasLocalSyndicateUGHost(conf)) {
+            this.router = HSyndicateUGRouter.getInstance(conf);
+        }
+        
+        this.readStripes = HSyndicateConfigUtils.getSyndicateReadStripes(conf);
+        
         setConf(conf);
         
         this.uri = uri;
@@ -97,17 +124,17 @@ public class HSyndicateDFS extends FileSystem {
     }
     
     @Override
-    public synchronized String getName() {
+    public String getName() {
         return getUri().toString();
     }
 
     @Override
-    public synchronized Path getWorkingDirectory() {
+    public Path getWorkingDirectory() {
         return this.workingDir;
     }
     
     @Override
-    public synchronized void setWorkingDirectory(Path path) {
+    public void setWorkingDirectory(Path path) {
         this.workingDir = makeAbsolute(path);
     }
     
@@ -132,19 +159,19 @@ public class HSyndicateDFS extends FileSystem {
     }
     
     @Override
-    public synchronized boolean mkdirs(Path path, FsPermission permission) throws IOException {
+    public boolean mkdirs(Path path, FsPermission permission) throws IOException {
         SyndicateFSPath hpath = makeSyndicateFSPath(path);
         return this.syndicateFS.mkdirs(hpath);
     }
     
     @Override
-    public synchronized boolean isFile(Path path) throws IOException {
+    public boolean isFile(Path path) throws IOException {
         SyndicateFSPath hpath = makeSyndicateFSPath(path);
         return this.syndicateFS.isFile(hpath);
     }
     
     @Override
-    public synchronized FileStatus[] listStatus(Path f) throws IOException {
+    public FileStatus[] listStatus(Path f) throws IOException {
         SyndicateFSPath hpath = makeSyndicateFSPath(f);
         if(!this.syndicateFS.exists(hpath)) {
             return null;
@@ -156,23 +183,116 @@ public class HSyndicateDFS extends FileSystem {
             };
         }
         
-        List<FileStatus> ret = new ArrayList<FileStatus>();
-        for (String p : this.syndicateFS.readDirectoryEntries(hpath)) {
-            ret.add(getFileStatus(new Path(f, p)));
+        // statuses come with the listing - no lookup per entry
+        SyndicateFSFileStatus[] entries = this.syndicateFS.listDirectoryStatus(hpath);
+        FileStatus[] ret = new FileStatus[entries.length];
+        for (int i=0;i<entries.length;i++) {
+            Path p = new Path(f, entries[i].getPath().getName());
+            ret[i] = new HSyndicateFileStatus(makeQualified(p), entries[i]);
+        }
+        return ret;
+    }
+    
+    private LocatedFileStatus toLocatedFileStatus(FileStatus status) throws IOException {
+        BlockLocation[] locations = null;
+        if(status.isFile()) {
+            locations = getFileBlockLocations(status, 0, status.getLen());
+        }
+        return new LocatedFileStatus(status, locations);
+    }
+    
+    /*
+     * Lists the directory with one request, and looks up block locations
+     * only as entries are taken.
+     */
+    @Override
+    protected RemoteIterator<LocatedFileStatus> listLocatedStatus(final Path f, final PathFilter filter) throws FileNotFoundException, IOException {
+        final FileStatus[] statuses = listStatus(f);
+        if(statuses == null) {
+            throw new FileNotFoundException(f + ": No such file or directory.");
+        }
+        
+        return new RemoteIterator<LocatedFileStatus>() {
+            private int index = 0;
+            private LocatedFileStatus nextStatus;
+            
+            @Override
+            public boolean hasNext() throws IOException {
+                while(this.nextStatus == null && this.index < statuses.length) {
+                    FileStatus status = statuses[this.index++];
+                    if(filter.accept(status.getPath())) {
+                        this.nextStatus = toLocatedFileStatus(status);
+                    }
+                }
+                return this.nextStatus != null;
+            }
+
+            @Override
+            public LocatedFileStatus next() throws IOException {
+                if(!hasNext()) {
+                    throw new NoSuchElementException("No more entries in " + f);
+                }
+                
+                LocatedFileStatus status = this.nextStatus;
+                this.nextStatus = null;
+                return status;
+            }
+        };
+    }
+    
+    /*
+     * A recursive listing lists subdirectories in parallel. Files come in no
+     * particular order.
+     */
+    @Override
+    public RemoteIterator<LocatedFileStatus> listFiles(final Path f, boolean recursive) throws FileNotFoundException, IOException {
+        SyndicateFSPath hpath = makeSyndicateFSPath(f);
+        if(!recursive || !this.syndicateFS.isDirectory(hpath)) {
+            return super.listFiles(f, recursive);
         }
-        return ret.toArray(new FileStatus[0]);
+        
+        final SyndicateFSTreeWalker walker = this.syndicateFS.walkFiles(hpath, null);
+        return new RemoteIterator<LocatedFileStatus>() {
+
+            @Override
+            public boolean hasNext() throws IOException {
+                boolean hasNext;
+                try {
+                    hasNext = walker.hasNext();
+                } catch (IOException ex) {
+                    walker.close();
+                    throw ex;
+                }
+                
+                if(!hasNext) {
+                    walker.close();
+                }
+                return hasNext;
+            }
+
+            @Override
+            public LocatedFileStatus next() throws IOException {
+                if(!hasNext()) {
+                    throw new NoSuchElementException("no more files");
+                }
+                
+                SyndicateFSFileStatus status = walker.next();
+                Path p = new Path(status.getPath().getPath());
+                return toLocatedFileStatus(new HSyndicateFileStatus(HSyndicateDFS.this.makeQualified(p), status));
+            }
+        };
     }
     
     /**
      * This optional operation is not yet supported.
      */
     @Override
-    public synchronized FSDataOutputStream append(Path f, int bufferSize, Progressable progress) throws IOException {
+    public FSDataOutputStream append(Path f, int bufferSize, Progressable progress) throws IOException {
         throw new IOException("Not supported");
     }
     
     @Override
-    public synchronized FSDataOutputStream create(Path file, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
+    public FSDataOutputStream create(Path file, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
         SyndicateFSPath hpath = makeSyndicateFSPath(file);
         if(this.syndicateFS.exists(hpath)) {
             if (overwrite) {
@@ -193,20 +313,151 @@ public class HSyndicateDFS extends FileSystem {
     }
     
     @Override
-    public synchronized FSDataInputStream open(Path path, int bufferSize) throws IOException {
+    public FSDataInputStream open(Path path, int bufferSize) throws IOException {
         SyndicateFSPath hpath = makeSyndicateFSPath(path);
-        if (!this.syndicateFS.exists(hpath)) {
-            throw new IOException("No such file.");
+        if(this.router != null) {
+            return new FSDataInputStream(openRouted(hpath));
+        }
+        
+        // the input stream checks that the path is a file with a single lookup
+        return new FSDataInputStream(new HSyndicateInputStream(this.syndicateFS, hpath, openFileInputStream(this.syndicateFS, hpath), this.statistics));
+    }
+    
+    /*
+     * Reads the file through the gateway the router picks for it, so that
+     * repeated reads of the file hit one gateway cache.
+     */
+    private HSyndicateInputStream openRouted(SyndicateFSPath hpath) throws IOException {
+        final HSyndicateUGRouter fileRouter = this.router;
+        final String host = fileRouter.acquire(hpath.toString());
+        SyndicateFileSystem fs;
+        try {
+            fs = getGatewayFileSystem(host);
+        } catch (IOException ex) {
+            fileRouter.release(host);
+            throw ex;
+        }
+        
+        if(fs == null) {
+            fileRouter.release(host);
+            return new HSyndicateInputStream(this.syndicateFS, hpath, openFileInputStream(this.syndicateFS, hpath), this.statistics);
+        }
+        
+        try {
+            return new HSyndicateInputStream(fs, hpath, openFileInputStream(fs, hpath), this.statistics) {
+                private boolean released = false;
+                
+                @Override
+                public synchronized void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if(!this.released) {
+                            this.released = true;
+                            fileRouter.release(host);
+                        }
+                    }
+                }
+            };
+        } catch (IOException ex) {
+            fileRouter.release(host);
+            throw ex;
+        } catch (RuntimeException ex) {
+            fileRouter.release(host);
+            throw ex;
+        }
+    }
+
+    /*
+     * Returns the file system of this instance connected to the user gateway,
+     * created on first use from the configuration of this instance so that
+     * the gateway is accessed with its credentials. File status is looked up
+     * through the cache of the default file system, so that modifications
+     * made through this instance are seen on every gateway.
+     */
+    private synchronized SyndicateFileSystem getGatewayFileSystem(String gatewayHostname) throws IOException {
+        if(gatewayHostname.equals(this.syndicateFS.getSyndicateFsConfiguration().getAddress())) {
+            return this.syndicateFS;
+        }
+        
+        SyndicateFileSystem fs = this.gatewayFileSystems.get(gatewayHostname);
+        if(fs == null) {
+            if(!Arrays.asList(HSyndicateConfigUtils.listSyndicateUGHostsWithPort(getConf())).contains(gatewayHostname)) {
+                return null;
+            }
+            
+            SyndicateFSConfiguration sconf = HSyndicateConfigUtils.createSyndicateConf(getConf(), gatewayHostname);
+            try {
+                fs = new SyndicateFileSystem(sconf, getConf(), this.syndicateFS.getFileStatusCache());
+            } catch (InstantiationException ex) {
+                throw new IOException(ex.getCause());
+            }
+            this.gatewayFileSystems.put(gatewayHostname, fs);
+        }
+        return fs;
+    }
+
+    /*
+     * Opens the file through the gateway of the file system. With striped
+     * reads, the file is also opened on the gateways that cache most of its
+     * blocks, and blocks are fetched from all of them.
+     */
+    private SyndicateFSInputStream openFileInputStream(SyndicateFileSystem fs, SyndicateFSPath hpath) throws IOException {
+        if(this.readStripes <= 1) {
+            return fs.getFileInputStream(hpath);
+        }
+        
+        SyndicateFSFileStatus hstatus = fs.getStatus(hpath);
+        if(hstatus == null || !hstatus.isFile() || hstatus.getSize() <= hstatus.getBlockSize()) {
+            // errors are reported by the stream, a single block has nothing to stripe
+            return fs.getFileInputStream(hpath);
         }
-        if (this.syndicateFS.isDirectory(hpath)) {
-            throw new IOException("Path " + path + " is a directory.");
+        
+        String address = fs.getSyndicateFsConfiguration().getAddress();
+        List<String> hosts = Arrays.asList(HSyndicateConfigUtils.listSyndicateUGHostsWithPort(getConf()));
+        BlockBitmap bitmap = null;
+        List<HSyndicateUGMonitorResults<BlockBitmap>> candidates = new ArrayList<HSyndicateUGMonitorResults<BlockBitmap>>();
+        for(HSyndicateUGMonitorResults<BlockBitmap> result : getLocalCachedBlockInfo(hpath, hstatus)) {
+            if(result.getHostname().equals(address)) {
+                bitmap = result.getResult();
+            } else if(hosts.contains(result.getHostname())) {
+                candidates.add(result);
+            }
+        }
+        
+        if(candidates.isEmpty()) {
+            return fs.getFileInputStream(hpath);
+        }
+        
+        // gateways caching more blocks come first, ties are rotated per file
+        // so that files no gateway caches spread over all of them
+        Collections.rotate(candidates, (hpath.toString().hashCode() & Integer.MAX_VALUE) % candidates.size());
+        Collections.sort(candidates, new Comparator<HSyndicateUGMonitorResults<BlockBitmap>>() {
+            @Override
+            public int compare(HSyndicateUGMonitorResults<BlockBitmap> r1, HSyndicateUGMonitorResults<BlockBitmap> r2) {
+                int count1 = r1.getResult() == null ? 0 : r1.getResult().count();
+                int count2 = r2.getResult() == null ? 0 : r2.getResult().count();
+                return count2 - count1;
+            }
+        });
+        
+        List<SyndicateFileSystem> stripeFileSystems = new ArrayList<SyndicateFileSystem>();
+        List<BlockBitmap> stripeBitmaps = new ArrayList<BlockBitmap>();
+        for(HSyndicateUGMonitorResults<BlockBitmap> candidate : candidates) {
+            if(stripeFileSystems.size() >= this.readStripes - 1) {
+                break;
+            }
+            
+            // stripes read with the credentials of this instance
+            stripeFileSystems.add(getGatewayFileSystem(candidate.getHostname()));
+            stripeBitmaps.add(candidate.getResult());
         }
         
-        return new FSDataInputStream(new HSyndicateInputStream(this.syndicateFS, hpath, this.statistics));
+        return fs.getStripedFileInputStream(hpath, bitmap, stripeFileSystems, stripeBitmaps);
     }
 
     @Override
-    public synchronized boolean rename(Path src, Path dst) throws IOException {
+    public boolean rename(Path src, Path dst) throws IOException {
         SyndicateFSPath hsrc = makeSyndicateFSPath(src);
         SyndicateFSPath hdst = makeSyndicateFSPath(dst);
         
@@ -235,7 +486,7 @@ public class HSyndicateDFS extends FileSystem {
     }
     
     @Override
-    public synchronized boolean delete(Path path, boolean recursive) throws IOException {
+    public boolean delete(Path path, boolean recursive) throws IOException {
         SyndicateFSPath hpath = makeSyndicateFSPath(path);
         if (!this.syndicateFS.exists(hpath)) {
             return false;
@@ -254,12 +505,12 @@ public class HSyndicateDFS extends FileSystem {
     }
     
     @Override
-    public synchronized boolean delete(Path path) throws IOException {
+    public boolean delete(Path path) throws IOException {
         return delete(path, true);
     }
 
     @Override
-    public synchronized FileStatus getFileStatus(Path f) throws IOException {
+    public FileStatus getFileStatus(Path f) throws IOException {
         SyndicateFSPath hpath = makeSyndicateFSPath(f);
         if(!this.syndicateFS.exists(hpath)) {
             throw new FileNotFoundException(f + ": No such file or directory.");
@@ -269,62 +520,49 @@ public class HSyndicateDFS extends FileSystem {
     }
     
     @Override
-    public synchronized long getDefaultBlockSize() {
+    public long getDefaultBlockSize() {
         return this.syndicateFS.getBlockSize() * 64;
     }
     
     @Override
-    public synchronized BlockLocation[] getFileBlockLocations(FileStatus file, long start, long len) {
-        HSyndicateUGMonitor monitor = null;
+    public BlockLocation[] getFileBlockLocations(FileStatus file, long start, long len) {
         try {
-            monitor = new HSyndicateUGMonitor(this.getConf());
-            SyndicateFSPath hpath = makeSyndicateFSPath(file.getPath());
-
             long filesize = file.getLen();
-            long pblocksize = this.syndicateFS.getBlockSize(hpath);
+            long pblocksize = file.getBlockSize();
+            if(pblocksize <= 0) {
+                // the status was not built by this file system
+                pblocksize = this.syndicateFS.getBlockSize(makeSyndicateFSPath(file.getPath()));
+            }
             long lblocksize = getDefaultBlockSize();
-            int groupof = 64;
-            
-            int pstartblockID = BlockUtils.getBlockID(start, pblocksize);
-            int pendblockID = BlockUtils.getBlockID(start + len, pblocksize);
-            int peffectiveblocklen = pendblockID - pstartblockID + 1;
             
             int lstartblockID = BlockUtils.getBlockID(start, lblocksize);
             int lendblockID = BlockUtils.getBlockID(start + len, lblocksize);
             int leffectiveblocklen = lendblockID - lstartblockID + 1;
 
             BlockLocation[] locations = new BlockLocation[leffectiveblocklen];
-            List<HSyndicateUGMonitorResults<byte[]>> localCachedBlockInfo = monitor.getLocalCachedBlockInfo(hpath);
+            List<HSyndicateUGMonitorResults<BlockBitmap>> localCachedBlockInfo = getLocalCachedBlockInfo(file.getPath());
             
             for(int i=0;i<leffectiveblocklen;i++) {
+                long loffset = BlockUtils.getBlockStartOffset(lstartblockID + i, lblocksize);
+                long llength = BlockUtils.getBlockLength(filesize, lblocksize, lstartblockID + i);
                 locations[i] = new BlockLocation();
-                locations[i].setOffset(BlockUtils.getBlockStartOffset(lstartblockID + i, lblocksize));
-                locations[i].setLength(BlockUtils.getBlockLength(filesize, lblocksize, lstartblockID + i));
+                locations[i].setOffset(loffset);
+                locations[i].setLength(llength);
                 
                 List<String> gateway_hosts = new ArrayList<String>();
                 List<String> gateway_names = new ArrayList<String>();
                 List<String> gateway_topology = new ArrayList<String>();
                 
-                int[] lcachedcnt = new int[localCachedBlockInfo.size()];
-                for(int k=0;k<lcachedcnt.length;k++) {
-                    lcachedcnt[k] = 0;
-                }
+                // physical blocks covered by the logical block
+                int pfromblockID = BlockUtils.getBlockID(loffset, pblocksize);
+                int ptoblockID = pfromblockID + BlockUtils.getBlocks(llength, pblocksize);
                 
+                int[] lcachedcnt = new int[localCachedBlockInfo.size()];
                 for(int k=0;k<lcachedcnt.length;k++) {
-                    HSyndicateUGMonitorResults<byte[]> info = localCachedBlockInfo.get(k);
-                    if(info.getResult() != null) {
-                        for(int j=0;j<groupof;j++) {
-                            int pcurblockID = pstartblockID + (i * groupof) + j;
-                            if(pcurblockID >= peffectiveblocklen) {
-                                break;
-                            }
-                            
-                            boolean hasCache = BlockUtils.checkBlockPresence(pcurblockID, info.getResult());
-                            if(hasCache) {
-                                lcachedcnt[k]++;
-                            }
-                        }
-                    }    
+                    BlockBitmap bitmap = localCachedBlockInfo.get(k).getResult();
+                    if(bitmap != null) {
+                        lcachedcnt[k] = bitmap.count(pfromblockID, ptoblockID);
+                    }
                 }
                 
                 int maxCnt = 0;
@@ -337,14 +575,14 @@ public class HSyndicateDFS extends FileSystem {
                 if(maxCnt > 0) {
                     for(int k=0;k<lcachedcnt.length;k++) {
                         if(lcachedcnt[k] == maxCnt) {
-                            HSyndicateUGMonitorResults<byte[]> info = localCachedBlockInfo.get(k);
+                            HSyndicateUGMonitorResults<BlockBitmap> info = localCachedBlockInfo.get(k);
                             gateway_names.add(info.getHostname());
                         }
                     }
                 }
                 
                 if(gateway_names.isEmpty()) {
-                    gateway_names.addAll(monitor.getUserGatewayHosts());
+                    gateway_names.addAll(getUserGatewayHosts());
                 }
                 
                 for(String name : gateway_names) {
@@ -357,19 +595,54 @@ public class HSyndicateDFS extends FileSystem {
                 locations[i].setTopologyPaths(gateway_topology.toArray(new String[0]));
             }
             
-            monitor.close();
             return locations;
         } catch (Exception ex) {
             LOG.info(ex);
-            if(monitor != null) {
-                try {
-                    monitor.close();
-                } catch (IOException ex1) {}
-            }
         }
         return null;
     }
     
+    /**
+     * Returns the cache bitmap of the file for each user gateway, in the
+     * order of getUserGatewayHosts(). A bit stands for a block of the size
+     * reported by the file status. The result of a gateway that did not
+     * answer in time is null.
+     * 
+     * @param path
+     * @return
+     * @throws IOException 
+     */
+    public List<HSyndicateUGMonitorResults<BlockBitmap>> getLocalCachedBlockInfo(Path path) throws IOException {
+        SyndicateFSPath hpath = makeSyndicateFSPath(path);
+        SyndicateFSFileStatus hstatus = this.syndicateFS.getStatus(hpath);
+        if(hstatus == null) {
+            throw new FileNotFoundException("No such file - " + hpath.toString());
+        }
+        
+        return getLocalCachedBlockInfo(hpath, hstatus);
+    }
+    
+    private List<HSyndicateUGMonitorResults<BlockBitmap>> getLocalCachedBlockInfo(SyndicateFSPath hpath, SyndicateFSFileStatus hstatus) throws IOException {
+        StatRaw statRaw = hstatus.getStatRaw();
+        int blocks = BlockUtils.getBlocks(hstatus.getSize(), hstatus.getBlockSize());
+        return getLocalityService().getLocalCachedBlockInfo(hpath, statRaw.getVersion(), statRaw.getWriteNonce(), blocks);
+    }
+    
+    public List<String> getUserGatewayHosts() throws IOException {
+        return getLocalityService().getUserGatewayHosts();
+    }
+    
+    /*
+     * The service is shared by all file systems of the process and is not
+     * closed with this one.
+     */
+    private synchronized HSyndicateLocalityService getLocalityService() throws IOException {
+        if(this.localityService == null) {
+            this.localityService = HSyndicateLocalityService.getInstance(getConf());
+        }
+        return this.localityService;
+    }
+    
     private static class HSyndicateFileStatus extends FileStatus {
 
         HSyndicateFileStatus(Path p, SyndicateFileSystem fs, SyndicateFSPath hpath) throws IOException {
@@ -385,6 +658,19 @@ public class HSyndicateDFS extends FileSystem {
                     p);
         }
 
+        HSyndicateFileStatus(Path p, SyndicateFSFileStatus status) throws IOException {
+            super(status.getSize(), 
+                    status.isDirectory(), 
+                    1, 
+                    status.getBlockSize(), 
+                    status.getLastModification(), 
+                    status.getLastAccess(), 
+                    status.getPermission(), 
+                    status.getOwner(), 
+                    status.getGroup(), 
+                    p);
+        }
+
         private static long getFileLength(SyndicateFileSystem fs, SyndicateFSPath hpath) {
             return fs.getSize(hpath);
         }
@@ -392,6 +678,16 @@ public class HSyndicateDFS extends FileSystem {
     
     @Override
     public synchronized void close() throws IOException {
+        // gateway file systems look up status through the default one
+        for(SyndicateFileSystem fs : this.gatewayFileSystems.values()) {
+            try {
+                fs.close();
+            } catch (IOException ex) {
+                LOG.error("failed to close the file system of " + fs.getSyndicateFsConfiguration().getAddress(), ex);
+            }
+        }
+        this.gatewayFileSystems.clear();
+        
         this.syndicateFS.close();
         
         super.close();
@@ -19,14 +19,16 @@ import hsyndicate.fs.SyndicateFSInputStream;
 import hsyndicate.fs.SyndicateFSPath;
 import hsyndicate.fs.SyndicateFileSystem;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.ByteBufferReadable;
 import org.apache.hadoop.fs.FSInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.PositionedReadable;
 import org.apache.hadoop.fs.Seekable;
 
-public class HSyndicateInputStream extends FSInputStream implements Seekable, PositionedReadable {
+public class HSyndicateInputStream extends FSInputStream implements Seekable, PositionedReadable, ByteBufferReadable {
 
     private static final Log LOG = LogFactory.getLog(HSyndicateInputStream.class);
     
@@ -34,14 +36,18 @@ public class HSyndicateInputStream extends FSInputStream implements Seekable, Po
     private SyndicateFileSystem fs;
     private FileSystem.Statistics stats;
     private long fileLength;
-    private SyndicateFSInputStream in;
+    private volatile SyndicateFSInputStream in;
     
     public HSyndicateInputStream(SyndicateFileSystem fs, SyndicateFSPath path, FileSystem.Statistics stats) throws IOException {
+        this(fs, path, fs.getFileInputStream(path), stats);
+    }
+    
+    public HSyndicateInputStream(SyndicateFileSystem fs, SyndicateFSPath path, SyndicateFSInputStream in, FileSystem.Statistics stats) throws IOException {
         this.path = path;
         this.fs = fs;
         this.stats = stats;
-        this.fileLength = fs.getSize(path);
-        this.in = fs.getFileInputStream(path);
+        this.in = in;
+        this.fileLength = this.in.getSize();
     }
     
     public synchronized long getSize() throws IOException {
@@ -94,41 +100,44 @@ public class HSyndicateInputStream extends FSInputStream implements Seekable, Po
     }
     
     @Override
-    public int read(long pos, byte[] bytes, int off, int len) throws IOException {
-        this.in.seek(pos);
-        
-        if(this.in.getPos() != pos) {
-            throw new IOException("Cannot find position : " + pos);
+    public synchronized int read(ByteBuffer buf) throws IOException {
+        int result = this.in.read(buf);
+        if (this.stats != null && result > 0) {
+            this.stats.incrementBytesRead(result);
         }
         
-        int available = this.in.available();
-        if(available > 0) {
-            return this.in.read(bytes, off, Math.min(len, available));
-        } else {
-            return this.in.read(bytes, off, len);
+        return result;
+    }
+    
+    private SyndicateFSInputStream getInputStream() throws IOException {
+        SyndicateFSInputStream is = this.in;
+        if(is == null) {
+            throw new IOException("Stream is closed");
         }
+        return is;
+    }
+    
+    @Override
+    public int read(long pos, byte[] bytes, int off, int len) throws IOException {
+        int result = getInputStream().read(pos, bytes, off, len);
+        if (this.stats != null && result > 0) {
+            this.stats.incrementBytesRead(result);
+        }
+        
+        return result;
     }
 
     @Override
     public void readFully(long pos, byte[] bytes, int off, int len) throws IOException {
-        this.in.seek(pos);
-        
-        if(this.in.getPos() != pos) {
-            throw new IOException("Cannot find position : " + pos);
+        getInputStream().readFully(pos, bytes, off, len);
+        if (this.stats != null && len > 0) {
+            this.stats.incrementBytesRead(len);
         }
-        
-        this.in.read(bytes, off, len);
     }
 
     @Override
     public void readFully(long pos, byte[] bytes) throws IOException {
-        this.in.seek(pos);
-        
-        if(this.in.getPos() != pos) {
-            throw new IOException("Cannot find position : " + pos);
-        }
-        
-        this.in.read(bytes, 0, bytes.length);
+        readFully(pos, bytes, 0, bytes.length);
     }
     
     @Override
@@ -0,0 +1,317 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.hadoop.dfs;
+
+import com.google.common.util.concurrent.SettableFuture;
+import hsyndicate.fs.SyndicateFSPath;
+import hsyndicate.fs.SyndicateFileSystem;
+import hsyndicate.hadoop.utils.HSyndicateConfigUtils;
+import hsyndicate.utils.BlockBitmap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Finds user gateways that have cached blocks of a file.
+ * 
+ * One service is kept per process for each user and configuration, so the
+ * clients to the gateways outlive file system instances while callers with
+ * other credentials or settings get a service of their own. All gateways are
+ * queried at once. A gateway that does not answer before the deadline is
+ * treated as having no cached blocks, and its answer is cached when it
+ * arrives. Answers are cached by file version for a limited time, since
+ * gateways cache blocks as they are read.
+ * 
+ * @author iychoi
+ */
+public class HSyndicateLocalityService {
+    
+    private static final Log LOG = LogFactory.getLog(HSyndicateLocalityService.class);
+    
+    private static final Map<String, HSyndicateLocalityService> services = new HashMap<String, HSyndicateLocalityService>();
+    
+    private static class BitmapKey {
+        private String hostname;
+        private SyndicateFSPath path;
+        private long version;
+        private long writeNonce;
+        
+        BitmapKey(String hostname, SyndicateFSPath path, long version, long writeNonce) {
+            this.hostname = hostname;
+            this.path = path;
+            this.version = version;
+            this.writeNonce = writeNonce;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof BitmapKey)) {
+                return false;
+            }
+            
+            BitmapKey other = (BitmapKey) o;
+            return this.version == other.version
+                    && this.writeNonce == other.writeNonce
+                    && this.hostname.equals(other.hostname)
+                    && this.path.equals(other.path);
+        }
+        
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 31 * hash + this.hostname.hashCode();
+            hash = 31 * hash + this.path.hashCode();
+            hash = 31 * hash + (int) (this.version ^ (this.version >>> 32));
+            hash = 31 * hash + (int) (this.writeNonce ^ (this.writeNonce >>> 32));
+            return hash;
+        }
+    }
+    
+    private static class CachedBitmap {
+        private BlockBitmap bitmap;
+        private long expireTime;
+        
+        CachedBitmap(BlockBitmap bitmap, long expireTime) {
+            this.bitmap = bitmap;
+            this.expireTime = expireTime;
+        }
+    }
+    
+    private HSyndicateUGMonitor monitor;
+    private ThreadPoolExecutor executor;
+    private long timeout;
+    private long cacheTimeToLive;
+    private LinkedHashMap<BitmapKey, CachedBitmap> cache;
+    private ConcurrentMap<BitmapKey, SettableFuture<BlockBitmap>> pendingQueries = new ConcurrentHashMap<BitmapKey, SettableFuture<BlockBitmap>>();
+    
+    private AtomicLong queryCount = new AtomicLong(0);
+    private AtomicLong cacheHitCount = new AtomicLong(0);
+    private AtomicLong timeoutCount = new AtomicLong(0);
+    
+    /**
+     * Returns the service for the user gateways in the configuration. The
+     * service is created by the first call and kept for the life of the
+     * process; later calls of the same user with the same session keys and
+     * fs.hsyndicate settings share it.
+     * 
+     * @param conf
+     * @return
+     * @throws IOException 
+     */
+    public static synchronized HSyndicateLocalityService getInstance(Configuration conf) throws IOException {
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        String key = Arrays.toString(HSyndicateConfigUtils.listSyndicateUGHostsWithPort(conf)) + " " + HSyndicateConfigUtils.getSyndicateServiceKey(conf);
+        HSyndicateLocalityService service = services.get(key);
+        if(service == null) {
+            service = new HSyndicateLocalityService(conf);
+            services.put(key, service);
+        }
+        return service;
+    }
+    
+    HSyndicateLocalityService(Configuration conf) throws IOException {
+        int threads = HSyndicateConfigUtils.getSyndicateLocalityThreads(conf);
+        if(threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        
+        final int maxCacheEntries = HSyndicateConfigUtils.getSyndicateLocalityCacheEntries(conf);
+        
+        this.monitor = new HSyndicateUGMonitor(conf);
+        this.timeout = HSyndicateConfigUtils.getSyndicateLocalityTimeout(conf);
+        this.cacheTimeToLive = HSyndicateConfigUtils.getSyndicateLocalityCacheTimeToLive(conf);
+        this.cache = new LinkedHashMap<BitmapKey, CachedBitmap>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<BitmapKey, CachedBitmap> eldest) {
+                return maxCacheEntries > 0 && size() > maxCacheEntries;
+            }
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HSyndicateLocalityService");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+    
+    public List<String> getUserGatewayHosts() {
+        return this.monitor.getUserGatewayHosts();
+    }
+    
+    /**
+     * Returns the cache bitmap of the file for each user gateway, in the
+     * order of getUserGatewayHosts(). The result of a gateway that failed or
+     * missed the deadline is null.
+     * 
+     * @param path
+     * @param version
+     * @param writeNonce
+     * @param blocks number of blocks of the file
+     * @return
+     * @throws IOException 
+     */
+    public List<HSyndicateUGMonitorResults<BlockBitmap>> getLocalCachedBlockInfo(SyndicateFSPath path, long version, long writeNonce, int blocks) throws IOException {
+        if(path == null) {
+            throw new IllegalArgumentException("path is null");
+        }
+        
+        List<String> hosts = getUserGatewayHosts();
+        List<HSyndicateUGMonitorResults<BlockBitmap>> results = new ArrayList<HSyndicateUGMonitorResults<BlockBitmap>>(hosts.size());
+        List<Future<BlockBitmap>> futures = new ArrayList<Future<BlockBitmap>>(hosts.size());
+        for(String host : hosts) {
+            BitmapKey key = new BitmapKey(host, path, version, writeNonce);
+            BlockBitmap bitmap = getCachedBitmap(key);
+            if(bitmap != null) {
+                this.cacheHitCount.incrementAndGet();
+                results.add(new HSyndicateUGMonitorResults<BlockBitmap>(host, bitmap));
+                futures.add(null);
+            } else {
+                results.add(new HSyndicateUGMonitorResults<BlockBitmap>(host));
+                futures.add(query(key, blocks));
+            }
+        }
+        
+        long deadline = System.currentTimeMillis() + this.timeout;
+        for(int i=0;i<futures.size();i++) {
+            Future<BlockBitmap> future = futures.get(i);
+            if(future == null) {
+                continue;
+            }
+            
+            HSyndicateUGMonitorResults<BlockBitmap> result = results.get(i);
+            try {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                result.setResult(future.get(remaining, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException ex) {
+                this.timeoutCount.incrementAndGet();
+                LOG.info(String.format("UserGateway %s did not answer cached blocks of %s in time", result.getHostname(), path));
+            } catch (ExecutionException ex) {
+                LOG.info(String.format("UserGateway %s failed to answer cached blocks of %s : %s", result.getHostname(), path, ex.getCause()));
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+        }
+        return results;
+    }
+    
+    private BlockBitmap getCachedBitmap(BitmapKey key) {
+        synchronized(this.cache) {
+            CachedBitmap cached = this.cache.get(key);
+            if(cached == null) {
+                return null;
+            }
+            
+            if(cached.expireTime < System.currentTimeMillis()) {
+                this.cache.remove(key);
+                return null;
+            }
+            return cached.bitmap;
+        }
+    }
+    
+    private void putCachedBitmap(BitmapKey key, BlockBitmap bitmap) {
+        synchronized(this.cache) {
+            this.cache.put(key, new CachedBitmap(bitmap, System.currentTimeMillis() + this.cacheTimeToLive));
+        }
+    }
+    
+    private Future<BlockBitmap> query(final BitmapKey key, final int blocks) {
+        final SettableFuture<BlockBitmap> future = SettableFuture.create();
+        SettableFuture<BlockBitmap> pendingFuture = this.pendingQueries.putIfAbsent(key, future);
+        if(pendingFuture != null) {
+            // a query of the same version is already in flight
+            return pendingFuture;
+        }
+        
+        this.queryCount.incrementAndGet();
+        try {
+            this.executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        SyndicateFileSystem fs = monitor.getFileSystem(key.hostname);
+                        if(fs == null) {
+                            throw new IOException("Unknown user gateway " + key.hostname);
+                        }
+                        
+                        BlockBitmap bitmap = fs.getLocalCachedBlocks(key.path, blocks);
+                        LOG.info(String.format("UserGateway %s has %d cache blocks of %s", key.hostname, bitmap.count(), key.path));
+                        
+                        putCachedBitmap(key, bitmap);
+                        future.set(bitmap);
+                    } catch (Exception ex) {
+                        future.setException(ex);
+                    } finally {
+                        pendingQueries.remove(key, future);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            this.pendingQueries.remove(key, future);
+            future.setException(ex);
+        }
+        return future;
+    }
+    
+    public long getQueryCount() {
+        return this.queryCount.get();
+    }
+    
+    public long getCacheHitCount() {
+        return this.cacheHitCount.get();
+    }
+    
+    public long getTimeoutCount() {
+        return this.timeoutCount.get();
+    }
+    
+    @Override
+    public String toString() {
+        int cached;
+        synchronized(this.cache) {
+            cached = this.cache.size();
+        }
+        return String.format("HSyndicateLocalityService - gateways(%d), cached(%d), queries(%d), hits(%d), timeouts(%d)",
+                getUserGatewayHosts().size(), cached, this.queryCount.get(), this.cacheHitCount.get(), this.timeoutCount.get());
+    }
+}
@@ -25,6 +25,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import hsyndicate.hadoop.utils.HSyndicateConfigUtils;
+import hsyndicate.utils.BlockBitmap;
 import java.io.Closeable;
 import java.util.HashMap;
 import java.util.Map;
@@ -70,26 +71,26 @@ public class HSyndicateUGMonitor implements Closeable {
         return usergatewayHostnames;
     }
     
-    public synchronized List<HSyndicateUGMonitorResults<byte[]>> getLocalCachedBlockInfo(SyndicateFSPath path) throws IOException {
-        List<HSyndicateUGMonitorResults<byte[]>> bitmaps = new ArrayList<HSyndicateUGMonitorResults<byte[]>>();
+    public synchronized SyndicateFileSystem getFileSystem(String gatewayHostname) {
+        return syndicateFSs.get(gatewayHostname);
+    }
+    
+    public synchronized List<HSyndicateUGMonitorResults<BlockBitmap>> getLocalCachedBlockInfo(SyndicateFSPath path) throws IOException {
+        List<HSyndicateUGMonitorResults<BlockBitmap>> bitmaps = new ArrayList<HSyndicateUGMonitorResults<BlockBitmap>>();
         
         for(String gatewayHostname : usergatewayHostnames) {
             SyndicateFileSystem fs = syndicateFSs.get(gatewayHostname);
             if(fs != null) {
-                byte[] bitmap = fs.getLocalCachedBlocks(path);
+                BlockBitmap bitmap = fs.getLocalCachedBlocks(path);
                 int sumCaches = 0;
                 
                 if(bitmap != null) {
-                    for(int i=0;i<bitmap.length;i++) {
-                        if(bitmap[i] == 1) {
-                            sumCaches++;
-                        }
-                    }
+                    sumCaches = bitmap.count();
                 }
                 
                 LOG.info(String.format("UserGateway %s has %d cache blocks of %s", gatewayHostname, sumCaches, path));
                 
-                HSyndicateUGMonitorResults<byte[]> result = new HSyndicateUGMonitorResults<byte[]>(gatewayHostname);
+                HSyndicateUGMonitorResults<BlockBitmap> result = new HSyndicateUGMonitorResults<BlockBitmap>(gatewayHostname);
                 result.setResult(bitmap);
 
                 bitmaps.add(result);
@@ -0,0 +1,216 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.hadoop.dfs;
+
+import hsyndicate.hadoop.utils.HSyndicateConfigUtils;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Routes reads of a file to the same user gateway, so that its cache warms.
+ * 
+ * Gateways are placed on a consistent-hash ring and a file goes to the first
+ * gateway clockwise from its hash. A gateway takes at most loadFactor times
+ * the average number of open streams; when it is full the file goes to the
+ * next gateway on the ring. Adding or removing a gateway moves only the
+ * files next to it on the ring.
+ * 
+ * One router is kept per process for each user and configuration, as
+ * HSyndicateLocalityService is.
+ * 
+ * @author iychoi
+ */
+public class HSyndicateUGRouter {
+    
+    private static final Log LOG = LogFactory.getLog(HSyndicateUGRouter.class);
+    
+    private static final int VIRTUAL_NODES = 100;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private static final Map<String, HSyndicateUGRouter> routers = new HashMap<String, HSyndicateUGRouter>();
+    
+    private double loadFactor;
+    private TreeMap<Long, String> ring = new TreeMap<Long, String>();
+    private Map<String, Integer> loads = new HashMap<String, Integer>();
+    private int totalLoad;
+    private long routedCount;
+    private long spilledCount;
+    
+    /**
+     * Returns the router for the user gateways in the configuration. The
+     * router is created by the first call and kept for the life of the
+     * process; later calls of the same user with the same session keys and
+     * fs.hsyndicate settings share it.
+     * 
+     * @param conf
+     * @return 
+     * @throws IOException 
+     */
+    public static synchronized HSyndicateUGRouter getInstance(Configuration conf) throws IOException {
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        String[] hosts = HSyndicateConfigUtils.listSyndicateUGHostsWithPort(conf);
+        String key = Arrays.toString(hosts) + " " + HSyndicateConfigUtils.getSyndicateServiceKey(conf);
+        HSyndicateUGRouter router = routers.get(key);
+        if(router == null) {
+            router = new HSyndicateUGRouter(hosts, HSyndicateConfigUtils.getSyndicateRoutingLoadFactor(conf));
+            routers.put(key, router);
+        }
+        return router;
+    }
+    
+    public HSyndicateUGRouter(String[] gatewayHosts, double loadFactor) {
+        if(gatewayHosts == null || gatewayHosts.length == 0) {
+            throw new IllegalArgumentException("gatewayHosts is empty");
+        }
+        
+        if(loadFactor < 1) {
+            throw new IllegalArgumentException("loadFactor must not be less than 1");
+        }
+        
+        this.loadFactor = loadFactor;
+        for(String host : gatewayHosts) {
+            if(this.loads.containsKey(host)) {
+                continue;
+            }
+            
+            this.loads.put(host, 0);
+            for(int i=0;i<VIRTUAL_NODES;i++) {
+                this.ring.put(hash(host + "#" + i), host);
+            }
+        }
+    }
+    
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(UTF8));
+            long h = 0;
+            for(int i=0;i<8;i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Returns the gateway of the file without taking a slot.
+     * 
+     * @param file session and path of the file
+     * @return 
+     */
+    public String getPreferredHost(String file) {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        SortedMap<Long, String> tail = this.ring.tailMap(hash(file));
+        return tail.isEmpty() ? this.ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+    
+    /**
+     * Takes a slot at the gateway for the file. The slot must be given back
+     * with release() when the stream is closed.
+     * 
+     * @param file session and path of the file
+     * @return the gateway
+     */
+    public synchronized String acquire(String file) {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        // capacity of a gateway with the new stream counted
+        int capacity = (int) Math.ceil(this.loadFactor * (this.totalLoad + 1) / this.loads.size());
+        long h = hash(file);
+        
+        String preferred = null;
+        String selected = null;
+        for(String host : this.ring.tailMap(h).values()) {
+            if(preferred == null) {
+                preferred = host;
+            }
+            if(this.loads.get(host) < capacity) {
+                selected = host;
+                break;
+            }
+        }
+        
+        if(selected == null) {
+            for(String host : this.ring.headMap(h).values()) {
+                if(preferred == null) {
+                    preferred = host;
+                }
+                if(this.loads.get(host) < capacity) {
+                    selected = host;
+                    break;
+                }
+            }
+        }
+        
+        this.loads.put(selected, this.loads.get(selected) + 1);
+        this.totalLoad++;
+        this.routedCount++;
+        if(!selected.equals(preferred)) {
+            this.spilledCount++;
+            LOG.info(String.format("UserGateway %s is full, routing %s to %s", preferred, file, selected));
+        }
+        return selected;
+    }
+    
+    public synchronized void release(String host) {
+        Integer load = this.loads.get(host);
+        if(load == null || load == 0) {
+            LOG.error("no slot to release at " + host);
+            return;
+        }
+        
+        this.loads.put(host, load - 1);
+        this.totalLoad--;
+    }
+    
+    public synchronized int getLoad(String host) {
+        Integer load = this.loads.get(host);
+        return load == null ? 0 : load;
+    }
+    
+    public synchronized long getRoutedCount() {
+        return this.routedCount;
+    }
+    
+    public synchronized long getSpilledCount() {
+        return this.spilledCount;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("HSyndicateUGRouter - gateways(%d), open(%d), routed(%d), spilled(%d)",
+                this.loads.size(), this.totalLoad, this.routedCount, this.spilledCount);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.hadoop.mapreduce;
+
+import hsyndicate.hadoop.dfs.HSyndicateDFS;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineTextInputFormat;
+
+/**
+ * Text input format that places splits of hsyndicate files on the user
+ * gateways caching their blocks.
+ * 
+ * Splits are planned by HSyndicateSplitPlanner and hold up to
+ * mapreduce.input.fileinputformat.split.maxsize bytes, or the default block
+ * size of the file system if unset. Inputs on other file systems are split
+ * by CombineTextInputFormat.
+ * 
+ * @author iychoi
+ */
+public class HSyndicateCombineTextInputFormat extends CombineTextInputFormat {
+    
+    private static final Log LOG = LogFactory.getLog(HSyndicateCombineTextInputFormat.class);
+    
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        List<FileStatus> files = listStatus(job);
+        
+        Map<HSyndicateDFS, HSyndicateSplitPlanner> planners = new LinkedHashMap<HSyndicateDFS, HSyndicateSplitPlanner>();
+        for(FileStatus file : files) {
+            FileSystem fs = file.getPath().getFileSystem(conf);
+            if(!(fs instanceof HSyndicateDFS)) {
+                LOG.info("input " + file.getPath() + " is not on hsyndicate, using CombineTextInputFormat splits");
+                return super.getSplits(job);
+            }
+            
+            if(file.isDirectory()) {
+                continue;
+            }
+            
+            HSyndicateDFS hfs = (HSyndicateDFS) fs;
+            HSyndicateSplitPlanner planner = planners.get(hfs);
+            if(planner == null) {
+                long maxSplitSize = conf.getLong(SPLIT_MAXSIZE, 0);
+                if(maxSplitSize <= 0) {
+                    maxSplitSize = hfs.getDefaultBlockSize();
+                }
+                
+                planner = new HSyndicateSplitPlanner(hfs, maxSplitSize);
+                planners.put(hfs, planner);
+            }
+            
+            planner.addFile(file, isSplitable(job, file.getPath()));
+        }
+        
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+        for(HSyndicateSplitPlanner planner : planners.values()) {
+            splits.addAll(planner.plan());
+        }
+        
+        LOG.info(String.format("planned %d splits of %d files", splits.size(), files.size()));
+        return splits;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.hadoop.mapreduce;
+
+import hsyndicate.hadoop.dfs.HSyndicateDFS;
+import hsyndicate.hadoop.dfs.HSyndicateUGMonitorResults;
+import hsyndicate.utils.BlockBitmap;
+import hsyndicate.utils.BlockUtils;
+import hsyndicate.utils.IPUtils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+/**
+ * Plans input splits of files on hsyndicate from the cache bitmaps of the
+ * user gateways.
+ * 
+ * Files are cut into segments along runs of blocks cached by one gateway,
+ * and each segment is assigned to that gateway. Segments that no gateway
+ * caches go to the gateway with the fewest bytes so far. Segments of a
+ * gateway, including whole small files, are then packed into splits of up to
+ * the maximum split size, located at the gateway.
+ * 
+ * @author iychoi
+ */
+public class HSyndicateSplitPlanner {
+    
+    private static final Log LOG = LogFactory.getLog(HSyndicateSplitPlanner.class);
+    
+    private static class Segment {
+        private Path path;
+        private long start;
+        private long length;
+        
+        Segment(Path path, long start, long length) {
+            this.path = path;
+            this.start = start;
+            this.length = length;
+        }
+    }
+    
+    private HSyndicateDFS filesystem;
+    private long maxSplitSize;
+    private List<String> gatewayHosts;
+    private Map<String, List<Segment>> cachedSegments = new LinkedHashMap<String, List<Segment>>();
+    private Map<String, Long> assignedBytes = new HashMap<String, Long>();
+    private List<Segment> uncachedSegments = new ArrayList<Segment>();
+    
+    public HSyndicateSplitPlanner(HSyndicateDFS filesystem, long maxSplitSize) throws IOException {
+        if(filesystem == null) {
+            throw new IllegalArgumentException("filesystem is null");
+        }
+        
+        if(maxSplitSize <= 0) {
+            throw new IllegalArgumentException("maxSplitSize must be positive");
+        }
+        
+        this.filesystem = filesystem;
+        this.maxSplitSize = maxSplitSize;
+        this.gatewayHosts = new ArrayList<String>(filesystem.getUserGatewayHosts());
+        for(String host : this.gatewayHosts) {
+            this.cachedSegments.put(host, new ArrayList<Segment>());
+            this.assignedBytes.put(host, 0L);
+        }
+    }
+    
+    /**
+     * Adds a file to the plan.
+     * 
+     * @param file
+     * @param splitable false to keep the file in one split
+     * @throws IOException 
+     */
+    public void addFile(FileStatus file, boolean splitable) throws IOException {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        Path path = file.getPath();
+        long size = file.getLen();
+        if(size == 0) {
+            addSegment(null, new Segment(path, 0, 0));
+            return;
+        }
+        
+        List<HSyndicateUGMonitorResults<BlockBitmap>> bitmaps = this.filesystem.getLocalCachedBlockInfo(path);
+        if(!splitable) {
+            // the gateway caching most of the file takes all of it
+            String bestHost = null;
+            int bestCount = 0;
+            for(HSyndicateUGMonitorResults<BlockBitmap> result : bitmaps) {
+                if(result.getResult() != null && result.getResult().count() > bestCount) {
+                    bestHost = result.getHostname();
+                    bestCount = result.getResult().count();
+                }
+            }
+            
+            addSegment(bestHost, new Segment(path, 0, size));
+            return;
+        }
+        
+        long blockSize = file.getBlockSize();
+        int blocks = BlockUtils.getBlocks(size, blockSize);
+        int maxBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, this.maxSplitSize / blockSize));
+        
+        String previousHost = null;
+        int blockID = 0;
+        while(blockID < blocks) {
+            String host = null;
+            int runEnd = blockID;
+            for(HSyndicateUGMonitorResults<BlockBitmap> result : bitmaps) {
+                BlockBitmap bitmap = result.getResult();
+                if(bitmap == null || !bitmap.isPresent(blockID)) {
+                    continue;
+                }
+                
+                // stay with the gateway of the previous segment, otherwise take
+                // the longest run and the less loaded gateway on a tie
+                String candidate = result.getHostname();
+                int end = bitmap.nextAbsent(blockID);
+                boolean better;
+                if(host == null) {
+                    better = true;
+                } else if(host.equals(previousHost)) {
+                    better = false;
+                } else if(candidate.equals(previousHost)) {
+                    better = true;
+                } else if(end != runEnd) {
+                    better = end > runEnd;
+                } else {
+                    better = getAssignedBytes(candidate) < getAssignedBytes(host);
+                }
+                
+                if(better) {
+                    host = candidate;
+                    runEnd = end;
+                }
+            }
+            
+            if(host == null) {
+                // uncached up to the block some gateway caches
+                runEnd = blocks;
+                for(HSyndicateUGMonitorResults<BlockBitmap> result : bitmaps) {
+                    if(result.getResult() != null) {
+                        runEnd = Math.min(runEnd, result.getResult().nextPresent(blockID));
+                    }
+                }
+            }
+            
+            runEnd = Math.min(runEnd, blockID + maxBlocks);
+            long start = BlockUtils.getBlockStartOffset(blockID, blockSize);
+            long end = Math.min(BlockUtils.getBlockStartOffset(runEnd, blockSize), size);
+            addSegment(host, new Segment(path, start, end - start));
+            
+            previousHost = host;
+            blockID = runEnd;
+        }
+    }
+    
+    private long getAssignedBytes(String host) {
+        Long bytes = this.assignedBytes.get(host);
+        return bytes == null ? 0 : bytes;
+    }
+    
+    private void addSegment(String host, Segment segment) {
+        if(host == null || !this.cachedSegments.containsKey(host)) {
+            this.uncachedSegments.add(segment);
+            return;
+        }
+        
+        this.cachedSegments.get(host).add(segment);
+        this.assignedBytes.put(host, getAssignedBytes(host) + segment.length);
+    }
+    
+    /**
+     * Returns the splits of the files added so far.
+     * 
+     * @return 
+     */
+    public List<InputSplit> plan() {
+        // largest first onto the least loaded gateway
+        List<Segment> uncached = new ArrayList<Segment>(this.uncachedSegments);
+        Collections.sort(uncached, new Comparator<Segment>() {
+
+            @Override
+            public int compare(Segment o1, Segment o2) {
+                return Long.compare(o2.length, o1.length);
+            }
+        });
+        
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+        if(this.gatewayHosts.isEmpty()) {
+            packSegments(uncached, new String[0], splits);
+            return splits;
+        }
+        
+        Map<String, List<Segment>> segments = new LinkedHashMap<String, List<Segment>>();
+        Map<String, Long> bytes = new HashMap<String, Long>(this.assignedBytes);
+        for(String host : this.gatewayHosts) {
+            segments.put(host, new ArrayList<Segment>(this.cachedSegments.get(host)));
+        }
+        
+        for(Segment segment : uncached) {
+            String leastHost = null;
+            for(String host : this.gatewayHosts) {
+                if(leastHost == null || bytes.get(host) < bytes.get(leastHost)) {
+                    leastHost = host;
+                }
+            }
+            
+            segments.get(leastHost).add(segment);
+            bytes.put(leastHost, bytes.get(leastHost) + segment.length);
+        }
+        
+        for(Map.Entry<String, List<Segment>> entry : segments.entrySet()) {
+            int before = splits.size();
+            packSegments(entry.getValue(), new String[] {IPUtils.parseHost(entry.getKey())}, splits);
+            LOG.info(String.format("UserGateway %s takes %d bytes in %d splits (%d bytes cached)", entry.getKey(), bytes.get(entry.getKey()), splits.size() - before, getAssignedBytes(entry.getKey())));
+        }
+        return splits;
+    }
+    
+    private void packSegments(List<Segment> segments, String[] locations, List<InputSplit> splits) {
+        List<Segment> current = new ArrayList<Segment>();
+        long currentSize = 0;
+        for(Segment segment : segments) {
+            if(!current.isEmpty() && currentSize + segment.length > this.maxSplitSize) {
+                splits.add(makeSplit(current, locations));
+                current.clear();
+                currentSize = 0;
+            }
+            
+            current.add(segment);
+            currentSize += segment.length;
+        }
+        
+        if(!current.isEmpty()) {
+            splits.add(makeSplit(current, locations));
+        }
+    }
+    
+    private InputSplit makeSplit(List<Segment> segments, String[] locations) {
+        Path[] paths = new Path[segments.size()];
+        long[] starts = new long[segments.size()];
+        long[] lengths = new long[segments.size()];
+        for(int i=0;i<segments.size();i++) {
+            Segment segment = segments.get(i);
+            paths[i] = segment.path;
+            starts[i] = segment.start;
+            lengths[i] = segment.length;
+        }
+        return new CombineFileSplit(paths, starts, lengths, locations);
+    }
+}
@@ -16,22 +16,74 @@
 package hsyndicate.hadoop.utils;
 
 import hsyndicate.fs.SyndicateFSConfiguration;
+import hsyndicate.rest.common.RestfulClientConfiguration;
 import hsyndicate.utils.IPUtils;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.Credentials;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.security.alias.CredentialProviderFactory;
 
 public class HSyndicateConfigUtils {
     
     public static final Log LOG = LogFactory.getLog(HSyndicateConfigUtils.class);
     
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
     public static final String CONFIG_SYNDICATE_USER_GATEWAY_HOSTS = "fs.hsyndicate.hosts";
     public static final String CONFIG_SYNDICATE_USER_GATEWAY_DEFAULT_PORT = "fs.hsyndicate.port";
     public static final String CONFIG_SYNDICATE_USER_GATEWAY_SESSION_PREFIX = "fs.hsyndicate.session";
+    public static final String CONFIG_SYNDICATE_READ_AHEAD_BLOCKS = "fs.hsyndicate.readahead.blocks";
+    public static final String CONFIG_SYNDICATE_BLOCK_CACHE_SIZE = "fs.hsyndicate.blockcache.size";
+    public static final String CONFIG_SYNDICATE_BUFFER_POOL_SIZE = "fs.hsyndicate.bufferpool.size";
+    public static final String CONFIG_SYNDICATE_STREAMING_READ = "fs.hsyndicate.read.streaming";
+    public static final String CONFIG_SYNDICATE_WRITE_BEHIND_BLOCKS = "fs.hsyndicate.writebehind.blocks";
+    public static final String CONFIG_SYNDICATE_DISK_CACHE_DIR = "fs.hsyndicate.diskcache.dir";
+    public static final String CONFIG_SYNDICATE_DISK_CACHE_SIZE = "fs.hsyndicate.diskcache.size";
+    public static final String CONFIG_SYNDICATE_STATUS_CACHE_ENTRIES = "fs.hsyndicate.statuscache.entries";
+    public static final String CONFIG_SYNDICATE_STATUS_CACHE_SIZE = "fs.hsyndicate.statuscache.size";
+    public static final String CONFIG_SYNDICATE_LISTING_THREADS = "fs.hsyndicate.listing.threads";
+    public static final String CONFIG_SYNDICATE_DELETE_THREADS = "fs.hsyndicate.delete.threads";
+    public static final String CONFIG_SYNDICATE_LAZY_OPEN = "fs.hsyndicate.open.lazy";
+    public static final String CONFIG_SYNDICATE_LOCALITY_THREADS = "fs.hsyndicate.locality.threads";
+    public static final String CONFIG_SYNDICATE_LOCALITY_TIMEOUT = "fs.hsyndicate.locality.timeout";
+    public static final String CONFIG_SYNDICATE_LOCALITY_CACHE_TIMETOLIVE = "fs.hsyndicate.locality.cache.ttl";
+    public static final String CONFIG_SYNDICATE_LOCALITY_CACHE_ENTRIES = "fs.hsyndicate.locality.cache.entries";
+    public static final String CONFIG_SYNDICATE_ROUTING = "fs.hsyndicate.routing";
+    public static final String CONFIG_SYNDICATE_ROUTING_LOAD_FACTOR = "fs.hsyndicate.routing.load.factor";
+    public static final String CONFIG_SYNDICATE_READ_STRIPES = "fs.hsyndicate.read.stripes";
+    
+    public static final String ROUTING_LOCAL = "local";
+    public static final String ROUTING_HASH = "hash";
+    public static final String CONFIG_SYNDICATE_TRANSPORT_TYPE = "fs.hsyndicate.transport.type";
+    public static final String CONFIG_SYNDICATE_TRANSPORT_IO_THREADS = "fs.hsyndicate.transport.io.threads";
+    public static final String CONFIG_SYNDICATE_TRANSPORT_CONNECTIONS_PER_ROUTE = "fs.hsyndicate.transport.connections.per.route";
+    public static final String CONFIG_SYNDICATE_TRANSPORT_CONNECTIONS_TOTAL = "fs.hsyndicate.transport.connections.total";
+    public static final String CONFIG_SYNDICATE_TRANSPORT_CONNECT_TIMEOUT = "fs.hsyndicate.transport.connect.timeout";
+    public static final String CONFIG_SYNDICATE_TRANSPORT_READ_TIMEOUT = "fs.hsyndicate.transport.read.timeout";
+    public static final String CONFIG_SYNDICATE_TRANSPORT_TCP_NODELAY = "fs.hsyndicate.transport.tcp.nodelay";
+    public static final String CONFIG_SYNDICATE_TRANSPORT_SOCKET_SEND_BUFFER = "fs.hsyndicate.transport.socket.sendbuffer";
+    public static final String CONFIG_SYNDICATE_TRANSPORT_SOCKET_RECEIVE_BUFFER = "fs.hsyndicate.transport.socket.receivebuffer";
+    public static final String CONFIG_SYNDICATE_TRANSPORT_IDLE_TIMEOUT = "fs.hsyndicate.transport.idle.timeout";
+    public static final String CONFIG_SYNDICATE_TRANSPORT_CONNECTION_TTL = "fs.hsyndicate.transport.connection.ttl";
+    
+    public static final int DEFAULT_LOCALITY_THREADS = 16;
+    public static final long DEFAULT_LOCALITY_TIMEOUT = 1000; // 1 sec
+    public static final long DEFAULT_LOCALITY_CACHE_TIMETOLIVE = 60 * 1000; // 1 min
+    public static final int DEFAULT_LOCALITY_CACHE_ENTRIES = 100000;
+    public static final double DEFAULT_ROUTING_LOAD_FACTOR = 1.25;
+    public static final int DEFAULT_READ_STRIPES = 1;
     
     private static String autoDetectedDataNodes = null;
     
@@ -66,6 +118,98 @@ public class HSyndicateConfigUtils {
         return conf.getInt(CONFIG_SYNDICATE_USER_GATEWAY_DEFAULT_PORT, 8888);
     }
     
+    public static int getSyndicateReadAheadBlocks(Configuration conf) {
+        return conf.getInt(CONFIG_SYNDICATE_READ_AHEAD_BLOCKS, SyndicateFSConfiguration.DEFAULT_READ_AHEAD_BLOCKS);
+    }
+    
+    public static long getSyndicateBlockCacheSize(Configuration conf) {
+        return conf.getLongBytes(CONFIG_SYNDICATE_BLOCK_CACHE_SIZE, SyndicateFSConfiguration.DEFAULT_BLOCK_CACHE_SIZE);
+    }
+    
+    public static long getSyndicateBufferPoolSize(Configuration conf) {
+        return conf.getLongBytes(CONFIG_SYNDICATE_BUFFER_POOL_SIZE, SyndicateFSConfiguration.DEFAULT_BUFFER_POOL_SIZE);
+    }
+    
+    public static boolean getSyndicateStreamingRead(Configuration conf) {
+        return conf.getBoolean(CONFIG_SYNDICATE_STREAMING_READ, SyndicateFSConfiguration.DEFAULT_STREAMING_READ);
+    }
+    
+    public static int getSyndicateWriteBehindBlocks(Configuration conf) {
+        return conf.getInt(CONFIG_SYNDICATE_WRITE_BEHIND_BLOCKS, SyndicateFSConfiguration.DEFAULT_WRITE_BEHIND_BLOCKS);
+    }
+    
+    public static String getSyndicateDiskCacheDir(Configuration conf) {
+        return conf.get(CONFIG_SYNDICATE_DISK_CACHE_DIR, null);
+    }
+    
+    public static long getSyndicateDiskCacheSize(Configuration conf) {
+        return conf.getLongBytes(CONFIG_SYNDICATE_DISK_CACHE_SIZE, SyndicateFSConfiguration.DEFAULT_DISK_CACHE_SIZE);
+    }
+    
+    public static long getSyndicateStatusCacheEntries(Configuration conf) {
+        return conf.getLong(CONFIG_SYNDICATE_STATUS_CACHE_ENTRIES, SyndicateFSConfiguration.DEFAULT_STATUS_CACHE_ENTRIES);
+    }
+    
+    public static long getSyndicateStatusCacheSize(Configuration conf) {
+        return conf.getLongBytes(CONFIG_SYNDICATE_STATUS_CACHE_SIZE, SyndicateFSConfiguration.DEFAULT_STATUS_CACHE_SIZE);
+    }
+    
+    public static int getSyndicateListingThreads(Configuration conf) {
+        return conf.getInt(CONFIG_SYNDICATE_LISTING_THREADS, SyndicateFSConfiguration.DEFAULT_LISTING_THREADS);
+    }
+    
+    public static int getSyndicateDeleteThreads(Configuration conf) {
+        return conf.getInt(CONFIG_SYNDICATE_DELETE_THREADS, SyndicateFSConfiguration.DEFAULT_DELETE_THREADS);
+    }
+    
+    public static boolean getSyndicateLazyOpen(Configuration conf) {
+        return conf.getBoolean(CONFIG_SYNDICATE_LAZY_OPEN, SyndicateFSConfiguration.DEFAULT_LAZY_OPEN);
+    }
+    
+    public static int getSyndicateLocalityThreads(Configuration conf) {
+        return conf.getInt(CONFIG_SYNDICATE_LOCALITY_THREADS, DEFAULT_LOCALITY_THREADS);
+    }
+    
+    public static long getSyndicateLocalityTimeout(Configuration conf) {
+        return conf.getLong(CONFIG_SYNDICATE_LOCALITY_TIMEOUT, DEFAULT_LOCALITY_TIMEOUT);
+    }
+    
+    public static long getSyndicateLocalityCacheTimeToLive(Configuration conf) {
+        return conf.getLong(CONFIG_SYNDICATE_LOCALITY_CACHE_TIMETOLIVE, DEFAULT_LOCALITY_CACHE_TIMETOLIVE);
+    }
+    
+    public static int getSyndicateLocalityCacheEntries(Configuration conf) {
+        return conf.getInt(CONFIG_SYNDICATE_LOCALITY_CACHE_ENTRIES, DEFAULT_LOCALITY_CACHE_ENTRIES);
+    }
+    
+    public static String getSyndicateRouting(Configuration conf) {
+        return conf.get(CONFIG_SYNDICATE_ROUTING, ROUTING_LOCAL);
+    }
+    
+    public static double getSyndicateRoutingLoadFactor(Configuration conf) {
+        return conf.getDouble(CONFIG_SYNDICATE_ROUTING_LOAD_FACTOR, DEFAULT_ROUTING_LOAD_FACTOR);
+    }
+    
+    public static int getSyndicateReadStripes(Configuration conf) {
+        return conf.getInt(CONFIG_SYNDICATE_READ_STRIPES, DEFAULT_READ_STRIPES);
+    }
+    
+    public static RestfulClientConfiguration getSyndicateTransportConf(Configuration conf) {
+        RestfulClientConfiguration tconf = new RestfulClientConfiguration();
+        tconf.setTransport(conf.get(CONFIG_SYNDICATE_TRANSPORT_TYPE, RestfulClientConfiguration.DEFAULT_TRANSPORT));
+        tconf.setIOThreads(conf.getInt(CONFIG_SYNDICATE_TRANSPORT_IO_THREADS, RestfulClientConfiguration.DEFAULT_IO_THREADS));
+        tconf.setMaxConnectionsPerRoute(conf.getInt(CONFIG_SYNDICATE_TRANSPORT_CONNECTIONS_PER_ROUTE, RestfulClientConfiguration.DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+        tconf.setMaxConnectionsTotal(conf.getInt(CONFIG_SYNDICATE_TRANSPORT_CONNECTIONS_TOTAL, RestfulClientConfiguration.DEFAULT_MAX_CONNECTIONS_TOTAL));
+        tconf.setConnectTimeout(conf.getInt(CONFIG_SYNDICATE_TRANSPORT_CONNECT_TIMEOUT, RestfulClientConfiguration.DEFAULT_CONNECT_TIMEOUT));
+        tconf.setReadTimeout(conf.getInt(CONFIG_SYNDICATE_TRANSPORT_READ_TIMEOUT, RestfulClientConfiguration.DEFAULT_READ_TIMEOUT));
+        tconf.setTcpNoDelay(conf.getBoolean(CONFIG_SYNDICATE_TRANSPORT_TCP_NODELAY, RestfulClientConfiguration.DEFAULT_TCP_NODELAY));
+        tconf.setSocketSendBufferSize((int) conf.getLongBytes(CONFIG_SYNDICATE_TRANSPORT_SOCKET_SEND_BUFFER, RestfulClientConfiguration.DEFAULT_SOCKET_SEND_BUFFER_SIZE));
+        tconf.setSocketReceiveBufferSize((int) conf.getLongBytes(CONFIG_SYNDICATE_TRANSPORT_SOCKET_RECEIVE_BUFFER, RestfulClientConfiguration.DEFAULT_SOCKET_RECEIVE_BUFFER_SIZE));
+        tconf.setIdleConnectionTimeout(conf.getLong(CONFIG_SYNDICATE_TRANSPORT_IDLE_TIMEOUT, RestfulClientConfiguration.DEFAULT_IDLE_CONNECTION_TIMEOUT));
+        tconf.setConnectionTimeToLive(conf.getLong(CONFIG_SYNDICATE_TRANSPORT_CONNECTION_TTL, RestfulClientConfiguration.DEFAULT_CONNECTION_TIMETOLIVE));
+        return tconf;
+    }
+    
     public static String[] listSyndicateUGHostsWithPort(Configuration conf) {
         String[] hosts = listSyndicateUGHosts(conf);
         int port = getSyndicateUGDefaultPort(conf);
@@ -88,6 +232,16 @@ public class HSyndicateConfigUtils {
         return hostList.toArray(new String[0]);
     }
     
+    public static boolean hasLocalSyndicateUGHost(Configuration conf) {
+        String[] UGHostsWithPort = listSyndicateUGHosts(conf);
+        if(UGHostsWithPort == null || UGHostsWithPort.length == 0) {
+            return false;
+        }
+        
+        String selectedAddr = IPUtils.selectLocalIPAddress(UGHostsWithPort);
+        return selectedAddr != null && !selectedAddr.isEmpty();
+    }
+    
     private static String pickClosestUGHostWithPort(Configuration conf) {
         String[] UGHostsWithPort = listSyndicateUGHosts(conf);
         if(UGHostsWithPort == null || UGHostsWithPort.length == 0) {
@@ -124,6 +278,53 @@ public class HSyndicateConfigUtils {
         }
     }
     
+    /**
+     * Returns a key that tells apart configurations a per-process service
+     * must not be shared between. The key is made of the current user and a
+     * digest of the fs.hsyndicate settings, the credential providers and the
+     * session keys in the credentials of the user, so that a service created
+     * for one caller never authenticates as or is tuned for another.
+     * 
+     * @param conf
+     * @return
+     * @throws IOException 
+     */
+    public static String getSyndicateServiceKey(Configuration conf) throws IOException {
+        UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+        
+        Map<String, String> entries = new TreeMap<String, String>(conf.getValByRegex("^fs\\.hsyndicate\\."));
+        entries.put(CredentialProviderFactory.CREDENTIAL_PROVIDER_PATH, conf.get(CredentialProviderFactory.CREDENTIAL_PROVIDER_PATH, ""));
+        
+        // session keys may also be given through the credentials of the user
+        Credentials credentials = ugi.getCredentials();
+        for(Text alias : credentials.getAllSecretKeys()) {
+            String name = alias.toString();
+            if(name.startsWith(CONFIG_SYNDICATE_USER_GATEWAY_SESSION_PREFIX + ".")) {
+                entries.put("credentials:" + name, new String(credentials.getSecretKey(alias), UTF8));
+            }
+        }
+        
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for(Map.Entry<String, String> entry : entries.entrySet()) {
+                digest.update(entry.getKey().getBytes(UTF8));
+                digest.update((byte) 0);
+                digest.update(entry.getValue().getBytes(UTF8));
+                digest.update((byte) 0);
+            }
+            
+            StringBuilder sb = new StringBuilder(ugi.getUserName());
+            sb.append("/");
+            for(byte b : digest.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            LOG.error("SHA-256 is not available", ex);
+            throw new IOException(ex);
+        }
+    }
+    
     public static SyndicateFSConfiguration createSyndicateConf(Configuration conf) throws IOException {
         String ugAddress = pickClosestUGHostWithPort(conf);
         return createSyndicateConf(conf, ugAddress);
@@ -138,6 +339,20 @@ public class HSyndicateConfigUtils {
             sconf.setPort(defaultPort);
         }
         
+        sconf.setReadAheadBlocks(getSyndicateReadAheadBlocks(conf));
+        sconf.setBlockCacheSize(getSyndicateBlockCacheSize(conf));
+        sconf.setBufferPoolSize(getSyndicateBufferPoolSize(conf));
+        sconf.setStreamingRead(getSyndicateStreamingRead(conf));
+        sconf.setWriteBehindBlocks(getSyndicateWriteBehindBlocks(conf));
+        sconf.setDiskCacheDir(getSyndicateDiskCacheDir(conf));
+        sconf.setDiskCacheSize(getSyndicateDiskCacheSize(conf));
+        sconf.setStatusCacheEntries(getSyndicateStatusCacheEntries(conf));
+        sconf.setStatusCacheSize(getSyndicateStatusCacheSize(conf));
+        sconf.setListingThreads(getSyndicateListingThreads(conf));
+        sconf.setDeleteThreads(getSyndicateDeleteThreads(conf));
+        sconf.setLazyOpen(getSyndicateLazyOpen(conf));
+        sconf.setTransportConf(getSyndicateTransportConf(conf));
+        
         if(ugAddress != null && !ugAddress.isEmpty()) {
             String hostname = ugAddress;
             int pos = hostname.indexOf(":");
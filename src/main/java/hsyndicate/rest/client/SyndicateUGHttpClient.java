@@ -15,7 +15,9 @@
 */
 package hsyndicate.rest.client;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import hsyndicate.rest.common.RestfulClient;
+import hsyndicate.rest.common.RestfulClientConfiguration;
 import hsyndicate.rest.common.WebParamBuilder;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.GenericType;
@@ -34,6 +36,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.Future;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -88,6 +91,10 @@ public class SyndicateUGHttpClient implements Closeable {
     private RestfulClient client;
     
     public SyndicateUGHttpClient(String host, int port, String sessionName, String sessionKey) throws InstantiationException {
+        this(host, port, sessionName, sessionKey, new RestfulClientConfiguration());
+    }
+    
+    public SyndicateUGHttpClient(String host, int port, String sessionName, String sessionKey, RestfulClientConfiguration transportConf) throws InstantiationException {
         if(host == null) {
             throw new IllegalArgumentException("host is null");
         }
@@ -98,14 +105,14 @@ public class SyndicateUGHttpClient implements Closeable {
         
         try {
             URI serviceURI = new URI(String.format("http://%s:%d/", host, port));
-            initialize(serviceURI, sessionName, sessionKey);
+            initialize(serviceURI, sessionName, sessionKey, transportConf);
         } catch (URISyntaxException ex) {
             LOG.error("exception occurred", ex);
             throw new InstantiationException(ex.getMessage());
         }
     }
     
-    private void initialize(URI serviceURI, String sessionName, String sessionKey) {
+    private void initialize(URI serviceURI, String sessionName, String sessionKey, RestfulClientConfiguration transportConf) {
         if(serviceURI == null) {
             throw new IllegalArgumentException("serviceURI is null");
         }
@@ -115,7 +122,7 @@ public class SyndicateUGHttpClient implements Closeable {
         this.serviceURI = serviceURI;
         this.sessionName = sessionName;
         this.sessionKey = sessionKey;
-        this.client = new RestfulClient(serviceURI, sessionName, sessionKey);
+        this.client = new RestfulClient(serviceURI, sessionName, sessionKey, transportConf);
     }
 
     public URI getServiceURI() {
@@ -138,12 +145,24 @@ public class SyndicateUGHttpClient implements Closeable {
         return this.sessionKey;
     }
     
+    public int getLeasedConnections() {
+        return this.client.getLeasedConnections();
+    }
+    
+    public int getAvailableConnections() {
+        return this.client.getAvailableConnections();
+    }
+    
+    public int getPendingConnections() {
+        return this.client.getPendingConnections();
+    }
+    
     @Override
     public void close() throws IOException {
         this.client.close();
     }
     
-    public Future<ClientResponse> listSessions() throws IOException {
+    public ListenableFuture<ClientResponse> listSessions() throws IOException {
         WebParamBuilder builder = new WebParamBuilder(SESSIONS_PREFIX);
         builder.addParam(LIST_SESSIONS);
         return this.client.getAsync(builder.build());
@@ -153,7 +172,7 @@ public class SyndicateUGHttpClient implements Closeable {
         return (SessionList)this.client.processGet(future, new GenericType<SessionList>(){});
     }
     
-    public Future<ClientResponse> getSessionStatvfs() throws IOException {
+    public ListenableFuture<ClientResponse> getSessionStatvfs() throws IOException {
         WebParamBuilder builder = new WebParamBuilder(SESSIONS_PREFIX);
         builder.addParam(GET_SESSION_STATVFS);
         builder.addParam(GET_SESSION_STATVFS_SESSION_NAME, this.sessionName);
@@ -164,7 +183,7 @@ public class SyndicateUGHttpClient implements Closeable {
         return (Statvfs)this.client.processGet(future, new GenericType<Statvfs>(){});
     }
     
-    public Future<ClientResponse> getStatvfs() throws IOException {
+    public ListenableFuture<ClientResponse> getStatvfs() throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX);
         builder.addParam(GET_STATVFS);
         return this.client.getAsync(builder.build());
@@ -174,7 +193,7 @@ public class SyndicateUGHttpClient implements Closeable {
         return (Statvfs)this.client.processGet(future, new GenericType<Statvfs>(){});
     }
 
-    public Future<ClientResponse> getStat(String path) throws IOException {
+    public ListenableFuture<ClientResponse> getStat(String path) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(GET_STAT);
         return this.client.getAsync(builder.build());
@@ -184,7 +203,7 @@ public class SyndicateUGHttpClient implements Closeable {
         return (StatRaw)this.client.processGet(future, new GenericType<StatRaw>(){});
     }
     
-    public Future<ClientResponse> getXattr(String path, String key) throws IOException {
+    public ListenableFuture<ClientResponse> getXattr(String path, String key) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(GET_XATTR);
         builder.addParam(GET_XATTR_KEY, key);
@@ -195,7 +214,7 @@ public class SyndicateUGHttpClient implements Closeable {
         return (Xattr)this.client.processGet(future, new GenericType<Xattr>(){});
     }
     
-    public Future<ClientResponse> listXattr(String path) throws IOException {
+    public ListenableFuture<ClientResponse> listXattr(String path) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(LIST_XATTR);
         return this.client.getAsync(builder.build());
@@ -205,7 +224,7 @@ public class SyndicateUGHttpClient implements Closeable {
         return (XattrKeyList)this.client.processGet(future, new GenericType<XattrKeyList>(){});
     }
     
-    public Future<ClientResponse> listDir(String path) throws IOException {
+    public ListenableFuture<ClientResponse> listDir(String path) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(LIST_DIR);
         return this.client.getAsync(builder.build());
@@ -215,7 +234,7 @@ public class SyndicateUGHttpClient implements Closeable {
         return (DirectoryEntries)this.client.processGet(future, new GenericType<DirectoryEntries>(){});
     }
     
-    public Future<ClientResponse> open(String path, String flag) throws IOException {
+    public ListenableFuture<ClientResponse> open(String path, String flag) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(OPEN);
         builder.addParam(OPEN_FLAG, flag);
@@ -226,7 +245,7 @@ public class SyndicateUGHttpClient implements Closeable {
         return (FileDescriptor)this.client.processGet(future, new GenericType<FileDescriptor>(){});
     }
     
-    public Future<ClientResponse> read(String path, FileDescriptor fi, long offset, int len) throws IOException {
+    public ListenableFuture<ClientResponse> read(String path, FileDescriptor fi, long offset, int len) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(READ);
         builder.addParam(READ_FD, fi.getFd());
@@ -239,7 +258,7 @@ public class SyndicateUGHttpClient implements Closeable {
         return (InputStream)this.client.processDownload(future);
     }
     
-    public Future<ClientResponse> makeDir(String path, int mode) throws IOException {
+    public ListenableFuture<ClientResponse> makeDir(String path, int mode) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(MAKE_DIR);
         builder.addParam(MAKE_DIR_MODE, mode);
@@ -250,7 +269,7 @@ public class SyndicateUGHttpClient implements Closeable {
         this.client.processPost(future, null);
     }
     
-    public Future<ClientResponse> setXattr(String path, String key, String value) throws IOException {
+    public ListenableFuture<ClientResponse> setXattr(String path, String key, String value) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(SET_XATTR);
         builder.addParam(SET_XATTR_KEY, key);
@@ -262,7 +281,16 @@ public class SyndicateUGHttpClient implements Closeable {
         this.client.processPost(future, null);
     }
     
-    public Future<ClientResponse> write(String path, FileDescriptor fi, long offset, int len, byte[] buffer) throws IOException {
+    public ListenableFuture<ClientResponse> write(String path, FileDescriptor fi, long offset, int len, byte[] buffer) throws IOException {
+        WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
+        builder.addParam(WRITE);
+        builder.addParam(WRITE_FD, fi.getFd());
+        builder.addParam(WRITE_OFFSET, offset);
+        builder.addParam(WRITE_LENGTH, len);
+        return this.client.postAsync(builder.build(), buffer);
+    }
+    
+    public ListenableFuture<ClientResponse> write(String path, FileDescriptor fi, long offset, int len, ByteBuffer buffer) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(WRITE);
         builder.addParam(WRITE_FD, fi.getFd());
@@ -275,7 +303,7 @@ public class SyndicateUGHttpClient implements Closeable {
         this.client.processPost(future, null);
     }
     
-    public Future<ClientResponse> extendTtl(String path, FileDescriptor fi) throws IOException {
+    public ListenableFuture<ClientResponse> extendTtl(String path, FileDescriptor fi) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(EXTEND_TTL);
         builder.addParam(EXTEND_TTL_FD, fi.getFd());
@@ -286,7 +314,7 @@ public class SyndicateUGHttpClient implements Closeable {
         this.client.processPost(future, null);
     }
     
-    public Future<ClientResponse> updateTimes(String path, long time) throws IOException {
+    public ListenableFuture<ClientResponse> updateTimes(String path, long time) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(UPDATE_TIMES);
         builder.addParam(UPDATE_TIMES_TIME, time);
@@ -297,7 +325,7 @@ public class SyndicateUGHttpClient implements Closeable {
         this.client.processPost(future, null);
     }
     
-    public Future<ClientResponse> rename(String path, String toPath) throws IOException {
+    public ListenableFuture<ClientResponse> rename(String path, String toPath) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(RENAME);
         builder.addParam(RENAME_TO, toPath);
@@ -308,7 +336,7 @@ public class SyndicateUGHttpClient implements Closeable {
         this.client.processPost(future, null);
     }
     
-    public Future<ClientResponse> removeDir(String path) throws IOException {
+    public ListenableFuture<ClientResponse> removeDir(String path) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(REMOVE_DIR);
         return this.client.deleteAsync(builder.build());
@@ -318,7 +346,7 @@ public class SyndicateUGHttpClient implements Closeable {
         this.client.processDelete(future, null);
     }
     
-    public Future<ClientResponse> unlink(String path) throws IOException {
+    public ListenableFuture<ClientResponse> unlink(String path) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(UNLINK);
         return this.client.deleteAsync(builder.build());
@@ -328,7 +356,7 @@ public class SyndicateUGHttpClient implements Closeable {
         this.client.processDelete(future, null);
     }
     
-    public Future<ClientResponse> removeXattr(String path, String key) throws IOException {
+    public ListenableFuture<ClientResponse> removeXattr(String path, String key) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(REMOVE_XATTR);
         builder.addParam(REMOVE_XATTR_KEY, key);
@@ -339,7 +367,7 @@ public class SyndicateUGHttpClient implements Closeable {
         this.client.processDelete(future, null);
     }
     
-    public Future<ClientResponse> close(String path, FileDescriptor fi) throws IOException {
+    public ListenableFuture<ClientResponse> close(String path, FileDescriptor fi) throws IOException {
         WebParamBuilder builder = new WebParamBuilder(FS_PREFIX + path);
         builder.addParam(CLOSE);
         builder.addParam(CLOSE_FD, fi.getFd());
@@ -0,0 +1,59 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.rest.common;
+
+import hsyndicate.utils.IOUtils;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Writes the remaining bytes of a ByteBuffer as a request body.
+ *
+ * The buffer itself is not modified, so a pooled buffer can be sent
+ * without copying it into a byte array first. Requests are sent with the
+ * JSON content type, so the provider also claims it; otherwise the JSON
+ * provider would serialize the buffer as a bean.
+ *
+ * @author iychoi
+ */
+@Provider
+@Produces({"application/json", "*/*"})
+public class ByteBufferProvider implements MessageBodyWriter<ByteBuffer> {
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return ByteBuffer.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(ByteBuffer buffer, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException, WebApplicationException {
+        IOUtils.write(buffer.duplicate(), entityStream);
+    }
+}
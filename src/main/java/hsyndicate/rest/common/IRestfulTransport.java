@@ -0,0 +1,55 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.rest.common;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.jersey.api.client.ClientResponse;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Carries requests of a RestfulClient to the service.
+ *
+ * A transport must not block the caller until the response arrives. The
+ * returned future completes when the status and headers of the response are
+ * received; listeners attached to it run at that point.
+ *
+ * @author iychoi
+ */
+public interface IRestfulTransport extends Closeable {
+    /**
+     * Sends a request.
+     * 
+     * @param method HTTP method
+     * @param requestURL
+     * @param accept media type accepted
+     * @param contentType media type of the entity
+     * @param entity request body, can be null
+     * @return future of the response
+     * @throws IOException 
+     */
+    ListenableFuture<ClientResponse> request(String method, URI requestURL, String accept, String contentType, Object entity) throws IOException;
+    
+    int getLeasedConnections();
+    
+    int getAvailableConnections();
+    
+    int getPendingConnections();
+    
+    @Override
+    void close();
+}
@@ -15,15 +15,12 @@
 */
 package hsyndicate.rest.common;
 
-import com.sun.jersey.api.client.AsyncWebResource;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.GenericType;
 import com.sun.jersey.api.client.config.ClientConfig;
 import com.sun.jersey.api.client.config.DefaultClientConfig;
-import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
 import com.sun.jersey.api.json.JSONConfiguration;
-import com.sun.jersey.client.apache4.ApacheHttpClient4;
-import com.sun.jersey.client.apache4.config.ApacheHttpClient4Config;
 import hsyndicate.rest.datatypes.RestError;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -33,11 +30,6 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.codehaus.jackson.jaxrs.JacksonJsonProvider;
 
 /**
@@ -49,52 +41,97 @@ public class RestfulClient {
     private static final Log LOG = LogFactory.getLog(RestfulClient.class);
     
     private URI serviceURL;
-    private ClientConnectionManager connectionManager;
+    private RestfulClientConfiguration conf;
     private ClientConfig httpClientConfig;
-    private ApacheHttpClient4 httpClient;
-    private Thread killme;
+    private IRestfulTransport transport;
     
     public RestfulClient(URI serviceURL, String username, String password) {
+        this(serviceURL, username, password, new RestfulClientConfiguration());
+    }
+    
+    public RestfulClient(URI serviceURL, String username, String password, RestfulClientConfiguration conf) {
         if(serviceURL == null) {
             throw new IllegalArgumentException("serviceURL is null");
         }
         
-        this.serviceURL = serviceURL;
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
         
-        SchemeRegistry registry = new SchemeRegistry();
-        registry.register(new Scheme("http", this.serviceURL.getPort(), PlainSocketFactory.getSocketFactory()));
-        this.connectionManager = new ThreadSafeClientConnManager(registry);
+        this.serviceURL = serviceURL;
+        this.conf = conf;
         
         this.httpClientConfig = new DefaultClientConfig();
         this.httpClientConfig.getClasses().add(JacksonJsonProvider.class);
+        this.httpClientConfig.getClasses().add(ByteBufferProvider.class);
         this.httpClientConfig.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING, Boolean.TRUE);
-        this.httpClientConfig.getProperties().put(ApacheHttpClient4Config.PROPERTY_CONNECTION_MANAGER, this.connectionManager);
-        this.httpClientConfig.getProperties().put(ApacheHttpClient4Config.PROPERTY_DISABLE_COOKIES, Boolean.FALSE);
         
-        this.httpClient = ApacheHttpClient4.create(this.httpClientConfig);
-        if(username != null && !username.isEmpty()) {
-            if(password == null) {
-                password = "";
-            }
-            
-            this.httpClient.addFilter(new HTTPBasicAuthFilter(username, password));
-        }
+        this.transport = createTransport(username, password);
         
         LOG.info("RestfulClient for " + this.serviceURL.toString() + " is created");
     }
     
+    private IRestfulTransport createTransport(String username, String password) {
+        String type = this.conf.getTransport();
+        if(type.equalsIgnoreCase(RestfulClientConfiguration.TRANSPORT_NETTY)) {
+            return new RestfulNettyTransport(this.serviceURL, username, password, this.conf, this.httpClientConfig);
+        } else if(type.equalsIgnoreCase(RestfulClientConfiguration.TRANSPORT_JERSEY)) {
+            return new RestfulJerseyTransport(this.serviceURL, username, password, this.conf, this.httpClientConfig);
+        } else {
+            throw new IllegalArgumentException("unknown transport - " + type);
+        }
+    }
+    
+    public RestfulClientConfiguration getConfiguration() {
+        return this.conf;
+    }
+    
+    /**
+     * Returns the number of connections in use by requests.
+     * 
+     * @return 
+     */
+    public int getLeasedConnections() {
+        IRestfulTransport t = this.transport;
+        if(t == null) {
+            return 0;
+        }
+        return t.getLeasedConnections();
+    }
+    
+    /**
+     * Returns the number of idle connections ready for reuse.
+     * 
+     * @return 
+     */
+    public int getAvailableConnections() {
+        IRestfulTransport t = this.transport;
+        if(t == null) {
+            return 0;
+        }
+        return t.getAvailableConnections();
+    }
+    
+    /**
+     * Returns the number of requests waiting for a free connection.
+     * 
+     * @return 
+     */
+    public int getPendingConnections() {
+        IRestfulTransport t = this.transport;
+        if(t == null) {
+            return 0;
+        }
+        return t.getPendingConnections();
+    }
+    
     public void close() {
         LOG.info("Destroying RestfulClient for " + this.serviceURL.toString());
         
-        //this.httpClient.getExecutorService().shutdownNow();
-        if(this.httpClient != null) {
-            this.httpClient.destroy();
-            this.httpClient = null;
-        }
-        
-        if(this.connectionManager != null) {
-            this.connectionManager.shutdown();
-            this.connectionManager = null;
+        if(this.transport != null) {
+            LOG.info(this.transport.toString());
+            this.transport.close();
+            this.transport = null;
         }
         
         LOG.info("RestfulClient for " + this.serviceURL.toString() + " is destroyed");
@@ -116,7 +153,7 @@ public class RestfulClient {
         return processPost(future, generic);
     }
     
-    public Future<ClientResponse> postAsync(String path, Object request) throws IOException {
+    public ListenableFuture<ClientResponse> postAsync(String path, Object request) throws IOException {
         if(path == null || path.isEmpty()) {
             throw new IllegalArgumentException("path is null or empty");
         }
@@ -128,8 +165,7 @@ public class RestfulClient {
         
         URI requestURL = makeRequestURL(path);
         LOG.info("sending a post request - " + requestURL.toString());
-        AsyncWebResource webResource = this.httpClient.asyncResource(requestURL);
-        return (Future<ClientResponse>) webResource.accept("application/json").type("application/json").post(ClientResponse.class, request);
+        return this.transport.request("POST", requestURL, "application/json", "application/json", request);
     }
     
     public Object processPost(Future<ClientResponse> future, GenericType<?> generic) throws IOException, FileNotFoundException, RestfulException, AuthenticationException {
@@ -181,15 +217,14 @@ public class RestfulClient {
         return processGet(future, generic);
     }
     
-    public Future<ClientResponse> getAsync(String path) throws IOException {
+    public ListenableFuture<ClientResponse> getAsync(String path) throws IOException {
         if(path == null || path.isEmpty()) {
             throw new IllegalArgumentException("path is null or empty");
         }
         
         URI requestURL = makeRequestURL(path);
         LOG.info("sending a get request - " + requestURL.toString());
-        AsyncWebResource webResource = this.httpClient.asyncResource(requestURL);
-        return (Future<ClientResponse>) webResource.accept("application/json").type("application/json").get(ClientResponse.class);
+        return this.transport.request("GET", requestURL, "application/json", "application/json", null);
     }
     
     public Object processGet(Future<ClientResponse> future, GenericType<?> generic) throws IOException, FileNotFoundException, RestfulException, AuthenticationException {
@@ -236,15 +271,14 @@ public class RestfulClient {
         return processDelete(future, generic);
     }
     
-    public Future<ClientResponse> deleteAsync(String path) throws IOException {
+    public ListenableFuture<ClientResponse> deleteAsync(String path) throws IOException {
         if(path == null || path.isEmpty()) {
             throw new IllegalArgumentException("path is null or empty");
         }
         
         URI requestURL = makeRequestURL(path);
         LOG.info("sending a delete request - " + requestURL.toString());
-        AsyncWebResource webResource = this.httpClient.asyncResource(requestURL);
-        return (Future<ClientResponse>) webResource.accept("application/json").type("application/json").delete(ClientResponse.class);
+        return this.transport.request("DELETE", requestURL, "application/json", "application/json", null);
     }
     
     public Object processDelete(Future<ClientResponse> future, GenericType<?> generic) throws IOException, FileNotFoundException, RestfulException, AuthenticationException {
@@ -296,15 +330,14 @@ public class RestfulClient {
         return processDownload(future);
     }
     
-    public Future<ClientResponse> downloadAsync(String path) throws IOException {
+    public ListenableFuture<ClientResponse> downloadAsync(String path) throws IOException {
         if(path == null || path.isEmpty()) {
             throw new IllegalArgumentException("path is null or empty");
         }
         
         URI requestURL = makeRequestURL(path);
         LOG.info("sending a download request - " + requestURL.toString());
-        AsyncWebResource webResource = this.httpClient.asyncResource(requestURL);
-        return (Future<ClientResponse>) webResource.accept("application/octet-stream").type("application/json").get(ClientResponse.class);
+        return this.transport.request("GET", requestURL, "application/octet-stream", "application/json", null);
     }
     
     public InputStream processDownload(Future<ClientResponse> future) throws IOException, FileNotFoundException, RestfulException, AuthenticationException {
@@ -0,0 +1,185 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.rest.common;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * Transport settings of a RestfulClient.
+ *
+ * Sizes and timeouts of 0 leave the value to the operating system or the
+ * HTTP client default. The transport is either "jersey", which parks a
+ * thread per in-flight request, or "netty", which multiplexes requests on
+ * a few event loop threads.
+ *
+ * @author iychoi
+ */
+public class RestfulClientConfiguration {
+
+    public static final String TRANSPORT_JERSEY = "jersey";
+    public static final String TRANSPORT_NETTY = "netty";
+
+    public static final String DEFAULT_TRANSPORT = TRANSPORT_JERSEY;
+    public static final int DEFAULT_IO_THREADS = 0; // twice the number of cores
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 16;
+    public static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 64;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 30000; // 30 sec
+    public static final int DEFAULT_READ_TIMEOUT = 0; // no timeout
+    public static final boolean DEFAULT_TCP_NODELAY = true;
+    public static final int DEFAULT_SOCKET_SEND_BUFFER_SIZE = 0;
+    public static final int DEFAULT_SOCKET_RECEIVE_BUFFER_SIZE = 0;
+    public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 60000; // 60 sec
+    public static final long DEFAULT_CONNECTION_TIMETOLIVE = 0; // no limit
+
+    private String transport = DEFAULT_TRANSPORT;
+    private int ioThreads = DEFAULT_IO_THREADS;
+    private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private int maxConnectionsTotal = DEFAULT_MAX_CONNECTIONS_TOTAL;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private boolean tcpNoDelay = DEFAULT_TCP_NODELAY;
+    private int socketSendBufferSize = DEFAULT_SOCKET_SEND_BUFFER_SIZE;
+    private int socketReceiveBufferSize = DEFAULT_SOCKET_RECEIVE_BUFFER_SIZE;
+    private long idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+    private long connectionTimeToLive = DEFAULT_CONNECTION_TIMETOLIVE;
+
+    public RestfulClientConfiguration() {
+
+    }
+
+    @JsonProperty("transport")
+    public synchronized void setTransport(String transport) {
+        if(transport == null || transport.isEmpty()) {
+            throw new IllegalArgumentException("transport is null or empty");
+        }
+
+        this.transport = transport;
+    }
+
+    @JsonProperty("transport")
+    public synchronized String getTransport() {
+        return this.transport;
+    }
+
+    @JsonProperty("io_threads")
+    public synchronized void setIOThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    @JsonProperty("io_threads")
+    public synchronized int getIOThreads() {
+        return this.ioThreads;
+    }
+
+    @JsonProperty("max_connections_per_route")
+    public synchronized void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    @JsonProperty("max_connections_per_route")
+    public synchronized int getMaxConnectionsPerRoute() {
+        return this.maxConnectionsPerRoute;
+    }
+
+    @JsonProperty("max_connections_total")
+    public synchronized void setMaxConnectionsTotal(int maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    @JsonProperty("max_connections_total")
+    public synchronized int getMaxConnectionsTotal() {
+        return this.maxConnectionsTotal;
+    }
+
+    @JsonProperty("connect_timeout")
+    public synchronized void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    @JsonProperty("connect_timeout")
+    public synchronized int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    @JsonProperty("read_timeout")
+    public synchronized void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    @JsonProperty("read_timeout")
+    public synchronized int getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    @JsonProperty("tcp_nodelay")
+    public synchronized void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    @JsonProperty("tcp_nodelay")
+    public synchronized boolean getTcpNoDelay() {
+        return this.tcpNoDelay;
+    }
+
+    @JsonProperty("socket_send_buffer_size")
+    public synchronized void setSocketSendBufferSize(int socketSendBufferSize) {
+        this.socketSendBufferSize = socketSendBufferSize;
+    }
+
+    @JsonProperty("socket_send_buffer_size")
+    public synchronized int getSocketSendBufferSize() {
+        return this.socketSendBufferSize;
+    }
+
+    @JsonProperty("socket_receive_buffer_size")
+    public synchronized void setSocketReceiveBufferSize(int socketReceiveBufferSize) {
+        this.socketReceiveBufferSize = socketReceiveBufferSize;
+    }
+
+    @JsonProperty("socket_receive_buffer_size")
+    public synchronized int getSocketReceiveBufferSize() {
+        return this.socketReceiveBufferSize;
+    }
+
+    @JsonProperty("idle_connection_timeout")
+    public synchronized void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    @JsonProperty("idle_connection_timeout")
+    public synchronized long getIdleConnectionTimeout() {
+        return this.idleConnectionTimeout;
+    }
+
+    @JsonProperty("connection_ttl")
+    public synchronized void setConnectionTimeToLive(long connectionTimeToLive) {
+        this.connectionTimeToLive = connectionTimeToLive;
+    }
+
+    @JsonProperty("connection_ttl")
+    public synchronized long getConnectionTimeToLive() {
+        return this.connectionTimeToLive;
+    }
+
+    @JsonIgnore
+    @Override
+    public synchronized String toString() {
+        return String.format("RestfulClientConfiguration - transport(%s), connections(%d/route, %d total), timeout(connect %d, read %d), nodelay(%s), sndbuf(%d), rcvbuf(%d), idle(%d), ttl(%d)",
+                this.transport, this.maxConnectionsPerRoute, this.maxConnectionsTotal, this.connectTimeout, this.readTimeout, this.tcpNoDelay,
+                this.socketSendBufferSize, this.socketReceiveBufferSize, this.idleConnectionTimeout, this.connectionTimeToLive);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.rest.common;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.params.ConnPerRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ConnPoolByRoute;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Pooled connection manager of a RestfulClient.
+ *
+ * Limits connections per route and in total, reaps idle and expired
+ * connections in the background and reports the state of the pool.
+ *
+ * @author iychoi
+ */
+public class RestfulConnectionManager extends ThreadSafeClientConnManager {
+
+    private static final Log LOG = LogFactory.getLog(RestfulConnectionManager.class);
+
+    private static final long REAPER_INTERVAL = 5000; // 5 sec
+
+    private static ScheduledExecutorService reaper;
+
+    private long idleConnectionTimeout;
+    private ScheduledFuture<?> reaperTask;
+
+    private static synchronized ScheduledExecutorService getReaper() {
+        if(reaper == null) {
+            reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RestfulConnectionManager reaper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return reaper;
+    }
+
+    private static SchemeRegistry createSchemeRegistry(int port, RestfulClientConfiguration conf) {
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", port, new BufferedSocketFactory(conf.getSocketSendBufferSize(), conf.getSocketReceiveBufferSize())));
+        return registry;
+    }
+
+    public RestfulConnectionManager(int port, RestfulClientConfiguration conf) {
+        super(createSchemeRegistry(port, conf), conf.getConnectionTimeToLive() > 0 ? conf.getConnectionTimeToLive() : -1, TimeUnit.MILLISECONDS);
+
+        setDefaultMaxPerRoute(conf.getMaxConnectionsPerRoute());
+        setMaxTotal(conf.getMaxConnectionsTotal());
+
+        this.idleConnectionTimeout = conf.getIdleConnectionTimeout();
+
+        this.reaperTask = getReaper().scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                reap();
+            }
+        }, REAPER_INTERVAL, REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected ConnPoolByRoute createConnectionPool(long connTTL, TimeUnit connTTLTimeUnit) {
+        // called from the super constructor, only fields of the super class are ready
+        return new MonitoredConnPool(this.connOperator, this.connPerRoute, connTTL, connTTLTimeUnit);
+    }
+
+    private void reap() {
+        try {
+            closeExpiredConnections();
+            if(this.idleConnectionTimeout > 0) {
+                closeIdleConnections(this.idleConnectionTimeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception ex) {
+            LOG.error("failed to reap connections", ex);
+        }
+    }
+
+    /**
+     * Returns the number of connections handed out to requests.
+     *
+     * @return
+     */
+    public int getLeasedConnections() {
+        return ((MonitoredConnPool) this.pool).getLeasedConnections();
+    }
+
+    /**
+     * Returns the number of idle connections kept in the pool.
+     *
+     * @return
+     */
+    public int getAvailableConnections() {
+        return ((MonitoredConnPool) this.pool).getAvailableConnections();
+    }
+
+    /**
+     * Returns the number of requests waiting for a connection.
+     *
+     * @return
+     */
+    public int getPendingConnections() {
+        return ((MonitoredConnPool) this.pool).getPendingConnections();
+    }
+
+    @Override
+    public void shutdown() {
+        if(this.reaperTask != null) {
+            this.reaperTask.cancel(false);
+            this.reaperTask = null;
+        }
+
+        super.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RestfulConnectionManager - leased(%d), available(%d), pending(%d), max(%d/route, %d total)",
+                getLeasedConnections(), getAvailableConnections(), getPendingConnections(), getDefaultMaxPerRoute(), getMaxTotal());
+    }
+
+    private static class MonitoredConnPool extends ConnPoolByRoute {
+
+        MonitoredConnPool(ClientConnectionOperator operator, ConnPerRoute connPerRoute, long connTTL, TimeUnit connTTLTimeUnit) {
+            super(operator, connPerRoute, 20, connTTL, connTTLTimeUnit);
+        }
+
+        int getLeasedConnections() {
+            getLock().lock();
+            try {
+                return this.leasedConnections.size();
+            } finally {
+                getLock().unlock();
+            }
+        }
+
+        int getAvailableConnections() {
+            getLock().lock();
+            try {
+                return this.freeConnections.size();
+            } finally {
+                getLock().unlock();
+            }
+        }
+
+        int getPendingConnections() {
+            getLock().lock();
+            try {
+                return this.waitingThreads.size();
+            } finally {
+                getLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Plain socket factory that sets socket buffer sizes before connecting,
+     * so the TCP window is negotiated with them.
+     */
+    private static class BufferedSocketFactory extends PlainSocketFactory {
+
+        private int sendBufferSize;
+        private int receiveBufferSize;
+
+        BufferedSocketFactory(int sendBufferSize, int receiveBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            this.receiveBufferSize = receiveBufferSize;
+        }
+
+        @Override
+        public Socket createSocket(HttpParams params) {
+            Socket socket = super.createSocket(params);
+            try {
+                if(this.sendBufferSize > 0) {
+                    socket.setSendBufferSize(this.sendBufferSize);
+                }
+                if(this.receiveBufferSize > 0) {
+                    socket.setReceiveBufferSize(this.receiveBufferSize);
+                }
+            } catch (IOException ex) {
+                LOG.error("failed to set socket buffer sizes", ex);
+            }
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.rest.common;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.sun.jersey.api.client.AsyncWebResource;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.async.TypeListener;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
+import com.sun.jersey.client.apache4.ApacheHttpClient4;
+import com.sun.jersey.client.apache4.config.ApacheHttpClient4Config;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Transport over Jersey and the Apache HTTP client.
+ *
+ * Each in-flight request occupies a thread of the Jersey executor until its
+ * response arrives.
+ *
+ * @author iychoi
+ */
+public class RestfulJerseyTransport implements IRestfulTransport {
+    
+    private RestfulConnectionManager connectionManager;
+    private ApacheHttpClient4 httpClient;
+    
+    public RestfulJerseyTransport(URI serviceURL, String username, String password, RestfulClientConfiguration conf, ClientConfig clientConfig) {
+        if(serviceURL == null) {
+            throw new IllegalArgumentException("serviceURL is null");
+        }
+        
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        if(clientConfig == null) {
+            throw new IllegalArgumentException("clientConfig is null");
+        }
+        
+        this.connectionManager = new RestfulConnectionManager(serviceURL.getPort(), conf);
+        
+        HttpParams httpParams = new BasicHttpParams();
+        HttpConnectionParams.setTcpNoDelay(httpParams, conf.getTcpNoDelay());
+        HttpConnectionParams.setConnectionTimeout(httpParams, conf.getConnectTimeout());
+        HttpConnectionParams.setSoTimeout(httpParams, conf.getReadTimeout());
+        
+        clientConfig.getProperties().put(ApacheHttpClient4Config.PROPERTY_CONNECTION_MANAGER, this.connectionManager);
+        clientConfig.getProperties().put(ApacheHttpClient4Config.PROPERTY_DISABLE_COOKIES, Boolean.FALSE);
+        clientConfig.getProperties().put(ApacheHttpClient4Config.PROPERTY_HTTP_PARAMS, httpParams);
+        
+        this.httpClient = ApacheHttpClient4.create(clientConfig);
+        if(username != null && !username.isEmpty()) {
+            if(password == null) {
+                password = "";
+            }
+            
+            this.httpClient.addFilter(new HTTPBasicAuthFilter(username, password));
+        }
+    }
+    
+    @Override
+    public ListenableFuture<ClientResponse> request(String method, URI requestURL, String accept, String contentType, Object entity) throws IOException {
+        final SettableFuture<ClientResponse> future = SettableFuture.create();
+        TypeListener<ClientResponse> listener = new TypeListener<ClientResponse>(ClientResponse.class) {
+
+            @Override
+            public void onComplete(Future<ClientResponse> f) throws InterruptedException {
+                try {
+                    future.set(f.get());
+                } catch (ExecutionException ex) {
+                    future.setException(ex.getCause());
+                } catch (InterruptedException ex) {
+                    future.setException(ex);
+                    throw ex;
+                }
+            }
+        };
+        
+        AsyncWebResource webResource = this.httpClient.asyncResource(requestURL);
+        AsyncWebResource.Builder builder = webResource.accept(accept).type(contentType);
+        if(entity == null) {
+            builder.method(method, listener);
+        } else {
+            builder.method(method, listener, entity);
+        }
+        return future;
+    }
+    
+    @Override
+    public int getLeasedConnections() {
+        RestfulConnectionManager manager = this.connectionManager;
+        if(manager == null) {
+            return 0;
+        }
+        return manager.getLeasedConnections();
+    }
+    
+    @Override
+    public int getAvailableConnections() {
+        RestfulConnectionManager manager = this.connectionManager;
+        if(manager == null) {
+            return 0;
+        }
+        return manager.getAvailableConnections();
+    }
+    
+    @Override
+    public int getPendingConnections() {
+        RestfulConnectionManager manager = this.connectionManager;
+        if(manager == null) {
+            return 0;
+        }
+        return manager.getPendingConnections();
+    }
+    
+    @Override
+    public void close() {
+        //this.httpClient.getExecutorService().shutdownNow();
+        if(this.httpClient != null) {
+            this.httpClient.destroy();
+            this.httpClient = null;
+        }
+        
+        if(this.connectionManager != null) {
+            this.connectionManager.shutdown();
+            this.connectionManager = null;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        RestfulConnectionManager manager = this.connectionManager;
+        if(manager == null) {
+            return "RestfulJerseyTransport - closed";
+        }
+        return "RestfulJerseyTransport - " + manager.toString();
+    }
+}
@@ -0,0 +1,774 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.rest.common;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.core.header.OutBoundHeaders;
+import com.sun.jersey.spi.MessageBodyWorkers;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.base64.Base64;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.MessageBodyWriter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Non-blocking transport over Netty.
+ *
+ * Requests are written and responses are parsed on a small group of event
+ * loop threads shared by all transports, so the number of outstanding
+ * requests is not bound by the number of threads. Connections are kept
+ * alive and reused; requests beyond the connection limit are queued and
+ * sent as connections become free.
+ *
+ * The returned future completes when the response headers arrive. The body
+ * is handed to the reader as it is received; reading is paused while too
+ * much of it is waiting to be consumed.
+ *
+ * @author iychoi
+ */
+public class RestfulNettyTransport implements IRestfulTransport {
+    
+    private static final Log LOG = LogFactory.getLog(RestfulNettyTransport.class);
+    
+    private static final AttributeKey<Long> LAST_USED_KEY = AttributeKey.valueOf("hsyndicate.transport.lastUsed");
+    private static final long REAPER_INTERVAL = 5000; // 5 sec
+    private static final int BODY_HIGH_WATERMARK = 1024 * 1024; // 1MB
+    private static final int BODY_LOW_WATERMARK = 256 * 1024; // 256KB
+    private static final int BODY_DISCARD_LIMIT = 64 * 1024; // 64KB
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    private static final Annotation[] EMPTY_ANNOTATIONS = new Annotation[0];
+    
+    private static EventLoopGroup eventLoopGroup;
+    private static int eventLoopGroupRefCount = 0;
+    
+    private URI serviceURL;
+    private String hostHeader;
+    private String authorization;
+    private RestfulClientConfiguration conf;
+    private Client jerseyClient;
+    private MessageBodyWorkers workers;
+    private EventLoopGroup group;
+    private Bootstrap bootstrap;
+    private ScheduledFuture<?> reaperTask;
+    
+    private final Object lock = new Object();
+    private Deque<Channel> idleChannels = new ArrayDeque<Channel>();
+    private Queue<PendingRequest> pendingRequests = new LinkedList<PendingRequest>();
+    private int openChannels = 0;
+    private int leasedChannels = 0;
+    private boolean closed = false;
+    
+    private static synchronized EventLoopGroup acquireEventLoopGroup(int threads) {
+        if(eventLoopGroup == null) {
+            eventLoopGroup = new NioEventLoopGroup(threads, new DefaultThreadFactory("hsyndicate-transport", true));
+        }
+        eventLoopGroupRefCount++;
+        return eventLoopGroup;
+    }
+    
+    private static synchronized void releaseEventLoopGroup() {
+        eventLoopGroupRefCount--;
+        if(eventLoopGroupRefCount <= 0) {
+            eventLoopGroupRefCount = 0;
+            if(eventLoopGroup != null) {
+                eventLoopGroup.shutdownGracefully(0, REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+                eventLoopGroup = null;
+            }
+        }
+    }
+    
+    public RestfulNettyTransport(URI serviceURL, String username, String password, RestfulClientConfiguration conf, ClientConfig clientConfig) {
+        if(serviceURL == null) {
+            throw new IllegalArgumentException("serviceURL is null");
+        }
+        
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        if(clientConfig == null) {
+            throw new IllegalArgumentException("clientConfig is null");
+        }
+        
+        this.serviceURL = serviceURL;
+        this.conf = conf;
+        
+        // only used for entity providers, requests do not go through it
+        this.jerseyClient = Client.create(clientConfig);
+        this.workers = this.jerseyClient.getMessageBodyWorkers();
+        
+        int port = serviceURL.getPort();
+        if(port <= 0) {
+            port = 80;
+        }
+        this.hostHeader = serviceURL.getHost() + ":" + port;
+        
+        if(username != null && !username.isEmpty()) {
+            if(password == null) {
+                password = "";
+            }
+            
+            ByteBuf credential = Unpooled.copiedBuffer(username + ":" + password, CharsetUtil.UTF_8);
+            ByteBuf encoded = Base64.encode(credential, false);
+            this.authorization = "Basic " + encoded.toString(CharsetUtil.US_ASCII);
+            credential.release();
+            encoded.release();
+        }
+        
+        this.group = acquireEventLoopGroup(conf.getIOThreads());
+        
+        this.bootstrap = new Bootstrap();
+        this.bootstrap.group(this.group);
+        this.bootstrap.channel(NioSocketChannel.class);
+        this.bootstrap.remoteAddress(serviceURL.getHost(), port);
+        this.bootstrap.option(ChannelOption.TCP_NODELAY, conf.getTcpNoDelay());
+        this.bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
+        if(conf.getConnectTimeout() > 0) {
+            this.bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, conf.getConnectTimeout());
+        }
+        if(conf.getSocketSendBufferSize() > 0) {
+            this.bootstrap.option(ChannelOption.SO_SNDBUF, conf.getSocketSendBufferSize());
+        }
+        if(conf.getSocketReceiveBufferSize() > 0) {
+            this.bootstrap.option(ChannelOption.SO_RCVBUF, conf.getSocketReceiveBufferSize());
+        }
+        this.bootstrap.handler(new ChannelInitializer<SocketChannel>() {
+
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast("codec", new HttpClientCodec(4096, MAX_HEADER_SIZE, MAX_CHUNK_SIZE));
+                ch.pipeline().addLast("handler", new ResponseHandler());
+            }
+        });
+        
+        this.reaperTask = this.group.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                closeIdleChannels();
+            }
+        }, REAPER_INTERVAL, REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public ListenableFuture<ClientResponse> request(String method, URI requestURL, String accept, String contentType, Object entity) throws IOException {
+        FullHttpRequest httpRequest = makeHttpRequest(method, requestURL, accept, contentType, entity);
+        PendingRequest request = new PendingRequest(httpRequest);
+        
+        synchronized(this.lock) {
+            if(this.closed) {
+                httpRequest.release();
+                throw new IOException("transport is already closed");
+            }
+            
+            this.pendingRequests.add(request);
+        }
+        
+        dispatch();
+        return request.future;
+    }
+    
+    private FullHttpRequest makeHttpRequest(String method, URI requestURL, String accept, String contentType, Object entity) throws IOException {
+        ByteBuf content;
+        if(entity == null) {
+            content = Unpooled.EMPTY_BUFFER;
+        } else if(entity instanceof ByteBuffer) {
+            content = Unpooled.wrappedBuffer(((ByteBuffer) entity).duplicate());
+        } else if(entity instanceof byte[]) {
+            content = Unpooled.wrappedBuffer((byte[]) entity);
+        } else {
+            content = serializeEntity(entity, MediaType.valueOf(contentType));
+        }
+        
+        String uri = requestURL.getRawPath();
+        if(uri == null || uri.isEmpty()) {
+            uri = "/";
+        }
+        if(requestURL.getRawQuery() != null) {
+            uri += "?" + requestURL.getRawQuery();
+        }
+        
+        FullHttpRequest httpRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.valueOf(method), uri, content);
+        HttpHeaders headers = httpRequest.headers();
+        headers.set(HttpHeaders.Names.HOST, this.hostHeader);
+        headers.set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        headers.set(HttpHeaders.Names.ACCEPT, accept);
+        headers.set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+        headers.set(HttpHeaders.Names.CONTENT_LENGTH, content.readableBytes());
+        if(this.authorization != null) {
+            headers.set(HttpHeaders.Names.AUTHORIZATION, this.authorization);
+        }
+        return httpRequest;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private ByteBuf serializeEntity(Object entity, MediaType mediaType) throws IOException {
+        Class<?> type = entity.getClass();
+        MessageBodyWriter<Object> writer = (MessageBodyWriter<Object>) this.workers.getMessageBodyWriter(type, type, EMPTY_ANNOTATIONS, mediaType);
+        if(writer == null) {
+            throw new IOException("no message body writer for " + type.getName());
+        }
+        
+        ByteBuf buffer = Unpooled.buffer();
+        ByteBufOutputStream os = new ByteBufOutputStream(buffer);
+        try {
+            writer.writeTo(entity, type, type, EMPTY_ANNOTATIONS, mediaType, new OutBoundHeaders(), os);
+            os.close();
+        } catch (IOException ex) {
+            buffer.release();
+            throw ex;
+        }
+        return buffer;
+    }
+    
+    /**
+     * Hands queued requests to idle connections and opens new connections
+     * within the limit. Never waits.
+     */
+    private void dispatch() {
+        while(true) {
+            PendingRequest request;
+            Channel channel = null;
+            synchronized(this.lock) {
+                if(this.pendingRequests.isEmpty()) {
+                    return;
+                }
+                
+                while(!this.idleChannels.isEmpty()) {
+                    Channel idle = this.idleChannels.pollLast();
+                    if(idle.isActive()) {
+                        channel = idle;
+                        break;
+                    }
+                }
+                
+                if(channel == null && this.openChannels >= this.conf.getMaxConnectionsPerRoute()) {
+                    // wait for a connection to be returned
+                    return;
+                }
+                
+                request = this.pendingRequests.poll();
+                this.leasedChannels++;
+                if(channel == null) {
+                    this.openChannels++;
+                }
+            }
+            
+            if(channel != null) {
+                send(channel, request);
+            } else {
+                connect(request);
+            }
+        }
+    }
+    
+    private void connect(final PendingRequest request) {
+        this.bootstrap.connect().addListener(new ChannelFutureListener() {
+
+            @Override
+            public void operationComplete(ChannelFuture f) throws Exception {
+                if(f.isSuccess()) {
+                    send(f.channel(), request);
+                } else {
+                    synchronized(lock) {
+                        openChannels--;
+                        leasedChannels--;
+                    }
+                    request.fail(new IOException("failed to connect to " + serviceURL.toString(), f.cause()));
+                    dispatch();
+                }
+            }
+        });
+    }
+    
+    private void send(final Channel channel, final PendingRequest request) {
+        final ResponseHandler handler = (ResponseHandler) channel.pipeline().get("handler");
+        channel.eventLoop().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handler.begin(channel, request);
+                channel.writeAndFlush(request.httpRequest).addListener(new ChannelFutureListener() {
+
+                    @Override
+                    public void operationComplete(ChannelFuture f) throws Exception {
+                        if(!f.isSuccess()) {
+                            handler.abort(new IOException("failed to send a request to " + serviceURL.toString(), f.cause()));
+                            f.channel().close();
+                        }
+                    }
+                });
+            }
+        });
+    }
+    
+    private void releaseChannel(Channel channel, boolean reusable) {
+        boolean keep;
+        synchronized(this.lock) {
+            this.leasedChannels--;
+            keep = reusable && !this.closed && channel.isActive();
+            if(keep) {
+                channel.attr(LAST_USED_KEY).set(System.currentTimeMillis());
+                this.idleChannels.addLast(channel);
+            }
+        }
+        
+        if(!keep) {
+            channel.close();
+        }
+        
+        dispatch();
+    }
+    
+    private void onChannelClosed(Channel channel) {
+        synchronized(this.lock) {
+            this.openChannels--;
+            this.idleChannels.remove(channel);
+        }
+        
+        dispatch();
+    }
+    
+    private void closeIdleChannels() {
+        long idleTimeout = this.conf.getIdleConnectionTimeout();
+        if(idleTimeout <= 0) {
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        synchronized(this.lock) {
+            for(Channel channel : this.idleChannels) {
+                Long lastUsed = channel.attr(LAST_USED_KEY).get();
+                if(lastUsed == null || now - lastUsed >= idleTimeout) {
+                    // the channel is removed from the idle list when it becomes inactive
+                    channel.close();
+                }
+            }
+        }
+    }
+    
+    @Override
+    public int getLeasedConnections() {
+        synchronized(this.lock) {
+            return this.leasedChannels;
+        }
+    }
+    
+    @Override
+    public int getAvailableConnections() {
+        synchronized(this.lock) {
+            return this.idleChannels.size();
+        }
+    }
+    
+    @Override
+    public int getPendingConnections() {
+        synchronized(this.lock) {
+            return this.pendingRequests.size();
+        }
+    }
+    
+    @Override
+    public void close() {
+        Channel[] channels;
+        PendingRequest[] requests;
+        synchronized(this.lock) {
+            if(this.closed) {
+                return;
+            }
+            this.closed = true;
+            
+            channels = this.idleChannels.toArray(new Channel[0]);
+            this.idleChannels.clear();
+            requests = this.pendingRequests.toArray(new PendingRequest[0]);
+            this.pendingRequests.clear();
+        }
+        
+        for(PendingRequest request : requests) {
+            request.fail(new IOException("transport is closed"));
+        }
+        
+        for(Channel channel : channels) {
+            channel.close();
+        }
+        
+        if(this.reaperTask != null) {
+            this.reaperTask.cancel(false);
+            this.reaperTask = null;
+        }
+        
+        releaseEventLoopGroup();
+        
+        this.jerseyClient.destroy();
+    }
+    
+    @Override
+    public String toString() {
+        synchronized(this.lock) {
+            return String.format("RestfulNettyTransport - leased(%d), available(%d), pending(%d), open(%d), max(%d)",
+                    this.leasedChannels, this.idleChannels.size(), this.pendingRequests.size(), this.openChannels, this.conf.getMaxConnectionsPerRoute());
+        }
+    }
+    
+    private static class PendingRequest {
+        private FullHttpRequest httpRequest;
+        private SettableFuture<ClientResponse> future = SettableFuture.create();
+        
+        PendingRequest(FullHttpRequest httpRequest) {
+            this.httpRequest = httpRequest;
+        }
+        
+        void fail(Throwable cause) {
+            ReferenceCountUtil.release(this.httpRequest);
+            this.future.setException(cause);
+        }
+    }
+    
+    /**
+     * Per-connection state machine. Runs on the event loop of the channel.
+     */
+    private class ResponseHandler extends ChannelInboundHandlerAdapter {
+        
+        private Channel channel;
+        private PendingRequest request;
+        private ResponseInputStream body;
+        private boolean keepAlive;
+        private ScheduledFuture<?> timeoutTask;
+        
+        void begin(Channel channel, final PendingRequest request) {
+            this.channel = channel;
+            this.request = request;
+            this.body = null;
+            
+            int readTimeout = conf.getReadTimeout();
+            if(readTimeout > 0) {
+                this.timeoutTask = channel.eventLoop().schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if(ResponseHandler.this.request == request && body == null) {
+                            abort(new SocketTimeoutException("timed out waiting for a response from " + serviceURL.toString()));
+                            ResponseHandler.this.channel.close();
+                        }
+                    }
+                }, readTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        private void cancelTimeout() {
+            if(this.timeoutTask != null) {
+                this.timeoutTask.cancel(false);
+                this.timeoutTask = null;
+            }
+        }
+        
+        void abort(IOException cause) {
+            cancelTimeout();
+            if(this.request == null) {
+                return;
+            }
+            
+            if(this.body != null) {
+                this.body.fail(cause);
+            } else {
+                this.request.future.setException(cause);
+            }
+            this.request = null;
+            this.body = null;
+            
+            synchronized(lock) {
+                leasedChannels--;
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            try {
+                if(this.request == null) {
+                    // unexpected data, connection state is unknown
+                    ctx.close();
+                    return;
+                }
+                
+                if(msg instanceof HttpResponse) {
+                    cancelTimeout();
+                    HttpResponse response = (HttpResponse) msg;
+                    
+                    InBoundHeaders headers = new InBoundHeaders();
+                    for(Map.Entry<String, String> header : response.headers()) {
+                        headers.add(header.getKey(), header.getValue());
+                    }
+                    
+                    this.keepAlive = HttpHeaders.isKeepAlive(response);
+                    this.body = new ResponseInputStream(ctx.channel(), HttpHeaders.getContentLength(response, -1), conf.getReadTimeout());
+                    ClientResponse clientResponse = new ClientResponse(response.getStatus().code(), headers, this.body, workers);
+                    if(!this.request.future.set(clientResponse)) {
+                        // cancelled by the caller
+                        this.body.close();
+                    }
+                }
+                
+                if(msg instanceof HttpContent) {
+                    HttpContent content = (HttpContent) msg;
+                    if(this.body != null && content.content().isReadable()) {
+                        this.body.offer(content.content().retain());
+                    }
+                    
+                    if(msg instanceof LastHttpContent) {
+                        boolean reusable = this.keepAlive;
+                        if(this.body != null) {
+                            reusable = this.body.finish() && reusable;
+                        }
+                        this.request = null;
+                        this.body = null;
+                        ctx.channel().config().setAutoRead(true);
+                        releaseChannel(ctx.channel(), reusable);
+                    }
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            abort(new IOException("connection to " + serviceURL.toString() + " is closed"));
+            onChannelClosed(ctx.channel());
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            LOG.error("exception occurred", cause);
+            abort(cause instanceof IOException ? (IOException) cause : new IOException(cause));
+            ctx.close();
+        }
+    }
+    
+    /**
+     * Response body received by the event loop and consumed by a reader.
+     */
+    private static class ResponseInputStream extends InputStream {
+        
+        private Channel channel;
+        private long contentLength;
+        private long readTimeout;
+        private Deque<ByteBuf> chunks = new ArrayDeque<ByteBuf>();
+        private int queuedBytes = 0;
+        private long receivedBytes = 0;
+        private boolean finished = false;
+        private boolean closed = false;
+        private boolean abandoned = false;
+        private IOException failure;
+        
+        ResponseInputStream(Channel channel, long contentLength, long readTimeout) {
+            this.channel = channel;
+            this.contentLength = contentLength;
+            this.readTimeout = readTimeout;
+        }
+        
+        synchronized void offer(ByteBuf chunk) {
+            this.receivedBytes += chunk.readableBytes();
+            if(this.closed) {
+                // discarding the rest of the body
+                chunk.release();
+                return;
+            }
+            
+            this.chunks.addLast(chunk);
+            this.queuedBytes += chunk.readableBytes();
+            if(this.queuedBytes >= BODY_HIGH_WATERMARK) {
+                // stop reading from the socket until the reader catches up
+                this.channel.config().setAutoRead(false);
+            }
+            notifyAll();
+        }
+        
+        /**
+         * Marks the end of the body.
+         * 
+         * @return false if the connection is left in an unknown state
+         */
+        synchronized boolean finish() {
+            this.finished = true;
+            notifyAll();
+            return !this.abandoned;
+        }
+        
+        synchronized void fail(IOException cause) {
+            if(!this.finished) {
+                this.failure = cause;
+            }
+            notifyAll();
+        }
+        
+        private ByteBuf waitForData() throws IOException {
+            long deadline = this.readTimeout > 0 ? System.currentTimeMillis() + this.readTimeout : 0;
+            while(this.chunks.isEmpty()) {
+                if(this.closed) {
+                    throw new IOException("stream is already closed");
+                }
+                if(this.finished) {
+                    return null;
+                }
+                if(this.failure != null) {
+                    throw this.failure;
+                }
+                
+                try {
+                    if(deadline > 0) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if(remaining <= 0) {
+                            throw new SocketTimeoutException("timed out reading a response body");
+                        }
+                        wait(remaining);
+                    } else {
+                        wait();
+                    }
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+            return this.chunks.peekFirst();
+        }
+        
+        private void consumed(ByteBuf chunk, int len) {
+            this.queuedBytes -= len;
+            if(!chunk.isReadable()) {
+                this.chunks.pollFirst();
+                chunk.release();
+            }
+            
+            if(!this.finished && this.queuedBytes < BODY_LOW_WATERMARK && !this.channel.config().isAutoRead()) {
+                this.channel.config().setAutoRead(true);
+            }
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            ByteBuf chunk = waitForData();
+            if(chunk == null) {
+                return -1;
+            }
+            
+            int b = chunk.readByte() & 0xff;
+            consumed(chunk, 1);
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            
+            ByteBuf chunk = waitForData();
+            if(chunk == null) {
+                return -1;
+            }
+            
+            int toRead = Math.min(len, chunk.readableBytes());
+            chunk.readBytes(b, off, toRead);
+            consumed(chunk, toRead);
+            return toRead;
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            return this.queuedBytes;
+        }
+
+        /**
+         * Closes the stream. A reader often stops right before the end of the
+         * body, e.g. a JSON parser at the closing brace, so a small rest of
+         * known size is drained to keep the connection reusable. Otherwise
+         * the connection is closed.
+         */
+        @Override
+        public void close() throws IOException {
+            boolean abandon;
+            synchronized(this) {
+                if(this.closed) {
+                    return;
+                }
+                this.closed = true;
+                abandon = !this.finished && (this.contentLength < 0 || this.contentLength - this.receivedBytes > BODY_DISCARD_LIMIT);
+                this.abandoned = abandon;
+                
+                for(ByteBuf chunk : this.chunks) {
+                    chunk.release();
+                }
+                this.chunks.clear();
+                this.queuedBytes = 0;
+                notifyAll();
+            }
+            
+            if(abandon) {
+                // the rest of the body is still on the wire, the connection cannot be reused
+                this.channel.close();
+            } else if(!this.channel.config().isAutoRead()) {
+                this.channel.config().setAutoRead(true);
+            }
+        }
+    }
+}
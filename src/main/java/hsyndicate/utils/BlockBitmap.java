@@ -0,0 +1,186 @@
+/*
+   Copyright 2016 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package hsyndicate.utils;
+
+/**
+ * Presence of blocks of a file, one bit per block.
+ * 
+ * Bits are packed into 64-bit words, so counting the blocks present in a
+ * range takes one popcount per word.
+ * 
+ * @author iychoi
+ */
+public class BlockBitmap {
+    
+    private static final int WORD_BITS = 64;
+    
+    private final int blocks;
+    private final long[] words;
+    
+    public BlockBitmap(int blocks) {
+        if(blocks < 0) {
+            throw new IllegalArgumentException("blocks must not be negative");
+        }
+        
+        this.blocks = blocks;
+        this.words = new long[(blocks + WORD_BITS - 1) / WORD_BITS];
+    }
+    
+    /**
+     * Parses a bitmap string where the i-th character is '1' if block i is
+     * present. Characters beyond the given number of blocks are ignored, and
+     * blocks beyond the string are absent.
+     * 
+     * @param bitmapString may be null
+     * @param blocks
+     * @return 
+     */
+    public static BlockBitmap parse(String bitmapString, int blocks) {
+        BlockBitmap bitmap = new BlockBitmap(blocks);
+        if(bitmapString != null) {
+            int len = Math.min(bitmapString.length(), blocks);
+            for(int i=0;i<len;i++) {
+                if(bitmapString.charAt(i) == '1') {
+                    bitmap.words[i / WORD_BITS] |= 1L << (i % WORD_BITS);
+                }
+            }
+        }
+        return bitmap;
+    }
+    
+    public int getBlocks() {
+        return this.blocks;
+    }
+    
+    public boolean isPresent(int blockID) {
+        if(blockID < 0 || blockID >= this.blocks) {
+            return false;
+        }
+        return (this.words[blockID / WORD_BITS] & (1L << (blockID % WORD_BITS))) != 0;
+    }
+    
+    public void setPresent(int blockID) {
+        if(blockID < 0 || blockID >= this.blocks) {
+            throw new IndexOutOfBoundsException("blockID out of range : " + blockID);
+        }
+        this.words[blockID / WORD_BITS] |= 1L << (blockID % WORD_BITS);
+    }
+    
+    /**
+     * Returns the number of present blocks.
+     * 
+     * @return 
+     */
+    public int count() {
+        int sum = 0;
+        for(long word : this.words) {
+            sum += Long.bitCount(word);
+        }
+        return sum;
+    }
+    
+    /**
+     * Returns the number of present blocks in [fromBlockID, toBlockID). The
+     * range is clipped to the blocks of the bitmap.
+     * 
+     * @param fromBlockID inclusive
+     * @param toBlockID exclusive
+     * @return 
+     */
+    public int count(int fromBlockID, int toBlockID) {
+        int from = Math.max(fromBlockID, 0);
+        int to = Math.min(toBlockID, this.blocks);
+        if(from >= to) {
+            return 0;
+        }
+        
+        int fromWord = from / WORD_BITS;
+        int toWord = (to - 1) / WORD_BITS;
+        long fromMask = -1L << (from % WORD_BITS);
+        long toMask = -1L >>> (WORD_BITS - 1 - ((to - 1) % WORD_BITS));
+        
+        if(fromWord == toWord) {
+            return Long.bitCount(this.words[fromWord] & fromMask & toMask);
+        }
+        
+        int sum = Long.bitCount(this.words[fromWord] & fromMask);
+        for(int i=fromWord+1;i<toWord;i++) {
+            sum += Long.bitCount(this.words[i]);
+        }
+        sum += Long.bitCount(this.words[toWord] & toMask);
+        return sum;
+    }
+    
+    /**
+     * Returns the first present block at or after the given block, or
+     * getBlocks() if there is none.
+     * 
+     * @param fromBlockID
+     * @return 
+     */
+    public int nextPresent(int fromBlockID) {
+        int from = Math.max(fromBlockID, 0);
+        if(from >= this.blocks) {
+            return this.blocks;
+        }
+        
+        int wordIndex = from / WORD_BITS;
+        long word = this.words[wordIndex] & (-1L << (from % WORD_BITS));
+        while(word == 0) {
+            wordIndex++;
+            if(wordIndex == this.words.length) {
+                return this.blocks;
+            }
+            word = this.words[wordIndex];
+        }
+        return Math.min(wordIndex * WORD_BITS + Long.numberOfTrailingZeros(word), this.blocks);
+    }
+    
+    /**
+     * Returns the first absent block at or after the given block, or
+     * getBlocks() if there is none.
+     * 
+     * @param fromBlockID
+     * @return 
+     */
+    public int nextAbsent(int fromBlockID) {
+        int from = Math.max(fromBlockID, 0);
+        if(from >= this.blocks) {
+            return this.blocks;
+        }
+        
+        int wordIndex = from / WORD_BITS;
+        long word = ~this.words[wordIndex] & (-1L << (from % WORD_BITS));
+        while(word == 0) {
+            wordIndex++;
+            if(wordIndex == this.words.length) {
+                return this.blocks;
+            }
+            word = ~this.words[wordIndex];
+        }
+        // bits past the last block are never set, so they read as absent
+        return Math.min(wordIndex * WORD_BITS + Long.numberOfTrailingZeros(word), this.blocks);
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(this.blocks);
+        for(int i=0;i<this.blocks;i++) {
+            sb.append(isPresent(i) ? '1' : '0');
+        }
+        return sb.toString();
+    }
+}
@@ -48,10 +48,7 @@ public class BlockUtils {
         }
     }
     
-    public static boolean checkBlockPresence(int blockID, byte[] bitmap) {
-        if(bitmap[blockID] == 1) {
-            return true;
-        }
-        return false;
+    public static boolean checkBlockPresence(int blockID, BlockBitmap bitmap) {
+        return bitmap.isPresent(blockID);
     }
 }
@@ -19,6 +19,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -26,6 +27,16 @@ import java.io.OutputStream;
  */
 public class IOUtils {
 
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    
+    // scratch space for moving data between streams and direct buffers
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[TRANSFER_BUFFER_SIZE];
+        }
+    };
+
     public static void closeQuietly(OutputStream output) {
         try {
             if (output != null) {
@@ -62,6 +73,46 @@ public class IOUtils {
         return length - remaining;
     }
     
+    public static int read(InputStream input, ByteBuffer buffer, int length) throws IOException {
+        if (length < 0) {
+            throw new IllegalArgumentException("Length must be positive: " + length);
+        }
+        
+        if (buffer.hasArray()) {
+            int read = read(input, buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.position() + read);
+            return read;
+        }
+        
+        byte[] transfer = TRANSFER_BUFFER.get();
+        int remaining = length;
+        while (remaining > 0) {
+            int count = input.read(transfer, 0, Math.min(remaining, transfer.length));
+            if (count == -1) {
+                //EOF
+                break;
+            }
+            buffer.put(transfer, 0, count);
+            remaining -= count;
+        }
+        return length - remaining;
+    }
+    
+    public static void write(ByteBuffer buffer, OutputStream output) throws IOException {
+        if (buffer.hasArray()) {
+            output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        
+        byte[] transfer = TRANSFER_BUFFER.get();
+        while (buffer.hasRemaining()) {
+            int count = Math.min(buffer.remaining(), transfer.length);
+            buffer.get(transfer, 0, count);
+            output.write(transfer, 0, count);
+        }
+    }
+    
     public static byte[] toByteArray(InputStream input) throws IOException {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         